@@ -0,0 +1,402 @@
+package com.example.email.consumer;
+
+import com.example.email.consumer.ConsumerApplication.DatabaseClient;
+import com.example.email.consumer.ConsumerApplication.StoredEmail;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bulk loader for historical or migrated emails that bypasses the REST API, gRPC and
+ * RabbitMQ: {@code java -jar consumer-service.jar import <file>...}.
+ * <p>
+ * Each input (NDJSON or CSV, optionally gzipped, {@code -} for stdin) is streamed line by line
+ * and every row is routed by the same rules as the pipeline: its domain is the part of the
+ * address after the {@code @}, and it goes to the gmail.com, wp.com or other database. Rows
+ * are cut into chunks of {@code IMPORT_CHUNK_LINES} input lines, and each database loads its
+ * share of a chunk in one transaction with binary COPY, on {@code IMPORT_WORKERS} parallel
+ * connections.
+ * <p>
+ * Every database records the chunks it has committed, so rerunning an interrupted import
+ * skips them and only loads the rest. Chunk numbers are input line ranges, so a rerun must
+ * read the same input with the same chunk size.
+ */
+final class BulkImport {
+    static final List<String> BUCKETS = List.of("gmail.com", "wp.com", "other");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /** Malformed lines reported individually before only being counted. */
+    private static final int REPORTED_ERRORS = 20;
+
+    private enum Format { NDJSON, CSV }
+
+    private final Map<String, DatabaseClient> databases;
+    private final int workers;
+    private final int chunkLines;
+    private final Map<String, AtomicLong> copied = new LinkedHashMap<>();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private volatile long skippedLines;
+    private volatile long malformedLines;
+
+    private BulkImport(Map<String, DatabaseClient> databases, int workers, int chunkLines) {
+        this.databases = databases;
+        this.workers = workers;
+        this.chunkLines = chunkLines;
+        databases.keySet().forEach(bucket -> copied.put(bucket, new AtomicLong()));
+    }
+
+    static void run(List<String> inputs, Map<String, String> env) throws IOException, SQLException, InterruptedException {
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java -jar consumer-service.jar import <file.ndjson|file.csv|->...");
+            return;
+        }
+        int workers = Integer.parseInt(env.getOrDefault("IMPORT_WORKERS", "4"));
+        int chunkLines = Integer.parseInt(env.getOrDefault("IMPORT_CHUNK_LINES", "10000"));
+        boolean deferIndexes = Boolean.parseBoolean(env.getOrDefault("IMPORT_DEFER_INDEXES", "false"));
+        String maintenanceWorkMem = env.getOrDefault("IMPORT_MAINTENANCE_WORK_MEM", "512MB");
+
+        Map<String, DatabaseClient> databases = new LinkedHashMap<>();
+        for (String bucket : BUCKETS) {
+            DatabaseClient database = DatabaseClient.fromEnvironment(bucketEnvironment(env, bucket), bucket);
+            database.prepareImport(deferIndexes);
+            databases.put(bucket, database);
+        }
+        System.out.println("Bulk import: " + workers + " COPY workers per database, chunks of " + chunkLines
+                + " lines" + (deferIndexes ? ", indexes deferred" : ""));
+
+        BulkImport bulkImport = new BulkImport(databases, workers, chunkLines);
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "import-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long started = System.nanoTime();
+        progress.scheduleAtFixedRate(() -> bulkImport.report(started), 5, 5, TimeUnit.SECONDS);
+        try {
+            for (String input : inputs) {
+                String importId = inputs.size() == 1 ? env.getOrDefault("IMPORT_ID", defaultId(input)) : defaultId(input);
+                Format format = Format.valueOf(env.getOrDefault("IMPORT_FORMAT",
+                        input.contains(".csv") ? "csv" : "ndjson").toUpperCase(Locale.ROOT));
+                bulkImport.load(input, importId, format);
+            }
+        } finally {
+            progress.shutdownNow();
+        }
+        bulkImport.report(started);
+
+        if (deferIndexes) {
+            for (DatabaseClient database : databases.values()) {
+                database.finishImport(maintenanceWorkMem);
+            }
+        }
+        System.out.println("Bulk import finished in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started) + " s");
+    }
+
+    /**
+     * The database settings of one bucket: {@code IMPORT_DB_URL_<BUCKET>} (e.g.
+     * {@code IMPORT_DB_URL_GMAIL_COM}) if set, else the bucket's default host and database.
+     * The single-database {@code DB_URL}, {@code DB_HOST} and {@code DB_DATABASE} would point
+     * every bucket at the same store, so they are not used.
+     */
+    private static Map<String, String> bucketEnvironment(Map<String, String> env, String bucket) {
+        Map<String, String> bucketEnv = new HashMap<>(env);
+        bucketEnv.remove("DB_URL");
+        bucketEnv.remove("DB_HOST");
+        bucketEnv.remove("DB_DATABASE");
+        bucketEnv.put("STORAGE_BUCKET", bucket);
+        String url = env.get("IMPORT_DB_URL_" + bucket.replace('.', '_').toUpperCase(Locale.ROOT));
+        if (url != null) {
+            bucketEnv.put("DB_URL", url);
+        }
+        return bucketEnv;
+    }
+
+    private static String defaultId(String input) {
+        return "-".equals(input) ? "stdin" : Path.of(input).getFileName().toString();
+    }
+
+    private void load(String input, String importId, Format format) throws IOException, SQLException, InterruptedException {
+        Map<String, Set<Long>> done = new LinkedHashMap<>();
+        for (Map.Entry<String, DatabaseClient> database : databases.entrySet()) {
+            done.put(database.getKey(), database.getValue().importedChunks(importId, chunkLines));
+        }
+        long resumed = done.values().stream().mapToLong(Set::size).sum();
+        System.out.println("Importing " + input + " as " + importId + " (" + format
+                + (resumed > 0 ? ", " + resumed + " chunk loads already committed" : "") + ")");
+
+        Map<String, ExecutorService> pools = new LinkedHashMap<>();
+        Map<String, Semaphore> permits = new LinkedHashMap<>();
+        for (String bucket : databases.keySet()) {
+            pools.put(bucket, Executors.newFixedThreadPool(workers, runnable -> new Thread(runnable, "import-" + bucket)));
+            // Bounds the chunks read ahead of the COPY workers
+            permits.put(bucket, new Semaphore(2 * workers));
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(input), StandardCharsets.UTF_8), 1 << 20)) {
+            List<String> header = format == Format.CSV ? columns(csvFields(reader.readLine())) : null;
+            Map<String, List<StoredEmail>> rows = newChunk();
+            long row = 0;
+            long lineNumber = header != null ? 1 : 0;
+            String line;
+            while ((line = reader.readLine()) != null && failure.get() == null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                long chunk = row / chunkLines;
+                if (!fullyLoaded(done, chunk)) {
+                    try {
+                        StoredEmail email = toStoredEmail(format == Format.CSV ? csvRecord(header, line) : jsonRecord(line));
+                        rows.get(bucketOf(email.domain)).add(email);
+                    } catch (RuntimeException | IOException ex) {
+                        if (++malformedLines <= REPORTED_ERRORS) {
+                            System.err.println("[BulkImport] Skipping " + importId + " line " + lineNumber + ": " + ex.getMessage());
+                        }
+                    }
+                } else {
+                    skippedLines++;
+                }
+                row++;
+                if (row % chunkLines == 0) {
+                    submit(pools, permits, done, importId, chunk, rows);
+                    rows = newChunk();
+                }
+            }
+            if (row % chunkLines != 0) {
+                submit(pools, permits, done, importId, row / chunkLines, rows);
+            }
+        } finally {
+            for (ExecutorService pool : pools.values()) {
+                pool.shutdown();
+            }
+            for (ExecutorService pool : pools.values()) {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        }
+        Exception failed = failure.get();
+        if (failed instanceof SQLException sqlException) {
+            throw sqlException;
+        }
+        if (failed != null) {
+            throw new IllegalStateException("Import of " + importId + " failed", failed);
+        }
+    }
+
+    private Map<String, List<StoredEmail>> newChunk() {
+        Map<String, List<StoredEmail>> rows = new LinkedHashMap<>();
+        databases.keySet().forEach(bucket -> rows.put(bucket, new ArrayList<>()));
+        return rows;
+    }
+
+    private static boolean fullyLoaded(Map<String, Set<Long>> done, long chunk) {
+        return done.values().stream().allMatch(chunks -> chunks.contains(chunk));
+    }
+
+    /**
+     * Hands each database its share of a chunk, including an empty one, so that every
+     * database records every chunk and a rerun can skip it without parsing.
+     */
+    private void submit(Map<String, ExecutorService> pools, Map<String, Semaphore> permits, Map<String, Set<Long>> done,
+                        String importId, long chunk, Map<String, List<StoredEmail>> rows) throws InterruptedException {
+        for (Map.Entry<String, List<StoredEmail>> share : rows.entrySet()) {
+            String bucket = share.getKey();
+            if (done.get(bucket).contains(chunk)) {
+                continue;
+            }
+            List<StoredEmail> emails = share.getValue();
+            Semaphore semaphore = permits.get(bucket);
+            semaphore.acquire();
+            pools.get(bucket).execute(() -> {
+                try {
+                    if (failure.get() == null && databases.get(bucket).copyAll(emails, importId, chunk, chunkLines)) {
+                        copied.get(bucket).addAndGet(emails.size());
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet(null, ex);
+                } catch (Exception ex) {
+                    System.err.println("[BulkImport] Chunk " + chunk + " into " + bucket + " failed: " + ex.getMessage());
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    semaphore.release();
+                }
+            });
+        }
+    }
+
+    private void report(long startedNanos) {
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedNanos));
+        long total = copied.values().stream().mapToLong(AtomicLong::get).sum();
+        StringBuilder line = new StringBuilder("[BulkImport] Copied ").append(total).append(" rows (");
+        copied.forEach((bucket, rows) -> line.append(bucket).append(' ').append(rows.get()).append(", "));
+        line.setLength(line.length() - 2);
+        line.append("), ").append(total / seconds).append(" rows/s");
+        if (skippedLines > 0) {
+            line.append(", ").append(skippedLines).append(" lines already loaded");
+        }
+        if (malformedLines > 0) {
+            line.append(", ").append(malformedLines).append(" malformed lines skipped");
+        }
+        System.out.println(line);
+    }
+
+    private static InputStream open(String input) throws IOException {
+        InputStream in = "-".equals(input) ? System.in : Files.newInputStream(Path.of(input));
+        return input.endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    /** The database a domain is stored in, as the consumers' queue bindings route it. */
+    static String bucketOf(String domain) {
+        return "gmail.com".equals(domain) || "wp.com".equals(domain) ? domain : "other";
+    }
+
+    /** The domain the REST API routes an address by. */
+    static String domainOf(String address) {
+        int at = address.indexOf('@');
+        return at > 0 && at < address.length() - 1 ? address.substring(at + 1) : "unknown";
+    }
+
+    /**
+     * Builds a row from a record with the queued message's fields ({@code address},
+     * {@code encryptedBody} or {@code blobRef}, optional {@code createdAt}, {@code acceptedAt}
+     * and {@code bodySize}); column names may also be snake_case.
+     */
+    private static StoredEmail toStoredEmail(Map<String, String> record) {
+        String address = record.get("address");
+        if (address == null || address.isBlank()) {
+            throw new IllegalArgumentException("no address");
+        }
+        String encryptedBody = record.get("encryptedbody");
+        String blobRef = record.get("blobref");
+        if (encryptedBody == null && blobRef == null) {
+            throw new IllegalArgumentException("neither encryptedBody nor blobRef");
+        }
+        byte[] ciphertext = encryptedBody != null ? encryptedBody.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        Instant createdAt = parseInstant(record.get("createdat"));
+        String bodySize = record.get("bodysize");
+        return new StoredEmail(
+                address,
+                ciphertext,
+                domainOf(address),
+                createdAt != null ? createdAt : Instant.now(),
+                blobRef,
+                parseInstant(record.get("acceptedat")),
+                bodySize != null ? Long.parseLong(bodySize) : ciphertext.length);
+    }
+
+    private static Map<String, String> jsonRecord(String line) throws IOException {
+        JsonNode node = MAPPER.readTree(line);
+        if (node == null || !node.isObject()) {
+            throw new IllegalArgumentException("not a JSON object");
+        }
+        Map<String, String> record = new HashMap<>();
+        node.fields().forEachRemaining(field -> {
+            if (!field.getValue().isNull()) {
+                record.put(column(field.getKey()), field.getValue().asText());
+            }
+        });
+        return record;
+    }
+
+    private static Map<String, String> csvRecord(List<String> header, String line) {
+        List<String> fields = csvFields(line);
+        if (fields.size() != header.size()) {
+            throw new IllegalArgumentException("expected " + header.size() + " fields, found " + fields.size());
+        }
+        Map<String, String> record = new HashMap<>();
+        for (int i = 0; i < fields.size(); i++) {
+            if (!fields.get(i).isEmpty()) {
+                record.put(header.get(i), fields.get(i));
+            }
+        }
+        return record;
+    }
+
+    private static List<String> columns(List<String> header) {
+        return header.stream().map(BulkImport::column).toList();
+    }
+
+    private static String column(String name) {
+        return name.replace("_", "").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** Fields of one RFC 4180 line; quoted fields may contain commas and doubled quotes. */
+    static List<String> csvFields(String line) {
+        if (line == null) {
+            throw new IllegalArgumentException("missing CSV header");
+        }
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /** Epoch milliseconds, an ISO-8601 instant, or PostgreSQL's {@code 2024-01-31 10:00:00+00}. */
+    static Instant parseInstant(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String text = value.trim();
+        if (text.chars().allMatch(Character::isDigit)) {
+            return Instant.ofEpochMilli(Long.parseLong(text));
+        }
+        try {
+            return Instant.parse(text);
+        } catch (DateTimeParseException ex) {
+            String iso = text.replace(' ', 'T');
+            if (iso.matches(".*[+-]\\d\\d$")) {
+                iso += ":00";
+            }
+            return OffsetDateTime.parse(iso).toInstant();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.email.consumer;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the consumer's worker count and insert batch size with AIMD (additive increase,
+ * multiplicative decrease):
+ * <ul>
+ *   <li>if a batch failed or batches took longer than the latency target on average, both
+ *   are halved, so an overloaded Postgres gets relief within one interval;</li>
+ *   <li>otherwise, while the backlog (broker queues plus the local buffer) is more than the
+ *   workers can take in one round, one worker and one batch step are added;</li>
+ *   <li>once the queues are empty, both drift back down towards their minimum.</li>
+ * </ul>
+ * Channel prefetch follows {@code workers * batch} so the workers are never starved. It is
+ * the channel-wide limit: the broker fixes a per-consumer limit when the consumer starts, so
+ * consumers are started under the most this can ask for and the channel limit bounds them.
+ * Stream channels are not passed in, as streams reject channel-wide limits.
+ */
+final class ConcurrencyController {
+
+    record Settings(int minWorkers, int maxWorkers, int minBatch, int maxBatch,
+                    long intervalMillis, long latencyTargetMillis, int minPrefetch) {
+    }
+
+    private final Settings settings;
+    private final Connection connection;
+    private final List<String> queues;
+    private final List<Channel> consumerChannels;
+    private final DeliveryBuffer buffer;
+
+    private volatile int workers;
+    private volatile int batchSize;
+    private volatile int prefetch;
+    private volatile long queueDepth;
+    private long brokerDepth;
+    private volatile long lastLatencyMillis;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong failedBatchesTotal = new AtomicLong();
+
+    private Channel inspectChannel;
+
+    ConcurrencyController(Settings settings, Connection connection, List<String> queues,
+                          List<Channel> consumerChannels, DeliveryBuffer buffer) {
+        this.settings = settings;
+        this.connection = connection;
+        this.queues = queues;
+        this.consumerChannels = consumerChannels;
+        this.buffer = buffer;
+        this.workers = settings.minWorkers();
+        this.batchSize = settings.minBatch();
+    }
+
+    int workers() {
+        return workers;
+    }
+
+    int batchSize() {
+        return batchSize;
+    }
+
+    void recordBatch(int size, long startedNanos) {
+        batches.incrementAndGet();
+        batchNanos.addAndGet(System.nanoTime() - startedNanos);
+        persisted.addAndGet(size);
+    }
+
+    void recordFailure() {
+        failedBatches.incrementAndGet();
+        failedBatchesTotal.incrementAndGet();
+    }
+
+    void start() throws IOException {
+        applyPrefetch();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "concurrency-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::adjust, settings.intervalMillis(), settings.intervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void adjust() {
+        try {
+            long count = batches.getAndSet(0);
+            long nanos = batchNanos.getAndSet(0);
+            long failures = failedBatches.getAndSet(0);
+            long latency = count > 0 ? TimeUnit.NANOSECONDS.toMillis(nanos / count) : 0;
+            long depth = brokerDepth() + buffer.size();
+            lastLatencyMillis = latency;
+            queueDepth = depth;
+
+            int newWorkers = workers;
+            int newBatch = batchSize;
+            int batchStep = Math.max(1, settings.maxBatch() / 10);
+            if (failures > 0 || latency > settings.latencyTargetMillis()) {
+                newWorkers = Math.max(settings.minWorkers(), newWorkers / 2);
+                newBatch = Math.max(settings.minBatch(), newBatch / 2);
+            } else if (depth > (long) newWorkers * newBatch) {
+                newWorkers = Math.min(settings.maxWorkers(), newWorkers + 1);
+                newBatch = Math.min(settings.maxBatch(), newBatch + batchStep);
+            } else if (depth == 0) {
+                newWorkers = Math.max(settings.minWorkers(), newWorkers - 1);
+                newBatch = Math.max(settings.minBatch(), newBatch - batchStep);
+            }
+
+            if (newWorkers != workers || newBatch != batchSize) {
+                System.out.println("[ConcurrencyController] workers " + workers + " -> " + newWorkers +
+                        ", batch " + batchSize + " -> " + newBatch +
+                        " (backlog " + depth + ", batch latency " + latency + " ms, failed batches " + failures + ")");
+                workers = newWorkers;
+                batchSize = newBatch;
+                applyPrefetch();
+            }
+        } catch (Exception exception) {
+            System.err.println("[ConcurrencyController] Adjustment failed: " + exception.getMessage());
+        }
+    }
+
+    private void applyPrefetch() throws IOException {
+        int wanted = Math.max(settings.minPrefetch(), workers * batchSize);
+        if (wanted == prefetch) {
+            return;
+        }
+        for (Channel channel : consumerChannels) {
+            channel.basicQos(wanted, true);
+        }
+        prefetch = wanted;
+    }
+
+    /**
+     * Ready messages in the broker queues, from a passive declare on a channel of its own
+     * (a failed passive declare closes the channel it ran on).
+     */
+    private long brokerDepth() {
+        long depth = 0;
+        try {
+            if (inspectChannel == null || !inspectChannel.isOpen()) {
+                inspectChannel = connection.createChannel();
+            }
+            for (String queue : queues) {
+                depth += inspectChannel.queueDeclarePassive(queue).getMessageCount();
+            }
+            brokerDepth = depth;
+        } catch (Exception exception) {
+            System.err.println("[ConcurrencyController] Cannot read queue depth, using the last one: " + exception.getMessage());
+        }
+        return brokerDepth;
+    }
+
+    /**
+     * Serves the controller state in the Prometheus text format on {@code /metrics}.
+     */
+    void serveMetrics(int port, String consumerName) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            String label = "{consumer=\"" + consumerName + "\"}";
+            String body = ""
+                    + "consumer_workers" + label + " " + workers + "\n"
+                    + "consumer_batch_size" + label + " " + batchSize + "\n"
+                    + "consumer_prefetch" + label + " " + prefetch + "\n"
+                    + "consumer_queue_depth" + label + " " + queueDepth + "\n"
+                    + "consumer_buffered" + label + " " + buffer.size() + "\n"
+                    + "consumer_batch_latency_ms" + label + " " + lastLatencyMillis + "\n"
+                    + "consumer_persisted_total" + label + " " + persisted.get() + "\n"
+                    + "consumer_failed_batches_total" + label + " " + failedBatchesTotal.get() + "\n";
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "consumer-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Metrics on :" + port + "/metrics");
+    }
+}
@@ -1,105 +1,596 @@
 package com.example.email.consumer;
 
+import com.example.email.proto.QueuedEmail;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.rabbitmq.client.*;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConsumerApplication {
     private static final ObjectMapper MAPPER = new ObjectMapper()
             .registerModule(new JavaTimeModule())
-            .enable(SerializationFeature.INDENT_OUTPUT)
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final LZ4FastDecompressor LZ4 = LZ4Factory.fastestInstance().fastDecompressor();
 
-    public static void main(String[] args) throws IOException, TimeoutException {
+    static final String CONTENT_TYPE_PROTOBUF = "application/x-protobuf";
+    static final String CONTENT_ENCODING_LZ4 = "lz4";
+    static final String ORIGINAL_LENGTH_HEADER = "x-original-length";
+    /** LZ4 cannot expand a block by more than this factor; larger claimed lengths are forged. */
+    private static final int LZ4_MAX_RATIO = 255;
+    /** Upper bound on a decompressed payload, however well it compressed. */
+    private static final int MAX_DECOMPRESSED_BYTES = 64 * 1024 * 1024;
+    static final String EVENTS_EXCHANGE = "email-events";
+    static final String EXCHANGE = "emails";
+    /** HIGH priority lane published by the REST API; drained before {@link #EXCHANGE}. */
+    static final String PRIORITY_EXCHANGE = "emails-priority";
+    static final String STREAM_OFFSET_HEADER = "x-stream-offset";
+    /** Set by the REST API to the recipient address; partitioned consumers hash on it. */
+    static final String PARTITION_KEY_HEADER = "x-partition-key";
+
+    public static void main(String[] args) throws IOException, TimeoutException, SQLException, InterruptedException {
         Map<String, String> env = System.getenv();
+        if (args.length > 0 && "import".equals(args[0])) {
+            BulkImport.run(List.of(args).subList(1, args.length), env);
+            return;
+        }
+        start(env, new ConnectionFactory());
+    }
 
+    /**
+     * Starts a consumer configured by {@code env} that reaches RabbitMQ through {@code factory}.
+     * Returns once the workers are running. The embedded pipeline starts several in one JVM,
+     * over a shared in-memory broker.
+     */
+    public static void start(Map<String, String> env, ConnectionFactory factory)
+            throws IOException, TimeoutException, SQLException, InterruptedException {
         String host = env.getOrDefault("RABBITMQ_HOST", "localhost");
         int port = Integer.parseInt(env.getOrDefault("RABBITMQ_PORT", "5672"));
         String user = env.getOrDefault("RABBITMQ_USER", "guest");
         String pass = env.getOrDefault("RABBITMQ_PASS", "guest");
         String consumerName = env.getOrDefault("CONSUMER_NAME", "consumer");
         String domainFilter = env.getOrDefault("DOMAIN_FILTER", "*");
+        long reportIntervalMillis = Long.parseLong(env.getOrDefault("PERSISTENCE_REPORT_MS", "5000"));
+        long changeEventMillis = Long.parseLong(env.getOrDefault("CHANGE_EVENT_MS", "100"));
+        int prefetch = Integer.parseInt(env.getOrDefault("PREFETCH", "50"));
+        int warmupIterations = Integer.parseInt(env.getOrDefault("WARMUP_ITERATIONS", "0"));
+        boolean trainingRun = Boolean.parseBoolean(env.getOrDefault("TRAINING_RUN", "false"));
+        int partitions = Integer.parseInt(env.getOrDefault("PARTITIONS", "0"));
 
         DatabaseClient databaseClient = DatabaseClient.fromEnvironment(env, domainFilter);
 
         System.out.println(consumerName + " starting...");
         System.out.println("Domain filter: " + domainFilter);
         System.out.println("Database bucket: " + databaseClient.bucket());
+
+        // Before subscribing, so no delivery is taken until the decode path is compiled
+        long warmupMillis = 0;
+        if (warmupIterations > 0) {
+            long warmupStarted = System.nanoTime();
+            Warmup.run(warmupIterations);
+            warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmupStarted);
+            System.out.println("Warm-up: " + warmupIterations + " iterations in " + warmupMillis + " ms");
+        }
+        if (trainingRun) {
+            // A class-data archive is written when the JVM exits
+            System.out.println("Training run finished after " + ManagementFactory.getRuntimeMXBean().getUptime() +
+                    " ms since JVM start (warm-up " + warmupMillis + " ms), exiting");
+            return;
+        }
         System.out.println("Connecting to RabbitMQ at " + host + ":" + port);
 
-        ConnectionFactory factory = new ConnectionFactory();
         factory.setHost(host);
         factory.setPort(port);
         factory.setUsername(user);
         factory.setPassword(pass);
 
     com.rabbitmq.client.Connection mqConnection = factory.newConnection();
-    Channel channel = mqConnection.createChannel();
+        Channel channel = mqConnection.createChannel();
+
+        channel.exchangeDeclare(EXCHANGE, BuiltinExchangeType.TOPIC, true);
+        channel.exchangeDeclare(PRIORITY_EXCHANGE, BuiltinExchangeType.TOPIC, true);
 
-        channel.exchangeDeclare("emails", BuiltinExchangeType.TOPIC, true);
+        PersistenceReporter reporter = new PersistenceReporter(mqConnection.createChannel(), databaseClient.bucket());
+        reporter.start(reportIntervalMillis, changeEventMillis);
+        databaseClient.startStatsFlush(Long.parseLong(env.getOrDefault("STATS_FLUSH_MS", "1000")));
 
-        String queueName = channel.queueDeclare(consumerName + "-queue", true, false, false, null).getQueue();
+        // Deliveries meet in one local buffer that always yields priority deliveries first;
+        // prefetch bounds how many regular ones can sit in it.
+        DeliveryBuffer buffer = new DeliveryBuffer();
+        AtomicLong arrivals = new AtomicLong();
+        int minWorkers = Integer.parseInt(env.getOrDefault("WORKERS_MIN", "1"));
+        int maxWorkers = Integer.parseInt(env.getOrDefault("WORKERS_MAX", "8"));
+        int maxBatch = Integer.parseInt(env.getOrDefault("BATCH_MAX", "200"));
+        boolean streamMode = "stream".equalsIgnoreCase(env.getOrDefault("INGEST_MODE", "queue"));
+        String streamName = streamMode ? env.getOrDefault("STREAM_NAME", "emails-stream") : null;
+        List<String> depthQueues;
+        List<Channel> consumerChannels;
+        PartitionCoordinator coordinator = null;
+        if (streamMode && partitions > 0) {
+            throw new IllegalArgumentException("PARTITIONS cannot be combined with INGEST_MODE=stream");
+        }
 
-        if ("*".equals(domainFilter)) {
-            channel.queueBind(queueName, "emails", "#");
-            System.out.println("Bound to ALL domains (will filter out gmail.com and wp.com)");
+        if (streamMode) {
+            channel = declareStream(mqConnection, channel, streamName, env);
+            Object offset = streamStart(env.get("REPLAY_FROM"),
+                    databaseClient.storedOffset(consumerName, streamName));
+            System.out.println("Reading stream " + streamName + " from " + offset);
+            // Offsets must be committed in order, so a stream is read by a single worker;
+            // the local buffer stands in for the queue depth
+            minWorkers = 1;
+            maxWorkers = 1;
+            prefetch = Math.max(prefetch, 2 * maxBatch);
+            depthQueues = List.of();
+            // One worker never wants more than this fixed per-consumer limit
+            consumerChannels = List.of();
+            channel.basicQos(prefetch);
+            Channel streamChannel = channel;
+            channel.basicConsume(streamName, false, Map.of("x-stream-offset", offset), (consumerTag, delivery) ->
+                    buffer.add(new PendingDelivery(false, arrivals.getAndIncrement(), streamChannel, delivery,
+                            DeliveryBuffer.UNPARTITIONED)), consumerTag -> {});
+        } else if (partitions > 0) {
+            String replica = env.getOrDefault("REPLICA_ID", ManagementFactory.getRuntimeMXBean().getName());
+            long leaseMillis = Long.parseLong(env.getOrDefault("PARTITION_LEASE_MS", "15000"));
+            Channel priorityChannel = mqConnection.createChannel();
+            coordinator = new PartitionCoordinator(consumerName, replica, partitions, leaseMillis, databaseClient,
+                    buffer, arrivals, channel, priorityChannel);
+            coordinator.declare(mqConnection, "*".equals(domainFilter) ? "#" : domainFilter);
+            System.out.println("Replica " + replica + " sharing " + partitions + " partitions of " + consumerName);
+            depthQueues = coordinator.queues();
+            consumerChannels = List.of(channel, priorityChannel);
+            limitPrefetch(channel, prefetch, maxWorkers * maxBatch);
+            limitPrefetch(priorityChannel, prefetch, maxWorkers * maxBatch);
         } else {
-            channel.queueBind(queueName, "emails", domainFilter);
-            System.out.println("Bound to domain: " + domainFilter);
+            String queueName = channel.queueDeclare(consumerName + "-queue", true, false, false, null).getQueue();
+            String priorityQueueName = channel.queueDeclare(consumerName + "-priority-queue", true, false, false, null).getQueue();
+
+            String bindingKey = "*".equals(domainFilter) ? "#" : domainFilter;
+            channel.queueBind(queueName, EXCHANGE, bindingKey);
+            channel.queueBind(priorityQueueName, PRIORITY_EXCHANGE, bindingKey);
+            if ("*".equals(domainFilter)) {
+                System.out.println("Bound to ALL domains (will filter out gmail.com and wp.com)");
+            } else {
+                System.out.println("Bound to domain: " + domainFilter);
+            }
+
+            Channel regularChannel = channel;
+            Channel priorityChannel = mqConnection.createChannel();
+            depthQueues = List.of(queueName, priorityQueueName);
+            consumerChannels = List.of(regularChannel, priorityChannel);
+            limitPrefetch(regularChannel, prefetch, maxWorkers * maxBatch);
+            limitPrefetch(priorityChannel, prefetch, maxWorkers * maxBatch);
+            regularChannel.basicConsume(queueName, false, (consumerTag, delivery) ->
+                    buffer.add(new PendingDelivery(false, arrivals.getAndIncrement(), regularChannel, delivery,
+                            DeliveryBuffer.UNPARTITIONED)), consumerTag -> {});
+            priorityChannel.basicConsume(priorityQueueName, false, (consumerTag, delivery) ->
+                    buffer.add(new PendingDelivery(true, arrivals.getAndIncrement(), priorityChannel, delivery,
+                            DeliveryBuffer.UNPARTITIONED)), consumerTag -> {});
+        }
+
+        ConcurrencyController controller = new ConcurrencyController(
+                new ConcurrencyController.Settings(
+                        minWorkers,
+                        maxWorkers,
+                        Integer.parseInt(env.getOrDefault("BATCH_MIN", "1")),
+                        maxBatch,
+                        Long.parseLong(env.getOrDefault("CONTROL_INTERVAL_MS", "1000")),
+                        Long.parseLong(env.getOrDefault("LATENCY_TARGET_MS", "250")),
+                        prefetch),
+                mqConnection, depthQueues, consumerChannels, buffer);
+        controller.start();
+        if (coordinator != null) {
+            coordinator.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(coordinator::stop, "partition-release"));
+        }
+        int metricsPort = Integer.parseInt(env.getOrDefault("METRICS_PORT", "9404"));
+        if (metricsPort > 0) {
+            controller.serveMetrics(metricsPort, consumerName);
+        }
+
+        Ingester ingester = new Ingester(consumerName, domainFilter, streamName, databaseClient, reporter, controller, buffer);
+        for (int index = 0; index < maxWorkers; index++) {
+            int workerIndex = index;
+            new Thread(() -> ingester.run(workerIndex), "ingest-worker-" + index).start();
         }
 
         System.out.println(consumerName + " ready. Waiting for messages...");
+        System.out.println("Startup: ready in " + ManagementFactory.getRuntimeMXBean().getUptime() +
+                " ms since JVM start (warm-up " + warmupMillis + " ms)");
+    }
 
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-            String routingKey = delivery.getEnvelope().getRoutingKey();
-            try {
-                if (skipDomain(domainFilter, routingKey)) {
-                    System.out.println("Skipping " + routingKey + " (handled by dedicated consumer)");
-                    return;
-                }
+    /**
+     * Sets a channel's limits before its consumers start: the per-consumer one is fixed from
+     * then on, so it is set to the most the controller can want, and the channel-wide one,
+     * which the controller adjusts, does the limiting.
+     */
+    private static void limitPrefetch(Channel channel, int prefetch, int workersTimesBatch) throws IOException {
+        channel.basicQos(Math.max(prefetch, workersTimesBatch));
+        channel.basicQos(prefetch, true);
+    }
+
+    /**
+     * Declares the stream unless it already exists (redeclaring with other retention arguments
+     * would fail) and binds it to both lanes.
+     * @return a usable channel; a failed passive declare closes the one it ran on
+     */
+    private static Channel declareStream(com.rabbitmq.client.Connection connection, Channel channel, String streamName,
+                                         Map<String, String> env) throws IOException {
+        try {
+            channel.queueDeclarePassive(streamName);
+        } catch (IOException missing) {
+            channel = connection.createChannel();
+            channel.queueDeclare(streamName, true, false, false, Map.of(
+                    "x-queue-type", "stream",
+                    "x-max-age", env.getOrDefault("STREAM_MAX_AGE", "7D"),
+                    "x-max-length-bytes", Long.parseLong(env.getOrDefault("STREAM_MAX_LENGTH_BYTES", "20000000000"))));
+        }
+        channel.queueBind(streamName, EXCHANGE, "#");
+        channel.queueBind(streamName, PRIORITY_EXCHANGE, "#");
+        return channel;
+    }
+
+    /**
+     * Where to start reading the stream: {@code REPLAY_FROM} if set ({@code first}, {@code last},
+     * {@code next}, an offset or an ISO-8601 instant), else right after the committed offset,
+     * else only new messages.
+     */
+    static Object streamStart(String replayFrom, OptionalLong committed) {
+        if (replayFrom != null && !replayFrom.isBlank()) {
+            String value = replayFrom.trim();
+            if (value.equals("first") || value.equals("last") || value.equals("next")) {
+                return value;
+            }
+            if (value.chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(value);
+            }
+            return Date.from(Instant.parse(value));
+        }
+        return committed.isPresent() ? committed.getAsLong() + 1 : "next";
+    }
 
-                String payload = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                EmailMessage email = MAPPER.readValue(payload, EmailMessage.class);
+    /** Offset of a stream delivery, or -1 for classic queue deliveries. */
+    private static long streamOffset(Delivery delivery) {
+        Map<String, Object> headers = delivery.getProperties().getHeaders();
+        Object offset = headers != null ? headers.get(STREAM_OFFSET_HEADER) : null;
+        return offset instanceof Number number ? number.longValue() : -1;
+    }
 
-                StoredEmail storedEmail = new StoredEmail(
-                        email.address,
-                        email.encryptedBody,
-                        routingKey,
-                        Instant.now()
-                );
+    /**
+     * Moves deliveries from the local buffer into Postgres. Every worker thread runs
+     * {@link #run}, but only the first {@link ConcurrencyController#workers()} of them take
+     * work; each takes up to {@link ConcurrencyController#batchSize()} deliveries and inserts
+     * them in one transaction.
+     * <p>
+     * When reading a stream, the last offset of each batch is committed in the same
+     * transaction as its rows, so a restart resumes exactly after the last stored email;
+     * rows the database refuses are skipped, see {@link #save}. Batches holding partitioned
+     * deliveries are retried until they commit, like stream batches: handing them back would
+     * let later emails to the same recipients overtake them. Refused rows are discarded.
+     */
+    static final class Ingester {
+        private final String consumerName;
+        private final String domainFilter;
+        /** Stream being read, or null when consuming the classic queues. */
+        private final String stream;
+        private final DatabaseClient databaseClient;
+        private final PersistenceReporter reporter;
+        private final ConcurrencyController controller;
+        private final DeliveryBuffer buffer;
+
+        Ingester(String consumerName, String domainFilter, String stream, DatabaseClient databaseClient,
+                 PersistenceReporter reporter, ConcurrencyController controller, DeliveryBuffer buffer) {
+            this.consumerName = consumerName;
+            this.domainFilter = domainFilter;
+            this.stream = stream;
+            this.databaseClient = databaseClient;
+            this.reporter = reporter;
+            this.controller = controller;
+            this.buffer = buffer;
+        }
+
+        void run(int workerIndex) {
+            List<PendingDelivery> batch = new ArrayList<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (workerIndex >= controller.workers()) {
+                        Thread.sleep(100);
+                        continue;
+                    }
+                    buffer.take(batch, controller.batchSize(), 100);
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    process(batch);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    batch.forEach(pending -> settle(pending, Settlement.REQUEUE));
+                } finally {
+                    buffer.done(batch);
+                    batch.clear();
+                }
+            }
+        }
 
-                databaseClient.save(storedEmail);
+        private void process(List<PendingDelivery> batch) throws InterruptedException {
+            List<PendingDelivery> accepted = new ArrayList<>(batch.size());
+            List<StoredEmail> emails = new ArrayList<>(batch.size());
+            List<Long> offsets = new ArrayList<>(batch.size());
+            long lastOffset = -1;
+            Set<Integer> partitions = new HashSet<>();
+            for (PendingDelivery pending : batch) {
+                String routingKey = pending.delivery().getEnvelope().getRoutingKey();
+                if (pending.partition() != DeliveryBuffer.UNPARTITIONED) {
+                    partitions.add(pending.partition());
+                }
+                lastOffset = Math.max(lastOffset, streamOffset(pending.delivery()));
+                if (skipDomain(domainFilter, routingKey)) {
+                    System.out.println("Skipping " + routingKey + " (handled by dedicated consumer)");
+                    settle(pending, Settlement.ACK);
+                    continue;
+                }
+                if (stream != null && !"*".equals(domainFilter) && !domainFilter.equals(routingKey)) {
+                    // The stream carries every domain
+                    settle(pending, Settlement.ACK);
+                    continue;
+                }
+                try {
+                    emails.add(toStoredEmail(decode(pending.delivery()), routingKey));
+                    offsets.add(streamOffset(pending.delivery()));
+                    accepted.add(pending);
+                } catch (Exception exception) {
+                    System.err.println("[" + consumerName + "] Error processing message: " + exception.getMessage());
+                    exception.printStackTrace(System.err);
+                    settle(pending, Settlement.DISCARD);
+                }
+            }
+            StreamPosition position = stream != null && lastOffset >= 0
+                    ? new StreamPosition(consumerName, stream, lastOffset)
+                    : null;
+            if (emails.isEmpty() && position == null) {
+                return;
+            }
 
-                System.out.println("[" + consumerName + "] Persisted message for domain " + routingKey +
-                        " into " + databaseClient.bucket());
+            long started = System.nanoTime();
+            Settlement settlement = Settlement.ACK;
+            Set<StoredEmail> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+            try {
+                save(emails, offsets, position, partitions, rejected);
+                int stored = emails.size() - rejected.size();
+                rejected.forEach(email -> reporter.record(false, started));
+                if (stored > 0) {
+                    for (int index = 0; index < stored; index++) {
+                        reporter.record(true, started);
+                    }
+                    reporter.changed();
+                    controller.recordBatch(stored, started);
+                    System.out.println("[" + consumerName + "] Persisted " + stored + " message(s) into " +
+                            databaseClient.bucket() + (position != null ? " up to offset " + position.offset() : ""));
+                }
             } catch (SQLException sqlException) {
+                emails.forEach(email -> reporter.record(false, started));
+                controller.recordFailure();
                 System.err.println("[" + consumerName + "] Database error: " + sqlException.getMessage());
                 sqlException.printStackTrace(System.err);
+                // The store is unavailable, not the messages: hand them back for a later attempt
+                settlement = Settlement.REQUEUE;
             } catch (InterruptedException interruptedException) {
-                Thread.currentThread().interrupt();
-                System.err.println("[" + consumerName + "] Interrupted while writing to database");
-            } catch (Exception exception) {
-                System.err.println("[" + consumerName + "] Error processing message: " + exception.getMessage());
-                exception.printStackTrace(System.err);
+                accepted.forEach(pending -> settle(pending, Settlement.REQUEUE));
+                throw interruptedException;
+            }
+            // Stream deliveries cannot be rejected; the committed offset has moved past skipped rows
+            Settlement refused = stream != null ? Settlement.ACK : Settlement.DISCARD;
+            for (int index = 0; index < accepted.size(); index++) {
+                settle(accepted.get(index), rejected.contains(emails.get(index)) ? refused : settlement);
+            }
+        }
+
+        /**
+         * Saves a batch, committing {@code position} with it when reading a stream. An error
+         * that is not {@link DatabaseClient#isTransient transient}, such as a NUL byte or an
+         * over-long value (SQLState class 22) or a violated constraint (23), fails every attempt
+         * the same way and takes the rest of the batch with it, so the batch is split until the
+         * rows causing it are alone; they are added to {@code rejected} instead of stored. Each
+         * part of a stream batch commits the offset of its last email ({@code offsets} holds
+         * one per email), so the stream moves past a skipped row like past a stored one.
+         * <p>
+         * Transient errors are thrown, to requeue a queue batch. Stream batches are retried
+         * until they commit instead: giving up on one would leave a gap behind the next
+         * committed offset. So are batches holding deliveries of {@code partitions}, see above,
+         * until one of those is {@link DeliveryBuffer#revoke revoked}: its next holder may
+         * already be storing the emails queued after them.
+         */
+        private void save(List<StoredEmail> emails, List<Long> offsets, StreamPosition position, Set<Integer> partitions,
+                          Set<StoredEmail> rejected) throws SQLException, InterruptedException {
+            boolean ordered = !partitions.isEmpty();
+            while (true) {
+                if (ordered && partitions.stream().anyMatch(buffer::revoked)) {
+                    throw new SQLException("Lease of partitions " + partitions + " lost before the batch was stored");
+                }
+                long started = System.nanoTime();
+                try {
+                    if (ordered) {
+                        // One attempt at a time, so a revoked lease is noticed between them
+                        databaseClient.trySaveAll(emails);
+                    } else {
+                        databaseClient.saveAll(emails, position);
+                    }
+                    return;
+                } catch (SQLException sqlException) {
+                    if (DatabaseClient.isTransient(sqlException)) {
+                        if (position == null && !ordered) {
+                            throw sqlException;
+                        }
+                        emails.forEach(email -> reporter.record(false, started));
+                        controller.recordFailure();
+                        System.err.println("[" + consumerName + "] Database error, retrying " + (position != null
+                                ? "stream batch ending at offset " + position.offset()
+                                : "partitioned batch") + ": " + sqlException.getMessage());
+                        if (ordered) {
+                            Thread.sleep(databaseClient.retryDelayMillis());
+                        }
+                        continue;
+                    }
+                    if (emails.isEmpty()) {
+                        throw sqlException;
+                    }
+                    if (emails.size() == 1) {
+                        StoredEmail email = emails.get(0);
+                        System.err.println("[" + consumerName + "] Dropping email for " + email.address
+                                + " refused by the database: " + sqlException.getMessage());
+                        rejected.add(email);
+                        if (position != null) {
+                            save(List.of(), List.of(), position, partitions, rejected);
+                        }
+                        return;
+                    }
+                    // The halves are stored in order, so emails to one recipient still commit in queue order
+                    int half = emails.size() / 2;
+                    save(emails.subList(0, half), offsets.subList(0, half),
+                            position != null ? position.at(offsets.get(half - 1)) : null, partitions, rejected);
+                    save(emails.subList(half, emails.size()), offsets.subList(half, offsets.size()),
+                            position, partitions, rejected);
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Last stream offset covered by a batch, committed with it. */
+    record StreamPosition(String consumer, String stream, long offset) {
+
+        StreamPosition at(long otherOffset) {
+            return new StreamPosition(consumer, stream, otherOffset);
+        }
+    }
+
+    static StoredEmail toStoredEmail(EmailMessage email, String routingKey) {
+        byte[] ciphertext = email.ciphertext != null ? email.ciphertext
+                : email.encryptedBody != null ? email.encryptedBody.getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        return new StoredEmail(
+                email.address,
+                ciphertext,
+                routingKey,
+                Instant.now(),
+                email.blobRef == null || email.blobRef.isEmpty() ? null : email.blobRef,
+                email.acceptedAt == null || email.acceptedAt <= 0 ? null : Instant.ofEpochMilli(email.acceptedAt),
+                // Unknown for publishers predating body_size; the ciphertext length is not the body's
+                email.bodySize != null && email.bodySize > 0 ? email.bodySize : 0
+        );
+    }
+
+    enum Settlement {
+        ACK,
+        REQUEUE,
+        DISCARD
+    }
+
+    /**
+     * Acks or rejects a buffered delivery. Failures are only logged: if the channel went away
+     * the broker redelivers the message anyway.
+     */
+    static void settle(PendingDelivery pending, Settlement settlement) {
+        long deliveryTag = pending.delivery().getEnvelope().getDeliveryTag();
+        try {
+            switch (settlement) {
+                case ACK -> pending.channel().basicAck(deliveryTag, false);
+                case REQUEUE -> pending.channel().basicNack(deliveryTag, false, true);
+                case DISCARD -> pending.channel().basicReject(deliveryTag, false);
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to " + settlement + " delivery " + deliveryTag + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A delivery waiting in the local buffer: priority-lane deliveries sort first, then
+     * arrival order. {@code partition} is the queue partition it came from, or
+     * {@link DeliveryBuffer#UNPARTITIONED}.
+     */
+    record PendingDelivery(boolean priority, long arrival, Channel channel, Delivery delivery, int partition)
+            implements Comparable<PendingDelivery> {
+        @Override
+        public int compareTo(PendingDelivery other) {
+            if (priority != other.priority) {
+                return priority ? -1 : 1;
             }
-        };
+            return Long.compare(arrival, other.arrival);
+        }
+    }
+
+    /**
+     * Decodes a delivery straight from its body bytes. The content-type decides between the
+     * protobuf and JSON formats so both can be published while publishers are rolled over;
+     * LZ4-compressed bodies carry their uncompressed length in a header.
+     */
+    static EmailMessage decode(Delivery delivery) throws IOException {
+        AMQP.BasicProperties properties = delivery.getProperties();
+        byte[] body = delivery.getBody();
 
-        channel.basicConsume(queueName, true, deliverCallback, consumerTag -> {});
+        if (properties != null && CONTENT_ENCODING_LZ4.equals(properties.getContentEncoding())) {
+            Object originalLength = properties.getHeaders() != null
+                    ? properties.getHeaders().get(ORIGINAL_LENGTH_HEADER)
+                    : null;
+            if (!(originalLength instanceof Number length)) {
+                throw new IOException("LZ4 payload without " + ORIGINAL_LENGTH_HEADER + " header");
+            }
+            // The header sizes the output buffer, so it is checked before anything is allocated
+            long claimed = length.longValue();
+            if (claimed < 0 || claimed > Math.min(MAX_DECOMPRESSED_BYTES, (long) body.length * LZ4_MAX_RATIO)) {
+                throw new IOException("LZ4 payload of " + body.length + " bytes claims " + claimed
+                        + " bytes uncompressed");
+            }
+            body = LZ4.decompress(body, (int) claimed);
+        }
+
+        if (properties != null && CONTENT_TYPE_PROTOBUF.equals(properties.getContentType())) {
+            QueuedEmail queued = QueuedEmail.parseFrom(body);
+            EmailMessage email = new EmailMessage();
+            email.address = queued.getAddress();
+            // The Base64 text as published, stored as it is
+            email.ciphertext = queued.getEncryptedBody().toByteArray();
+            email.blobRef = queued.getBlobRef();
+            email.acceptedAt = queued.getAcceptedAtMillis();
+            email.bodySize = queued.getBodySize();
+            return email;
+        }
+        return MAPPER.readValue(body, EmailMessage.class);
     }
 
     private static boolean skipDomain(String domainFilter, String routingKey) {
@@ -112,19 +603,114 @@ public class ConsumerApplication {
     static class EmailMessage {
         public String address;
         public String encryptedBody;
+        /** Set instead of encryptedBody by the protobuf decoder. */
+        @JsonIgnore
+        public byte[] ciphertext;
+        public String blobRef;
+        public Long acceptedAt;
+        public Long bodySize;
     }
 
     static class StoredEmail {
         public final String address;
-        public final String encryptedBody;
+        /** The ciphertext as published: Base64 text, as bytes. */
+        public final byte[] ciphertext;
         public final String domain;
         public final Instant timestamp;
+        public final String blobRef;
+        /** When the REST API accepted the email; null for publishers that do not send it. */
+        public final Instant acceptedAt;
+        public final long bodySize;
 
-        StoredEmail(String address, String encryptedBody, String domain, Instant timestamp) {
+        StoredEmail(String address, byte[] ciphertext, String domain, Instant timestamp, String blobRef,
+                    Instant acceptedAt, long bodySize) {
             this.address = address;
-            this.encryptedBody = encryptedBody;
+            this.ciphertext = ciphertext;
             this.domain = domain;
             this.timestamp = timestamp;
+            this.blobRef = blobRef;
+            this.acceptedAt = acceptedAt;
+            this.bodySize = bodySize;
+        }
+    }
+
+    /**
+     * Reports on the {@code email-events} exchange what this consumer persisted:
+     * <ul>
+     *   <li>{@code persistence.<bucket>} - insert success/failure counts, aggregated per interval,
+     *   which the REST API feeds into the domain's circuit breaker;</li>
+     *   <li>{@code changed.<bucket>} - rows were committed, so the REST API drops its cached reads.
+     *   Commits within one short interval are coalesced into a single event.</li>
+     * </ul>
+     * Nothing is sent for idle intervals.
+     */
+    static final class PersistenceReporter {
+        private final Channel channel;
+        private final String bucket;
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicLong maxLatencyMillis = new AtomicLong();
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        PersistenceReporter(Channel channel, String bucket) throws IOException {
+            this.channel = channel;
+            this.bucket = bucket;
+            channel.exchangeDeclare(EVENTS_EXCHANGE, BuiltinExchangeType.TOPIC, true);
+        }
+
+        void record(boolean success, long startedNanos) {
+            (success ? successes : failures).incrementAndGet();
+            maxLatencyMillis.accumulateAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos), Math::max);
+        }
+
+        /** Marks the bucket as changed after a committed insert. */
+        void changed() {
+            dirty.set(true);
+        }
+
+        void start(long intervalMillis, long changeIntervalMillis) {
+            // One thread, so the channel is never used concurrently
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "persistence-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            scheduler.scheduleWithFixedDelay(this::publishChanged, changeIntervalMillis, changeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void publishChanged() {
+            if (!dirty.getAndSet(false)) {
+                return;
+            }
+            try {
+                channel.basicPublish(EVENTS_EXCHANGE, "changed." + bucket, null, bucket.getBytes(StandardCharsets.UTF_8));
+            } catch (Exception exception) {
+                dirty.set(true);
+                System.err.println("[PersistenceReporter] Failed to publish change event: " + exception.getMessage());
+            }
+        }
+
+        private void publish() {
+            int succeeded = successes.getAndSet(0);
+            int failed = failures.getAndSet(0);
+            long latency = maxLatencyMillis.getAndSet(0);
+            if (succeeded == 0 && failed == 0) {
+                return;
+            }
+            try {
+                byte[] report = MAPPER.writeValueAsBytes(Map.of(
+                        "bucket", bucket,
+                        "successes", succeeded,
+                        "failures", failed,
+                        "maxLatencyMs", latency));
+                AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                        .contentType("application/json")
+                        .build();
+                channel.basicPublish(EVENTS_EXCHANGE, "persistence." + bucket, properties, report);
+            } catch (Exception exception) {
+                System.err.println("[PersistenceReporter] Failed to publish report: " + exception.getMessage());
+            }
         }
     }
 
@@ -136,6 +722,60 @@ public class ConsumerApplication {
     static final class DatabaseClient {
         private static final int DEFAULT_MAX_RETRIES = 15;
         private static final long DEFAULT_RETRY_DELAY_MS = 2000L;
+        /**
+         * Per-domain, per-minute ingest rollups; the REST API's /api/stats reads only these and
+         * leaves creating the table to the consumers. bytes counts plaintext of known size only.
+         */
+        static final String STATS_TABLE_DDL = """
+                CREATE TABLE IF NOT EXISTS email_stats_minute (
+                    domain TEXT NOT NULL,
+                    minute TIMESTAMPTZ NOT NULL,
+                    emails BIGINT NOT NULL,
+                    bytes BIGINT NOT NULL,
+                    lag_ms_sum BIGINT NOT NULL,
+                    lag_ms_max BIGINT NOT NULL,
+                    lag_samples BIGINT NOT NULL,
+                    PRIMARY KEY (domain, minute)
+                )
+                """;
+
+        /** Chunks of bulk imports committed into this database; see {@link BulkImport}. */
+        static final String IMPORT_PROGRESS_DDL = """
+                CREATE TABLE IF NOT EXISTS import_progress (
+                    import_id TEXT NOT NULL,
+                    chunk BIGINT NOT NULL,
+                    chunk_lines INT NOT NULL,
+                    rows BIGINT NOT NULL,
+                    committed_at TIMESTAMPTZ NOT NULL,
+                    PRIMARY KEY (import_id, chunk)
+                )
+                """;
+        /** Indexes dropped for a bulk import, kept until they are rebuilt. */
+        static final String DEFERRED_INDEXES_DDL = """
+                CREATE TABLE IF NOT EXISTS import_deferred_indexes (
+                    name TEXT PRIMARY KEY,
+                    definition TEXT NOT NULL
+                )
+                """;
+        /** Who holds which partition of a consumer's queues; see {@link PartitionCoordinator}. */
+        static final String PARTITION_LEASES_DDL = """
+                CREATE TABLE IF NOT EXISTS partition_leases (
+                    consumer TEXT NOT NULL,
+                    partition INT NOT NULL,
+                    owner TEXT,
+                    expires_at TIMESTAMPTZ NOT NULL,
+                    PRIMARY KEY (consumer, partition)
+                )
+                """;
+        /** Heartbeats of the running replicas of each consumer, which share its partitions. */
+        static final String CONSUMER_REPLICAS_DDL = """
+                CREATE TABLE IF NOT EXISTS consumer_replicas (
+                    consumer TEXT NOT NULL,
+                    replica TEXT NOT NULL,
+                    expires_at TIMESTAMPTZ NOT NULL,
+                    PRIMARY KEY (consumer, replica)
+                )
+                """;
 
         private final String bucket;
         private final String jdbcUrl;
@@ -143,6 +783,10 @@ public class ConsumerApplication {
         private final String password;
         private final int maxRetries;
         private final long retryDelayMillis;
+        private final String bodyCompression;
+        private final int toastTupleTarget;
+        /** Statistics of committed batches not yet in the rollups; guarded by itself. */
+        private final Map<StatsKey, MinuteTotals> pendingStats = new HashMap<>();
     private final Object schemaLock = new Object();
     private volatile boolean schemaEnsured = false;
 
@@ -151,13 +795,17 @@ public class ConsumerApplication {
                                String username,
                                String password,
                                int maxRetries,
-                               long retryDelayMillis) {
+                               long retryDelayMillis,
+                               String bodyCompression,
+                               int toastTupleTarget) {
             this.bucket = bucket;
             this.jdbcUrl = jdbcUrl;
             this.username = username;
             this.password = password;
             this.maxRetries = maxRetries;
             this.retryDelayMillis = retryDelayMillis;
+            this.bodyCompression = bodyCompression;
+            this.toastTupleTarget = toastTupleTarget;
         }
 
         static DatabaseClient fromEnvironment(Map<String, String> env, String domainFilter) {
@@ -171,42 +819,631 @@ public class ConsumerApplication {
             String password = env.getOrDefault("DB_PASS", "email_pass");
             int retries = Integer.parseInt(env.getOrDefault("DB_CONNECT_RETRIES", String.valueOf(DEFAULT_MAX_RETRIES)));
             long delay = Long.parseLong(env.getOrDefault("DB_CONNECT_DELAY_MS", String.valueOf(DEFAULT_RETRY_DELAY_MS)));
+            String compression = env.getOrDefault("BODY_COMPRESSION", "lz4").toLowerCase();
+            if (!List.of("lz4", "pglz", "default").contains(compression)) {
+                throw new IllegalArgumentException("BODY_COMPRESSION must be lz4, pglz or default: " + compression);
+            }
+            int toastTupleTarget = Integer.parseInt(env.getOrDefault("BODY_TOAST_TUPLE_TARGET", "0"));
 
             String jdbcUrl = Optional.ofNullable(explicitUrl)
                     .filter(url -> !url.isBlank())
                     .orElse("jdbc:postgresql://" + host + ":" + port + "/" + dbName);
 
-            return new DatabaseClient(bucket, jdbcUrl, user, password, retries, delay);
+            return new DatabaseClient(bucket, jdbcUrl, user, password, retries, delay,
+                    compression, toastTupleTarget);
         }
 
         String bucket() {
             return bucket;
         }
 
-        void save(StoredEmail email) throws SQLException, InterruptedException {
+        long retryDelayMillis() {
+            return retryDelayMillis;
+        }
+
+        /**
+         * Inserts a batch of emails in one transaction. Their per-minute statistics are only
+         * added to the pending deltas once it commits and written by {@link #flushStats}, so
+         * concurrent batches for one domain never wait on the same rollup row; the rollups
+         * trail the stored rows by up to one flush interval.
+         */
+        void saveAll(List<StoredEmail> emails) throws SQLException, InterruptedException {
+            saveAll(emails, null);
+        }
+
+        /**
+         * Like {@link #saveAll(List)}, also committing {@code position} (when not null) in the
+         * same transaction. {@code emails} may be empty to only advance the offset.
+         */
+        void saveAll(List<StoredEmail> emails, StreamPosition position) throws SQLException, InterruptedException {
+            saveAll(emails, position, maxRetries);
+        }
+
+        /** Like {@link #saveAll(List)}, in a single attempt, for callers that retry on their own terms. */
+        void trySaveAll(List<StoredEmail> emails) throws SQLException, InterruptedException {
+            saveAll(emails, null, 1);
+        }
+
+        private void saveAll(List<StoredEmail> emails, StreamPosition position, int attempts)
+                throws SQLException, InterruptedException {
+            Map<StatsKey, MinuteTotals> stats = minuteTotals(emails);
+            executeWithRetry(attempts, connection -> {
+                ensureSchema(connection);
+                connection.setAutoCommit(false);
+                try {
+                    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO emails(address, "
+                            + "encrypted_body, domain, created_at, blob_ref, accepted_at) VALUES (?, ?, ?, ?, ?, ?)")) {
+                        for (StoredEmail email : emails) {
+                            statement.setString(1, email.address);
+                            statement.setString(2, new String(email.ciphertext, StandardCharsets.UTF_8));
+                            statement.setString(3, email.domain);
+                            statement.setTimestamp(4, Timestamp.from(email.timestamp));
+                            statement.setString(5, email.blobRef);
+                            statement.setTimestamp(6, email.acceptedAt != null ? Timestamp.from(email.acceptedAt) : null);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    if (position != null) {
+                        try (PreparedStatement statement = connection.prepareStatement("""
+                                INSERT INTO stream_offsets(consumer, stream, committed_offset, updated_at)
+                                VALUES (?, ?, ?, now())
+                                ON CONFLICT (consumer, stream) DO UPDATE SET
+                                    committed_offset = EXCLUDED.committed_offset,
+                                    updated_at = EXCLUDED.updated_at
+                                """)) {
+                            statement.setString(1, position.consumer());
+                            statement.setString(2, position.stream());
+                            statement.setLong(3, position.offset());
+                            statement.executeUpdate();
+                        }
+                    }
+                    connection.commit();
+                } catch (SQLException ex) {
+                    connection.rollback();
+                    throw ex;
+                }
+            });
+            addPendingStats(stats);
+        }
+
+        private void addPendingStats(Map<StatsKey, MinuteTotals> stats) {
+            synchronized (pendingStats) {
+                stats.forEach((key, totals) -> pendingStats.computeIfAbsent(key, k -> new MinuteTotals()).merge(totals));
+            }
+        }
+
+        /**
+         * Starts writing the pending statistics every {@code intervalMillis} on a daemon thread,
+         * and once more when the JVM shuts down. Deltas not yet written when the process dies
+         * are lost; the rows they describe are not.
+         */
+        void startStatsFlush(long intervalMillis) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "stats-flush-" + bucket);
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::tryFlushStats, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::tryFlushStats, "stats-flush-" + bucket + "-final"));
+        }
+
+        private void tryFlushStats() {
+            try {
+                flushStats();
+            } catch (SQLException ex) {
+                System.err.println("[DatabaseClient] Statistics flush failed, keeping the deltas: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Adds the statistics of every batch committed since the last flush to the rollups in
+         * one transaction: a busy minute costs one row update per interval rather than one per
+         * batch. Deltas that could not be written are kept for the next flush.
+         */
+        void flushStats() throws SQLException {
+            Map<StatsKey, MinuteTotals> stats;
+            synchronized (pendingStats) {
+                if (pendingStats.isEmpty()) {
+                    return;
+                }
+                stats = new TreeMap<>(pendingStats);
+                pendingStats.clear();
+            }
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                connection.setAutoCommit(false);
+                try {
+                    upsertStats(connection, stats);
+                    connection.commit();
+                } catch (SQLException ex) {
+                    connection.rollback();
+                    throw ex;
+                }
+            } catch (SQLException ex) {
+                addPendingStats(stats);
+                throw ex;
+            }
+        }
+
+        private static Map<StatsKey, MinuteTotals> minuteTotals(List<StoredEmail> emails) {
+            Map<StatsKey, MinuteTotals> stats = new TreeMap<>();
+            for (StoredEmail email : emails) {
+                long lagMillis = email.acceptedAt != null
+                        ? Math.max(0, email.timestamp.toEpochMilli() - email.acceptedAt.toEpochMilli())
+                        : 0;
+                stats.computeIfAbsent(new StatsKey(email.domain, email.timestamp.truncatedTo(ChronoUnit.MINUTES)),
+                                key -> new MinuteTotals())
+                        .add(email.bodySize, lagMillis, email.acceptedAt != null);
+            }
+            return stats;
+        }
+
+        /** Adds {@code stats} to the rollups, in key order so concurrent writers cannot deadlock. */
+        private static void upsertStats(Connection connection, Map<StatsKey, MinuteTotals> stats) throws SQLException {
+            try (PreparedStatement statement = connection.prepareStatement("""
+                    INSERT INTO email_stats_minute(domain, minute, emails, bytes, lag_ms_sum, lag_ms_max, lag_samples)
+                    VALUES (?, ?, ?, ?, ?, ?, ?)
+                    ON CONFLICT (domain, minute) DO UPDATE SET
+                        emails = email_stats_minute.emails + EXCLUDED.emails,
+                        bytes = email_stats_minute.bytes + EXCLUDED.bytes,
+                        lag_ms_sum = email_stats_minute.lag_ms_sum + EXCLUDED.lag_ms_sum,
+                        lag_ms_max = GREATEST(email_stats_minute.lag_ms_max, EXCLUDED.lag_ms_max),
+                        lag_samples = email_stats_minute.lag_samples + EXCLUDED.lag_samples
+                    """)) {
+                for (Map.Entry<StatsKey, MinuteTotals> entry : stats.entrySet()) {
+                    MinuteTotals totals = entry.getValue();
+                    statement.setString(1, entry.getKey().domain());
+                    statement.setTimestamp(2, Timestamp.from(entry.getKey().minute()));
+                    statement.setLong(3, totals.emails);
+                    statement.setLong(4, totals.bytes);
+                    statement.setLong(5, totals.lagSum);
+                    statement.setLong(6, totals.lagMax);
+                    statement.setLong(7, totals.lagSamples);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+
+        record StatsKey(String domain, Instant minute) implements Comparable<StatsKey> {
+            @Override
+            public int compareTo(StatsKey other) {
+                int byDomain = domain.compareTo(other.domain);
+                return byDomain != 0 ? byDomain : minute.compareTo(other.minute);
+            }
+        }
+
+        static final class MinuteTotals {
+            long emails;
+            long bytes;
+            long lagSum;
+            long lagMax;
+            long lagSamples;
+
+            void add(long bodySize, long lagMillis, boolean hasLag) {
+                emails++;
+                bytes += bodySize;
+                if (hasLag) {
+                    lagSum += lagMillis;
+                    lagMax = Math.max(lagMax, lagMillis);
+                    lagSamples++;
+                }
+            }
+
+            void merge(MinuteTotals other) {
+                emails += other.emails;
+                bytes += other.bytes;
+                lagSum += other.lagSum;
+                lagMax = Math.max(lagMax, other.lagMax);
+                lagSamples += other.lagSamples;
+            }
+        }
+
+        /**
+         * The last stream offset committed by {@code consumer}, if any.
+         */
+        OptionalLong storedOffset(String consumer, String stream) throws SQLException, InterruptedException {
+            long[] offset = {-1};
             executeWithRetry(connection -> {
                 ensureSchema(connection);
                 try (PreparedStatement statement = connection.prepareStatement(
-                        "INSERT INTO emails(address, encrypted_body, domain, created_at) VALUES (?, ?, ?, ?)")) {
-                    statement.setString(1, email.address);
-                    statement.setString(2, email.encryptedBody);
-                    statement.setString(3, email.domain);
-                    statement.setTimestamp(4, Timestamp.from(email.timestamp));
+                        "SELECT committed_offset FROM stream_offsets WHERE consumer = ? AND stream = ?")) {
+                    statement.setString(1, consumer);
+                    statement.setString(2, stream);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (resultSet.next()) {
+                            offset[0] = resultSet.getLong(1);
+                        }
+                    }
+                }
+            });
+            return offset[0] >= 0 ? OptionalLong.of(offset[0]) : OptionalLong.empty();
+        }
+
+        /**
+         * Creates the partition bookkeeping tables and a free lease row for each of the
+         * {@code partitions} partitions of {@code consumer} that has none yet.
+         */
+        void preparePartitions(String consumer, int partitions) throws SQLException, InterruptedException {
+            executeWithRetry(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(PARTITION_LEASES_DDL);
+                    statement.executeUpdate(CONSUMER_REPLICAS_DDL);
+                }
+                try (PreparedStatement statement = connection.prepareStatement("""
+                        INSERT INTO partition_leases(consumer, partition, owner, expires_at)
+                        SELECT ?, generate_series(0, ? - 1), NULL, '-infinity'
+                        ON CONFLICT (consumer, partition) DO NOTHING
+                        """)) {
+                    statement.setString(1, consumer);
+                    statement.setInt(2, partitions);
+                    statement.executeUpdate();
+                }
+            });
+        }
+
+        /**
+         * Records that {@code replica} is alive for another {@code leaseMillis}, extends every
+         * lease it still holds by as much, and reads the live replicas. Times are the
+         * database's, so replicas need no synchronized clocks. Made in a single attempt: a
+         * heartbeat retried for longer than the lease would only extend leases that may
+         * already have passed to another replica.
+         */
+        PartitionCoordinator.Leases renewLeases(String consumer, String replica, long leaseMillis)
+                throws SQLException, InterruptedException {
+            List<String> replicas = new ArrayList<>();
+            Set<Integer> held = new HashSet<>();
+            executeWithRetry(1, connection -> {
+                replicas.clear();
+                held.clear();
+                try (PreparedStatement statement = connection.prepareStatement("""
+                        INSERT INTO consumer_replicas(consumer, replica, expires_at)
+                        VALUES (?, ?, now() + ? * interval '1 millisecond')
+                        ON CONFLICT (consumer, replica) DO UPDATE SET expires_at = EXCLUDED.expires_at
+                        """)) {
+                    statement.setString(1, consumer);
+                    statement.setString(2, replica);
+                    statement.setLong(3, leaseMillis);
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM consumer_replicas WHERE consumer = ? AND expires_at < now()")) {
+                    statement.setString(1, consumer);
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT replica FROM consumer_replicas WHERE consumer = ? ORDER BY replica")) {
+                    statement.setString(1, consumer);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            replicas.add(resultSet.getString(1));
+                        }
+                    }
+                }
+                // Also an expired lease nobody has taken over yet
+                try (PreparedStatement statement = connection.prepareStatement("""
+                        UPDATE partition_leases SET expires_at = now() + ? * interval '1 millisecond'
+                        WHERE consumer = ? AND owner = ?
+                        RETURNING partition
+                        """)) {
+                    statement.setLong(1, leaseMillis);
+                    statement.setString(2, consumer);
+                    statement.setString(3, replica);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            held.add(resultSet.getInt(1));
+                        }
+                    }
+                }
+            });
+            return new PartitionCoordinator.Leases(replicas.size(), Math.max(0, replicas.indexOf(replica)), held);
+        }
+
+        /**
+         * Takes up to {@code count} free or expired leases among the first {@code partitions}
+         * partitions for {@code replica}. Rows another replica is claiming at the same moment
+         * are skipped rather than waited for.
+         *
+         * @return the partitions claimed
+         */
+        Set<Integer> claimPartitions(String consumer, String replica, int partitions, int count, long leaseMillis)
+                throws SQLException, InterruptedException {
+            Set<Integer> claimed = new HashSet<>();
+            executeWithRetry(connection -> {
+                claimed.clear();
+                try (PreparedStatement statement = connection.prepareStatement("""
+                        UPDATE partition_leases SET owner = ?, expires_at = now() + ? * interval '1 millisecond'
+                        WHERE consumer = ? AND partition IN (
+                            SELECT partition FROM partition_leases
+                            WHERE consumer = ? AND partition < ? AND (owner IS NULL OR expires_at < now())
+                            ORDER BY partition
+                            LIMIT ?
+                            FOR UPDATE SKIP LOCKED)
+                        RETURNING partition
+                        """)) {
+                    statement.setString(1, replica);
+                    statement.setLong(2, leaseMillis);
+                    statement.setString(3, consumer);
+                    statement.setString(4, consumer);
+                    statement.setInt(5, partitions);
+                    statement.setInt(6, count);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            claimed.add(resultSet.getInt(1));
+                        }
+                    }
+                }
+            });
+            return claimed;
+        }
+
+        /** Gives up the lease of {@code partition}, if {@code replica} still holds it. */
+        void releasePartition(String consumer, String replica, int partition) throws SQLException, InterruptedException {
+            executeWithRetry(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE partition_leases SET owner = NULL, expires_at = '-infinity' "
+                                + "WHERE consumer = ? AND partition = ? AND owner = ?")) {
+                    statement.setString(1, consumer);
+                    statement.setInt(2, partition);
+                    statement.setString(3, replica);
+                    statement.executeUpdate();
+                }
+            });
+        }
+
+        /** Gives up every lease of {@code replica} and stops counting it as alive. */
+        void leavePartitions(String consumer, String replica) throws SQLException, InterruptedException {
+            executeWithRetry(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE partition_leases SET owner = NULL, expires_at = '-infinity' WHERE consumer = ? AND owner = ?")) {
+                    statement.setString(1, consumer);
+                    statement.setString(2, replica);
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM consumer_replicas WHERE consumer = ? AND replica = ?")) {
+                    statement.setString(1, consumer);
+                    statement.setString(2, replica);
                     statement.executeUpdate();
                 }
             });
         }
 
+        /**
+         * Creates the bulk import bookkeeping tables and, with {@code deferIndexes}, drops the
+         * secondary indexes of emails so the load does not maintain them row by row. Their
+         * definitions stay in import_deferred_indexes until {@link #finishImport} rebuilds
+         * them, so an interrupted import gets them back when it is rerun.
+         */
+        void prepareImport(boolean deferIndexes) throws SQLException, InterruptedException {
+            executeWithRetry(connection -> {
+                ensureSchema(connection);
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(IMPORT_PROGRESS_DDL);
+                    statement.executeUpdate(DEFERRED_INDEXES_DDL);
+                }
+                if (!deferIndexes) {
+                    return;
+                }
+                connection.setAutoCommit(false);
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("""
+                            INSERT INTO import_deferred_indexes(name, definition)
+                            SELECT i.relname, pg_get_indexdef(i.oid)
+                            FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid
+                            WHERE x.indrelid = 'emails'::regclass AND NOT x.indisunique
+                            ON CONFLICT (name) DO NOTHING
+                            """);
+                    List<String> names = new ArrayList<>();
+                    try (ResultSet resultSet = statement.executeQuery("""
+                            SELECT i.relname
+                            FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid
+                            WHERE x.indrelid = 'emails'::regclass AND NOT x.indisunique
+                            """)) {
+                        while (resultSet.next()) {
+                            names.add(resultSet.getString(1));
+                        }
+                    }
+                    for (String name : names) {
+                        statement.executeUpdate("DROP INDEX IF EXISTS \"" + name.replace("\"", "\"\"") + "\"");
+                    }
+                    connection.commit();
+                    if (!names.isEmpty()) {
+                        System.out.println("[BulkImport] " + bucket + ": deferred indexes " + names);
+                    }
+                } catch (SQLException ex) {
+                    connection.rollback();
+                    throw ex;
+                }
+            });
+        }
+
+        /**
+         * Numbers of the chunks of {@code importId} already committed here.
+         *
+         * @throws IllegalStateException if the import was started with another chunk size,
+         * so its chunk numbers mean other rows
+         */
+        Set<Long> importedChunks(String importId, int chunkLines) throws SQLException, InterruptedException {
+            Set<Long> chunks = new HashSet<>();
+            executeWithRetry(connection -> {
+                chunks.clear();
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT chunk, chunk_lines FROM import_progress WHERE import_id = ?")) {
+                    statement.setString(1, importId);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            if (resultSet.getInt(2) != chunkLines) {
+                                throw new IllegalStateException("Import " + importId + " in " + bucket
+                                        + " was started with chunks of " + resultSet.getInt(2) + " lines");
+                            }
+                            chunks.add(resultSet.getLong(1));
+                        }
+                    }
+                }
+            });
+            return chunks;
+        }
+
+        /**
+         * Loads one chunk of a bulk import with binary COPY and folds it into the statistics
+         * rollups, recording the chunk in import_progress in the same transaction. The chunk
+         * is claimed first, so one whose commit was interrupted and is retried cannot be
+         * loaded twice. {@code emails} may be empty to record a chunk with no rows here.
+         *
+         * @return false if the chunk had already been committed
+         */
+        boolean copyAll(List<StoredEmail> emails, String importId, long chunk, int chunkLines)
+                throws SQLException, InterruptedException {
+            Map<StatsKey, MinuteTotals> stats = minuteTotals(emails);
+            boolean[] copied = {false};
+            executeWithRetry(connection -> {
+                ensureSchema(connection);
+                connection.setAutoCommit(false);
+                try {
+                    try (PreparedStatement statement = connection.prepareStatement("""
+                            INSERT INTO import_progress(import_id, chunk, chunk_lines, rows, committed_at)
+                            VALUES (?, ?, ?, ?, now())
+                            ON CONFLICT (import_id, chunk) DO NOTHING
+                            """)) {
+                        statement.setString(1, importId);
+                        statement.setLong(2, chunk);
+                        statement.setInt(3, chunkLines);
+                        statement.setLong(4, emails.size());
+                        if (statement.executeUpdate() == 0) {
+                            connection.rollback();
+                            return;
+                        }
+                    }
+                    if (!emails.isEmpty()) {
+                        copyRows(connection, emails);
+                        upsertStats(connection, stats);
+                    }
+                    connection.commit();
+                    copied[0] = true;
+                } catch (SQLException ex) {
+                    connection.rollback();
+                    throw ex;
+                }
+            });
+            return copied[0];
+        }
+
+        private void copyRows(Connection connection, List<StoredEmail> emails) throws SQLException {
+            PGCopyOutputStream copy = new PGCopyOutputStream(connection.unwrap(PGConnection.class),
+                    "COPY emails(address, encrypted_body, domain, created_at, blob_ref, accepted_at) FROM STDIN (FORMAT binary)");
+            try {
+                BinaryCopyWriter writer = new BinaryCopyWriter(copy);
+                for (StoredEmail email : emails) {
+                    writer.startRow(6);
+                    writer.text(email.address);
+                    // Base64 text, which is also its own UTF-8 encoding for a text column
+                    writer.bytes(email.ciphertext);
+                    writer.text(email.domain);
+                    writer.timestamptz(email.timestamp);
+                    writer.text(email.blobRef);
+                    writer.timestamptz(email.acceptedAt);
+                }
+                writer.close();
+            } catch (IOException ex) {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+                throw new SQLException("COPY into " + bucket + " failed: " + ex.getMessage(), ex);
+            }
+        }
+
+        /**
+         * Rebuilds the indexes deferred by {@link #prepareImport}, each in one sort with
+         * {@code maintenanceWorkMem}, and refreshes the planner statistics of the loaded table.
+         */
+        void finishImport(String maintenanceWorkMem) throws SQLException, InterruptedException {
+            executeWithRetry(connection -> {
+                Map<String, String> deferred = new TreeMap<>();
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery("SELECT name, definition FROM import_deferred_indexes")) {
+                    while (resultSet.next()) {
+                        deferred.put(resultSet.getString(1), resultSet.getString(2));
+                    }
+                }
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SET maintenance_work_mem = '" + maintenanceWorkMem.replace("'", "''") + "'");
+                    for (Map.Entry<String, String> index : deferred.entrySet()) {
+                        long started = System.nanoTime();
+                        // A consumer restarted meanwhile may have recreated it already
+                        statement.executeUpdate(index.getValue().replaceFirst("^CREATE INDEX ", "CREATE INDEX IF NOT EXISTS "));
+                        try (PreparedStatement delete = connection.prepareStatement(
+                                "DELETE FROM import_deferred_indexes WHERE name = ?")) {
+                            delete.setString(1, index.getKey());
+                            delete.executeUpdate();
+                        }
+                        System.out.println("[BulkImport] " + bucket + ": rebuilt " + index.getKey() + " in "
+                                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+                    }
+                    statement.executeUpdate("ANALYZE emails");
+                }
+            });
+        }
+
+        /**
+         * Sets the TOAST compression of encrypted_body and the table's toast_tuple_target
+         * when they differ from the configured ones. Both only affect rows written afterwards,
+         * so nothing is rewritten: older rows keep their compression until they are deleted.
+         * A server without the requested method (lz4 needs PostgreSQL 14 built with it) keeps
+         * its default, which is logged rather than failing the consumer.
+         */
+        private void applyBodyStorage(Connection connection) throws SQLException {
+            String current;
+            String reloptions;
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("""
+                         SELECT a.attcompression, array_to_string(c.reloptions, ',')
+                         FROM pg_attribute a JOIN pg_class c ON c.oid = a.attrelid
+                         WHERE a.attrelid = 'emails'::regclass AND a.attname = 'encrypted_body'
+                         """)) {
+                resultSet.next();
+                current = switch (Objects.toString(resultSet.getString(1), "")) {
+                    case "l" -> "lz4";
+                    case "p" -> "pglz";
+                    default -> "default";
+                };
+                reloptions = Objects.toString(resultSet.getString(2), "");
+            }
+            if (!current.equals(bodyCompression)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("ALTER TABLE emails ALTER COLUMN encrypted_body SET COMPRESSION " + bodyCompression);
+                    System.out.println("[DatabaseClient] encrypted_body compression set to " + bodyCompression);
+                } catch (SQLException ex) {
+                    System.err.println("[DatabaseClient] Keeping " + current + " compression for encrypted_body: "
+                            + ex.getMessage());
+                }
+            }
+            if (toastTupleTarget > 0 && !reloptions.contains("toast_tuple_target=" + toastTupleTarget)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("ALTER TABLE emails SET (toast_tuple_target = " + toastTupleTarget + ")");
+                }
+            }
+        }
+
         private void executeWithRetry(SqlConsumer<Connection> operation) throws SQLException, InterruptedException {
+            executeWithRetry(maxRetries, operation);
+        }
+
+        private void executeWithRetry(int attempts, SqlConsumer<Connection> operation)
+                throws SQLException, InterruptedException {
             SQLException lastException = null;
-            for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            for (int attempt = 1; attempt <= attempts; attempt++) {
                 try (Connection connection = openConnection()) {
                     operation.accept(connection);
                     return;
                 } catch (SQLException ex) {
                     lastException = ex;
                     System.err.println("[DatabaseClient] Attempt " + attempt + " failed: " + ex.getMessage());
-                    if (attempt < maxRetries) {
+                    if (!isTransient(ex)) {
+                        throw ex;
+                    }
+                    if (attempt < attempts) {
                         Thread.sleep(retryDelayMillis);
                     }
                 }
@@ -214,6 +1451,28 @@ public class ConsumerApplication {
             throw lastException != null ? lastException : new SQLException("Unknown database error");
         }
 
+        /**
+         * Whether {@code ex} may succeed when tried again: a lost connection (SQLState class
+         * 08), a serialization failure or deadlock (40), insufficient resources (53) or an
+         * operator intervention such as a restart (57). Driver errors without a state count
+         * as transient, as they come from its I/O.
+         */
+        static boolean isTransient(SQLException ex) {
+            String state = sqlState(ex);
+            return state == null || state.startsWith("08") || state.startsWith("40")
+                    || state.startsWith("53") || state.startsWith("57");
+        }
+
+        /** The first state in the chain; batch failures carry the failed statement's as the next exception. */
+        private static String sqlState(SQLException ex) {
+            for (SQLException current = ex; current != null; current = current.getNextException()) {
+                if (current.getSQLState() != null) {
+                    return current.getSQLState();
+                }
+            }
+            return null;
+        }
+
         private Connection openConnection() throws SQLException {
             if (username == null || username.isBlank()) {
                 return java.sql.DriverManager.getConnection(jdbcUrl);
@@ -241,6 +1500,20 @@ public class ConsumerApplication {
                         """);
                     statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_emails_created_at ON emails(created_at DESC)");
                     statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_emails_domain_created ON emails(domain, created_at DESC)");
+                    // Large bodies are kept in the blob store and only referenced here
+                    statement.executeUpdate("ALTER TABLE emails ADD COLUMN IF NOT EXISTS blob_ref TEXT");
+                    statement.executeUpdate("ALTER TABLE emails ADD COLUMN IF NOT EXISTS accepted_at TIMESTAMPTZ");
+                    applyBodyStorage(connection);
+                    statement.executeUpdate(STATS_TABLE_DDL);
+                    statement.executeUpdate("""
+                        CREATE TABLE IF NOT EXISTS stream_offsets (
+                            consumer TEXT NOT NULL,
+                            stream TEXT NOT NULL,
+                            committed_offset BIGINT NOT NULL,
+                            updated_at TIMESTAMPTZ NOT NULL,
+                            PRIMARY KEY (consumer, stream)
+                        )
+                        """);
                     schemaEnsured = true;
                 } catch (SQLException ex) {
                     schemaEnsured = false;
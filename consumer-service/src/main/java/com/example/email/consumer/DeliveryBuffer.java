@@ -0,0 +1,180 @@
+package com.example.email.consumer;
+
+import com.example.email.consumer.ConsumerApplication.PendingDelivery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The consumer's local buffer of deliveries waiting to be inserted, in one lane per queue
+ * partition. Batches always take the waiting deliveries in priority order, then arrival order.
+ * <p>
+ * A partition's deliveries are handed to one worker at a time: once a batch holds some of
+ * them, the rest wait until that batch is {@link #done}. Emails to one recipient, which always
+ * hash to the same partition, are therefore committed in the order they were queued.
+ * Unpartitioned deliveries ({@link #UNPARTITIONED}) may be in any number of batches at once.
+ */
+final class DeliveryBuffer {
+
+    static final int UNPARTITIONED = -1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Integer, PriorityQueue<PendingDelivery>> lanes = new HashMap<>();
+    /** Partitions with deliveries in a batch that is not done yet. */
+    private final Set<Integer> taken = new HashSet<>();
+    /** Partitions whose lease may have passed to another replica since they were revoked. */
+    private final Set<Integer> revoked = new HashSet<>();
+    private int size;
+
+    void add(PendingDelivery pending) {
+        lock.lock();
+        try {
+            lanes.computeIfAbsent(pending.partition(), partition -> new PriorityQueue<>()).add(pending);
+            size++;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Deliveries waiting to be taken. */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to {@code max} deliveries into the empty {@code batch}, waiting up to
+     * {@code timeoutMillis} for the first one. Deliveries of partitions in other workers'
+     * batches are left waiting.
+     */
+    void take(List<PendingDelivery> batch, int max, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Set<Integer> own = new HashSet<>();
+        lock.lockInterruptibly();
+        try {
+            while (batch.size() < max) {
+                PriorityQueue<PendingDelivery> lane = nextLane(own);
+                if (lane != null) {
+                    PendingDelivery pending = lane.poll();
+                    size--;
+                    if (pending.partition() != UNPARTITIONED) {
+                        taken.add(pending.partition());
+                        own.add(pending.partition());
+                    }
+                    batch.add(pending);
+                } else if (!batch.isEmpty() || remaining <= 0) {
+                    return;
+                } else {
+                    remaining = changed.awaitNanos(remaining);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Hands the partitions of a batch taken with {@link #take} back to the other workers. */
+    void done(List<PendingDelivery> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            for (PendingDelivery pending : batch) {
+                taken.remove(pending.partition());
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes and returns the deliveries of {@code partition} that are still waiting. */
+    List<PendingDelivery> remove(int partition) {
+        lock.lock();
+        try {
+            PriorityQueue<PendingDelivery> lane = lanes.remove(partition);
+            if (lane == null) {
+                return List.of();
+            }
+            size -= lane.size();
+            return new ArrayList<>(lane);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the deliveries of {@code partition} that are still waiting, and marks
+     * it revoked until {@link #admit}: batches holding its deliveries must not be committed
+     * any more, as the next holder of the lease may be storing the emails queued after them.
+     */
+    List<PendingDelivery> revoke(int partition) {
+        lock.lock();
+        try {
+            revoked.add(partition);
+            return remove(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Lets the deliveries of a partition claimed again be committed. */
+    void admit(int partition) {
+        lock.lock();
+        try {
+            revoked.remove(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean revoked(int partition) {
+        lock.lock();
+        try {
+            return revoked.contains(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True when no delivery of {@code partition} is waiting or in a batch. */
+    boolean idle(int partition) {
+        lock.lock();
+        try {
+            PriorityQueue<PendingDelivery> lane = lanes.get(partition);
+            return (lane == null || lane.isEmpty()) && !taken.contains(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The lane whose head comes first among those this batch may take from, or null. */
+    private PriorityQueue<PendingDelivery> nextLane(Set<Integer> own) {
+        PriorityQueue<PendingDelivery> next = null;
+        for (Map.Entry<Integer, PriorityQueue<PendingDelivery>> entry : lanes.entrySet()) {
+            PriorityQueue<PendingDelivery> lane = entry.getValue();
+            if (lane.isEmpty() || (taken.contains(entry.getKey()) && !own.contains(entry.getKey()))) {
+                continue;
+            }
+            if (next == null || lane.peek().compareTo(next.peek()) < 0) {
+                next = lane;
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,399 @@
+package com.example.email.consumer;
+
+import com.example.email.consumer.ConsumerApplication.DatabaseClient;
+import com.example.email.consumer.ConsumerApplication.PendingDelivery;
+import com.example.email.consumer.ConsumerApplication.Settlement;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a consumer's partitioned queues among its running replicas, so a domain's traffic is
+ * consumed in parallel while each recipient's emails stay in order.
+ * <p>
+ * The REST API sets the {@value ConsumerApplication#PARTITION_KEY_HEADER} header to the
+ * recipient address. Behind each email exchange the consumer binds a consistent-hash exchange
+ * of its own, which spreads its messages over {@code partitions} queues by that header, so an
+ * address always lands in the same queue. Each partition is read by one replica at a time,
+ * the holder of its lease in the bucket's database:
+ * <ul>
+ *   <li>every third of {@code leaseMillis} a replica renews its heartbeat and its leases, and
+ *   works out its share of the partitions from the number of live replicas;</li>
+ *   <li>above its share it stops consuming a partition, waits until the buffered deliveries
+ *   of it are committed and only then gives the lease up, so the next holder starts exactly
+ *   where it stopped;</li>
+ *   <li>below its share it claims free leases, and those of replicas that stopped renewing.</li>
+ * </ul>
+ * A replica fences itself: once a lease period has passed since the start of its last
+ * successful renewal, the earliest moment another replica may claim its partitions, it stops
+ * consuming all of them and hands the deliveries still waiting back to the queue, without
+ * waiting for the database to answer. Partitions it finds taken over later are handed back
+ * the same way.
+ */
+final class PartitionCoordinator {
+
+    /** The live replicas, this replica's place among them, and the partitions it holds. */
+    record Leases(int replicas, int rank, Set<Integer> held) {
+    }
+
+    private final String consumerName;
+    private final String replica;
+    private final int partitions;
+    private final long leaseMillis;
+    private final DatabaseClient databaseClient;
+    private final DeliveryBuffer buffer;
+    private final AtomicLong arrivals;
+    private final Channel regularChannel;
+    private final Channel priorityChannel;
+    /** Queues of the partitions being consumed, whose depth the controller reads. */
+    private final List<String> queues = new CopyOnWriteArrayList<>();
+    /** Partitions being consumed, and those given up whose deliveries are not all committed yet. */
+    private final NavigableMap<Integer, Claim> consuming = new TreeMap<>();
+    private final NavigableMap<Integer, Claim> draining = new TreeMap<>();
+    private final ScheduledExecutorService scheduler;
+    /** Runs {@link #fence} while a renewal may be stuck holding this object's lock. */
+    private final ScheduledExecutorService watchdog;
+    /** The claims of both maps, for the watchdog. */
+    private volatile List<Claim> claims = List.of();
+    /** {@link System#nanoTime} at which the leases may have expired, unless renewed again. */
+    private volatile long fenceAt;
+    private volatile boolean fenced;
+    private boolean stopped;
+
+    PartitionCoordinator(String consumerName, String replica, int partitions, long leaseMillis,
+                         DatabaseClient databaseClient, DeliveryBuffer buffer, AtomicLong arrivals,
+                         Channel regularChannel, Channel priorityChannel) {
+        this.consumerName = consumerName;
+        this.replica = replica;
+        this.partitions = partitions;
+        this.leaseMillis = leaseMillis;
+        this.databaseClient = databaseClient;
+        this.buffer = buffer;
+        this.arrivals = arrivals;
+        this.regularChannel = regularChannel;
+        this.priorityChannel = priorityChannel;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "partition-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "partition-fence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    List<String> queues() {
+        return queues;
+    }
+
+    /**
+     * Declares the hash exchanges, every partition queue and the lease rows. The consumer's
+     * unpartitioned queues are unbound, so they stop collecting a copy of the traffic.
+     */
+    void declare(Connection connection, String bindingKey) throws IOException, SQLException, InterruptedException {
+        databaseClient.preparePartitions(consumerName, partitions);
+        for (boolean priority : new boolean[] {false, true}) {
+            String source = priority ? ConsumerApplication.PRIORITY_EXCHANGE : ConsumerApplication.EXCHANGE;
+            String exchange = consumerName + (priority ? "-priority-partitions" : "-partitions");
+            try {
+                regularChannel.exchangeDeclare(exchange, "x-consistent-hash", true, false,
+                        Map.of("hash-header", ConsumerApplication.PARTITION_KEY_HEADER));
+            } catch (IOException ex) {
+                throw new IOException("Cannot declare " + exchange
+                        + ", is the rabbitmq_consistent_hash_exchange plugin enabled?", ex);
+            }
+            regularChannel.exchangeBind(exchange, source, bindingKey);
+            for (int partition = 0; partition < partitions; partition++) {
+                String queue = queueName(priority, partition);
+                regularChannel.queueDeclare(queue, true, false, false, null);
+                // Equal weights, so every queue gets the same share of the hash ring
+                regularChannel.queueBind(queue, exchange, "1");
+            }
+            retire(connection, consumerName + (priority ? "-priority-queue" : "-queue"), source, bindingKey);
+        }
+    }
+
+    void start() {
+        fenceAt = System.nanoTime();
+        scheduler.scheduleWithFixedDelay(this::rebalance, 0, Math.max(1, leaseMillis / 3), TimeUnit.MILLISECONDS);
+        watchdog.scheduleWithFixedDelay(this::fenceIfExpired, 0, Math.max(1, leaseMillis / 10), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops consuming and gives every lease up once the buffered deliveries are committed, or
+     * after one lease period, so the other replicas take the partitions over without waiting
+     * for the leases to expire. Run on shutdown.
+     */
+    void stop() {
+        scheduler.shutdownNow();
+        watchdog.shutdownNow();
+        synchronized (this) {
+            stopped = true;
+            consuming.forEach((partition, claim) -> {
+                claim.cancel();
+                draining.put(partition, claim);
+            });
+            consuming.clear();
+            queues.clear();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            try {
+                while (System.nanoTime() < deadline && !draining.keySet().stream().allMatch(buffer::idle)) {
+                    Thread.sleep(100);
+                }
+                // Batches still retrying give up, as the next holders may start any moment
+                draining.keySet().forEach(partition -> requeue(buffer.revoke(partition)));
+                databaseClient.leavePartitions(consumerName, replica);
+                System.out.println("[PartitionCoordinator] Released partitions " + draining.keySet());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException ex) {
+                System.err.println("[PartitionCoordinator] Leases left to expire: " + ex.getMessage());
+            }
+        }
+    }
+
+    private synchronized void rebalance() {
+        if (stopped) {
+            return;
+        }
+        try {
+            long renewalStarted = System.nanoTime();
+            Leases leases = databaseClient.renewLeases(consumerName, replica, leaseMillis);
+            fenceAt = renewalStarted + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            if (fenced) {
+                // The watchdog cancelled every claim; they drain and are released like given-up ones
+                draining.putAll(consuming);
+                consuming.clear();
+                fenced = false;
+            }
+            lost(consuming, leases.held());
+            lost(draining, leases.held());
+
+            for (Iterator<Map.Entry<Integer, Claim>> it = draining.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Claim> entry = it.next();
+                if (entry.getValue().cancelled() && buffer.idle(entry.getKey())) {
+                    databaseClient.releasePartition(consumerName, replica, entry.getKey());
+                    it.remove();
+                    System.out.println("[PartitionCoordinator] Released partition " + entry.getKey());
+                }
+            }
+
+            int replicas = Math.max(1, leases.replicas());
+            int share = partitions / replicas + (leases.rank() < partitions % replicas ? 1 : 0);
+            while (consuming.size() > share) {
+                int partition = consuming.lastKey();
+                Claim claim = consuming.remove(partition);
+                claim.cancel();
+                queues.removeAll(claim.queues());
+                draining.put(partition, claim);
+                System.out.println("[PartitionCoordinator] Giving up partition " + partition + " (share " + share
+                        + " of " + partitions + " with " + replicas + " replicas)");
+            }
+            if (consuming.size() < share) {
+                for (int partition : new TreeSet<>(databaseClient.claimPartitions(
+                        consumerName, replica, partitions, share - consuming.size(), leaseMillis))) {
+                    Claim claim = new Claim(partition);
+                    buffer.admit(partition);
+                    try {
+                        claim.consume();
+                    } catch (IOException ex) {
+                        claim.cancel();
+                        databaseClient.releasePartition(consumerName, replica, partition);
+                        throw ex;
+                    }
+                    consuming.put(partition, claim);
+                    queues.addAll(claim.queues());
+                    System.out.println("[PartitionCoordinator] Claimed partition " + partition);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            System.err.println("[PartitionCoordinator] Rebalancing failed: " + ex.getMessage());
+        } finally {
+            List<Claim> all = new ArrayList<>(consuming.values());
+            all.addAll(draining.values());
+            claims = List.copyOf(all);
+        }
+    }
+
+    /**
+     * Stops consuming every partition once the leases may have expired without a renewal.
+     * Deliberately takes no lock: a stuck renewal holds it.
+     */
+    private void fenceIfExpired() {
+        List<Claim> current = claims;
+        if (fenced || current.isEmpty() || System.nanoTime() - fenceAt < 0) {
+            return;
+        }
+        fenced = true;
+        for (Claim claim : current) {
+            claim.cancel();
+            requeue(buffer.revoke(claim.partition));
+        }
+        queues.clear();
+        System.err.println("[PartitionCoordinator] Leases not renewed within " + leaseMillis
+                + " ms, stopped consuming partitions " + current.stream().map(claim -> claim.partition).toList());
+    }
+
+    /** Stops consuming the partitions of {@code claims} whose lease another replica has taken. */
+    private void lost(Map<Integer, Claim> claims, Set<Integer> held) {
+        for (Iterator<Map.Entry<Integer, Claim>> it = claims.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Claim> entry = it.next();
+            if (held.contains(entry.getKey())) {
+                continue;
+            }
+            it.remove();
+            entry.getValue().cancel();
+            queues.removeAll(entry.getValue().queues());
+            requeue(buffer.revoke(entry.getKey()));
+            System.err.println("[PartitionCoordinator] Lease of partition " + entry.getKey() + " was taken over");
+        }
+    }
+
+    private static void requeue(List<PendingDelivery> deliveries) {
+        deliveries.forEach(pending -> ConsumerApplication.settle(pending, Settlement.REQUEUE));
+    }
+
+    private String queueName(boolean priority, int partition) {
+        return consumerName + (priority ? "-priority-queue-" : "-queue-") + partition;
+    }
+
+    /** Unbinds a queue of unpartitioned consumption, warning about emails left in it. */
+    private static void retire(Connection connection, String queue, String exchange, String bindingKey)
+            throws IOException {
+        // A passive declare of a missing queue closes the channel it ran on
+        Channel channel = connection.createChannel();
+        try {
+            int left = channel.queueDeclarePassive(queue).getMessageCount();
+            channel.queueUnbind(queue, exchange, bindingKey);
+            if (left > 0) {
+                System.err.println("[PartitionCoordinator] " + queue + " still holds " + left
+                        + " emails that partitioned replicas do not read");
+            }
+        } catch (IOException missing) {
+            // Never created, nothing to retire
+        } finally {
+            channel.abort();
+        }
+    }
+
+    /** The consumers of one partition's regular and priority queues. */
+    private final class Claim {
+        private final int partition;
+        private final PartitionConsumer regular;
+        private final PartitionConsumer priority;
+
+        Claim(int partition) {
+            this.partition = partition;
+            this.regular = new PartitionConsumer(regularChannel, queueName(false, partition), false, partition);
+            this.priority = new PartitionConsumer(priorityChannel, queueName(true, partition), true, partition);
+        }
+
+        void consume() throws IOException {
+            regular.consume();
+            priority.consume();
+        }
+
+        void cancel() {
+            regular.cancel();
+            priority.cancel();
+        }
+
+        /** True once no more deliveries can arrive for the partition. */
+        boolean cancelled() {
+            return regular.cancelled && priority.cancelled;
+        }
+
+        List<String> queues() {
+            return List.of(regular.queue, priority.queue);
+        }
+    }
+
+    /**
+     * Buffers the deliveries of one partition queue. Cancel-ok is dispatched after the
+     * deliveries that preceded it, so once it arrived the buffer holds all of them.
+     */
+    private final class PartitionConsumer extends DefaultConsumer {
+        private final String queue;
+        private final boolean priority;
+        private final int partition;
+        private String tag;
+        /** Cancel was requested; the watchdog and the coordinator may both ask. */
+        private boolean cancelling;
+        private volatile boolean cancelled;
+
+        PartitionConsumer(Channel channel, String queue, boolean priority, int partition) {
+            super(channel);
+            this.queue = queue;
+            this.priority = priority;
+            this.partition = partition;
+        }
+
+        void consume() throws IOException {
+            tag = getChannel().basicConsume(queue, false, this);
+        }
+
+        synchronized void cancel() {
+            if (cancelling) {
+                return;
+            }
+            cancelling = true;
+            if (tag == null) {
+                cancelled = true;
+                return;
+            }
+            try {
+                getChannel().basicCancel(tag);
+            } catch (IOException | ShutdownSignalException ex) {
+                // The channel is gone, and with it every unacknowledged delivery
+                cancelled = true;
+            }
+            tag = null;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            buffer.add(new PendingDelivery(priority, arrivals.getAndIncrement(), getChannel(),
+                    new Delivery(envelope, properties, body), partition));
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            cancelled = true;
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            System.err.println("[PartitionCoordinator] " + queue + " was deleted");
+            cancelled = true;
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            cancelled = true;
+        }
+    }
+}
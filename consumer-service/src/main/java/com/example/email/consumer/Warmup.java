@@ -0,0 +1,87 @@
+package com.example.email.consumer;
+
+import com.example.email.proto.QueuedEmail;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decodes synthetic deliveries in every wire format the publishers use (JSON and protobuf,
+ * plain and LZ4-compressed) before the consumer subscribes, so a freshly scaled-out
+ * consumer does not work through a backlog from the interpreter. Postgres and RabbitMQ are
+ * not touched.
+ */
+final class Warmup {
+
+    private static final int[] BODY_SIZES = {256, 4 * 1024, 64 * 1024};
+
+    private Warmup() {
+    }
+
+    /**
+     * @return the number of body bytes decoded, so the work cannot be optimized away
+     */
+    static long run(int iterations) throws IOException {
+        Delivery[] deliveries = deliveries();
+        long decoded = 0;
+        for (int i = 0; i < iterations; i++) {
+            Delivery delivery = deliveries[i % deliveries.length];
+            ConsumerApplication.StoredEmail email = ConsumerApplication.toStoredEmail(
+                    ConsumerApplication.decode(delivery), delivery.getEnvelope().getRoutingKey());
+            decoded += email.bodySize;
+        }
+        return decoded;
+    }
+
+    private static Delivery[] deliveries() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        LZ4Compressor lz4 = LZ4Factory.fastestInstance().fastCompressor();
+        Delivery[] deliveries = new Delivery[BODY_SIZES.length * 4];
+        int index = 0;
+        for (int size : BODY_SIZES) {
+            byte[] raw = new byte[size];
+            ThreadLocalRandom.current().nextBytes(raw);
+            String encrypted = Base64.getEncoder().encodeToString(raw);
+            long acceptedAt = System.currentTimeMillis();
+
+            byte[] json = mapper.writeValueAsBytes(Map.of(
+                    "address", "warmup@example.com",
+                    "encryptedBody", encrypted,
+                    "acceptedAt", acceptedAt,
+                    "bodySize", size));
+            byte[] protobuf = QueuedEmail.newBuilder()
+                    .setAddress("warmup@example.com")
+                    .setEncryptedBody(ByteString.copyFromUtf8(encrypted))
+                    .setAcceptedAtMillis(acceptedAt)
+                    .setBodySize(size)
+                    .build()
+                    .toByteArray();
+
+            deliveries[index++] = delivery(null, json, null);
+            deliveries[index++] = delivery(ConsumerApplication.CONTENT_TYPE_PROTOBUF, protobuf, null);
+            deliveries[index++] = delivery(null, lz4.compress(json), json.length);
+            deliveries[index++] = delivery(ConsumerApplication.CONTENT_TYPE_PROTOBUF, lz4.compress(protobuf), protobuf.length);
+        }
+        return deliveries;
+    }
+
+    private static Delivery delivery(String contentType, byte[] body, Integer originalLength) {
+        AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder()
+                .contentType(contentType != null ? contentType : "application/json");
+        if (originalLength != null) {
+            properties.contentEncoding(ConsumerApplication.CONTENT_ENCODING_LZ4)
+                    .headers(Map.of(ConsumerApplication.ORIGINAL_LENGTH_HEADER, originalLength));
+        }
+        return new Delivery(new Envelope(0, false, ConsumerApplication.EXCHANGE, "warmup.example.com"),
+                properties.build(), body);
+    }
+}
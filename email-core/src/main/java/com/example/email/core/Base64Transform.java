@@ -0,0 +1,104 @@
+package com.example.email.core;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Base64 "encryption" that reads the request body through a read-only view of the
+ * received {@link ByteString} and writes into a per-thread pooled buffer, so the hot
+ * path allocates no intermediate String or byte[] copies.
+ *
+ * The returned ByteString wraps the pooled buffer directly. It stays valid only until
+ * the same thread encodes again, which is safe for replies handed to
+ * {@code StreamObserver.onNext} on a network transport: gRPC serializes the message into
+ * its own frame buffer before onNext returns. The in-process transport does not, so its
+ * replies need {@link #encodeRetained}.
+ */
+public final class Base64Transform {
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte PAD = '=';
+
+    /** Buffers above this size are not kept per thread, so one huge body does not pin memory. */
+    private static final int MAX_POOLED_BYTES = 1024 * 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+
+    private Base64Transform() {
+    }
+
+    public static int encodedLength(int inputLength) {
+        return 4 * ((inputLength + 2) / 3);
+    }
+
+    public static ByteString encode(ByteString input) {
+        ByteBuffer source = input.asReadOnlyByteBuffer();
+        int length = encodedLength(source.remaining());
+        byte[] target = pooledBuffer(length);
+        encode(source, target, 0);
+        return UnsafeByteOperations.unsafeWrap(target, 0, length);
+    }
+
+    /**
+     * Same as {@link #encode(ByteString)} into a buffer of its own, for callers that keep the
+     * result after encoding more on the same thread.
+     */
+    public static ByteString encodeRetained(ByteString input) {
+        ByteBuffer source = input.asReadOnlyByteBuffer();
+        byte[] target = new byte[encodedLength(source.remaining())];
+        encode(source, target, 0);
+        return UnsafeByteOperations.unsafeWrap(target);
+    }
+
+    /**
+     * Reverses {@link #encode(ByteString)} into a fresh buffer, which unlike encode output
+     * may be kept. Malformed input throws {@link IllegalArgumentException}.
+     */
+    public static ByteString decode(ByteString input) {
+        return UnsafeByteOperations.unsafeWrap(Base64.getDecoder().decode(input.asReadOnlyByteBuffer()));
+    }
+
+    /**
+     * Encodes every remaining byte of {@code source} into {@code target} starting at
+     * {@code offset}, padding the final group. Returns the number of bytes written.
+     */
+    public static int encode(ByteBuffer source, byte[] target, int offset) {
+        int out = offset;
+        while (source.remaining() >= 3) {
+            int bits = (source.get() & 0xff) << 16 | (source.get() & 0xff) << 8 | (source.get() & 0xff);
+            target[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            target[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            target[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+            target[out++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = source.remaining();
+        if (remaining > 0) {
+            int bits = (source.get() & 0xff) << 16;
+            if (remaining == 2) {
+                bits |= (source.get() & 0xff) << 8;
+            }
+            target[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            target[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            target[out++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : PAD;
+            target[out++] = PAD;
+        }
+        return out - offset;
+    }
+
+    /** This thread's scratch buffer, at least {@code length} bytes long. */
+    public static byte[] pooledBuffer(int length) {
+        if (length > MAX_POOLED_BYTES) {
+            return new byte[length];
+        }
+        byte[] pooled = BUFFER.get();
+        if (pooled.length < length) {
+            pooled = new byte[Math.min(MAX_POOLED_BYTES, Math.max(length, pooled.length * 2))];
+            BUFFER.set(pooled);
+        }
+        return pooled;
+    }
+}
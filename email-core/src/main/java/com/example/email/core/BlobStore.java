@@ -0,0 +1,111 @@
+package com.example.email.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed blob store on the local filesystem. Blobs are written to a temporary
+ * file while their SHA-256 is computed, then moved to {@code <root>/<ab>/<cd>/<hash>};
+ * identical contents therefore share one file. References have the form
+ * {@code sha256:<hex>}.
+ */
+public final class BlobStore {
+
+    public static final String REF_PREFIX = "sha256:";
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path root;
+    private final Path tmp;
+
+    public BlobStore(Path root) throws IOException {
+        this.root = root;
+        this.tmp = root.resolve("tmp");
+        Files.createDirectories(tmp);
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    Writer newWriter() throws IOException {
+        return new Writer(Files.createTempFile(tmp, "upload-", ".part"));
+    }
+
+    /** References come from clients: anything but a lowercase SHA-256 could leave the root. */
+    Path resolve(String ref) {
+        String hex = ref == null || !ref.startsWith(REF_PREFIX) ? null : ref.substring(REF_PREFIX.length());
+        if (hex == null || !HASH.matcher(hex).matches()) {
+            throw new IllegalArgumentException("Not a blob reference: " + ref);
+        }
+        return root.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(hex);
+    }
+
+    public long size(String ref) throws IOException {
+        return Files.size(resolve(ref));
+    }
+
+    public byte[] read(String ref) throws IOException {
+        return Files.readAllBytes(resolve(ref));
+    }
+
+    final class Writer implements AutoCloseable {
+        private final Path file;
+        private final OutputStream out;
+        private final MessageDigest digest;
+        private long size;
+        private boolean done;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            this.out = Files.newOutputStream(file);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            digest.update(bytes, offset, length);
+            size += length;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /** Closes the file and moves it to its content address, returning the reference. */
+        String commit() throws IOException {
+            out.close();
+            done = true;
+            String ref = REF_PREFIX + HexFormat.of().formatHex(digest.digest());
+            Path target = resolve(ref);
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Same content already stored
+                Files.deleteIfExists(file);
+            }
+            return ref;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                out.close();
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
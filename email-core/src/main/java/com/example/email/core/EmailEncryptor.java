@@ -0,0 +1,107 @@
+package com.example.email.core;
+
+import com.example.email.proto.DecryptReply;
+import com.example.email.proto.DecryptRequest;
+import com.example.email.proto.SendEmailReply;
+import com.example.email.proto.SendEmailRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+
+/**
+ * The encryption service's operations, independent of how they are called: grpc-service
+ * serves them over gRPC, and rest-api can run them in process. Requests and replies are the
+ * protocol messages, so both paths produce the same replies, errors included.
+ */
+public final class EmailEncryptor {
+
+    private final BlobStore blobStore;
+    private final int inlineLimit;
+    private final int decryptMaxBytes;
+
+    /**
+     * @param inlineLimit     encoded size above which streamed bodies go to the blob store
+     * @param decryptMaxBytes decrypted size above which blob bodies are refused, so a reply
+     *                        stays within message limits
+     */
+    public EmailEncryptor(BlobStore blobStore, int inlineLimit, int decryptMaxBytes) {
+        this.blobStore = blobStore;
+        this.inlineLimit = inlineLimit;
+        this.decryptMaxBytes = decryptMaxBytes;
+    }
+
+    /** Encrypts a whole body into a reply that may be kept. */
+    public SendEmailReply encrypt(SendEmailRequest request) {
+        return encrypt(request, true);
+    }
+
+    /**
+     * Same as {@link #encrypt(SendEmailRequest)}, with the ciphertext in this thread's pooled
+     * buffer: the reply must be serialized before the thread encrypts again. Only for transports
+     * that serialize in {@code onNext}, such as Netty; the in-process one passes the message on.
+     */
+    public SendEmailReply encryptForReply(SendEmailRequest request) {
+        return encrypt(request, false);
+    }
+
+    /** A streamed body, fed chunk by chunk and turned into a reply by {@link #finish}. */
+    public StreamingUpload newUpload() {
+        return new StreamingUpload(blobStore, inlineLimit);
+    }
+
+    public SendEmailReply finish(StreamingUpload upload) throws IOException {
+        StreamingUpload.Result result = upload.finish();
+        return SendEmailReply.newBuilder()
+                .setStatus("SUCCESS")
+                .setDetails("Encrypted " + result.bodySize() + " bytes")
+                .setEncryptedBody(result.encryptedBody())
+                .setBlobRef(result.blobRef())
+                .setBodySize(result.bodySize())
+                .build();
+    }
+
+    /**
+     * Decrypts one stored email. Failures (malformed ciphertext, missing or oversized blob)
+     * are reported in the reply, so one damaged row does not fail a page.
+     */
+    public DecryptReply decrypt(DecryptRequest request) {
+        DecryptReply.Builder reply = DecryptReply.newBuilder().setId(request.getId());
+        try {
+            ByteString ciphertext = request.getEncryptedBody();
+            if (!request.getBlobRef().isEmpty()) {
+                if (blobStore.size(request.getBlobRef()) / 4 * 3 > decryptMaxBytes) {
+                    return reply.setError("Body larger than " + decryptMaxBytes + " bytes").build();
+                }
+                ciphertext = UnsafeByteOperations.unsafeWrap(blobStore.read(request.getBlobRef()));
+            }
+            return reply.setBody(Base64Transform.decode(ciphertext)).build();
+        } catch (IOException | IllegalArgumentException e) {
+            return reply.setError("Failed: " + e.getMessage()).build();
+        }
+    }
+
+    /** The reply reporting a failure, as the service sends it. */
+    public static SendEmailReply error(Exception e) {
+        return SendEmailReply.newBuilder()
+                .setStatus("ERROR")
+                .setDetails("Failed: " + e.getMessage())
+                .build();
+    }
+
+    private static SendEmailReply encrypt(SendEmailRequest request, boolean retained) {
+        try {
+            ByteString encrypted = retained
+                    ? Base64Transform.encodeRetained(request.getBody())
+                    : Base64Transform.encode(request.getBody());
+            return SendEmailReply.newBuilder()
+                    .setStatus("SUCCESS")
+                    .setDetails("Encrypted " + encrypted.size() + " bytes")
+                    .setEncryptedBody(encrypted)
+                    .setBodySize(request.getBody().size())
+                    .build();
+        } catch (RuntimeException e) {
+            return error(e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.email.core;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts one client-streamed body chunk by chunk. Base64 works on 3-byte groups, so up
+ * to two trailing bytes of each chunk are carried into the next one. Output is kept in
+ * memory while it stays below the inline limit and is spilled to the {@link BlobStore}
+ * once it grows past it, so memory use per upload is bounded by the chunk size.
+ */
+public final class StreamingUpload implements AutoCloseable {
+
+    public record Result(String address, long bodySize, ByteString encryptedBody, String blobRef) {
+    }
+
+    private final BlobStore blobStore;
+    private final int inlineLimit;
+    private final byte[] carry = new byte[3];
+    private int carried;
+    private final ByteArrayOutputStream inline = new ByteArrayOutputStream();
+    private BlobStore.Writer blob;
+    private String address = "";
+    private long bodySize;
+
+    /**
+     * @param blobStore where bodies above {@code inlineLimit} encoded bytes go; may be null if
+     *                  the limit is never reached
+     */
+    public StreamingUpload(BlobStore blobStore, int inlineLimit) {
+        this.blobStore = blobStore;
+        this.inlineLimit = inlineLimit;
+    }
+
+    /**
+     * Encrypts the next chunk of the body. Only the first chunk needs to carry the address.
+     * {@code chunk} is not kept, so its buffer may be reused afterwards.
+     */
+    public void accept(String address, ByteString chunk) throws IOException {
+        if (this.address.isEmpty()) {
+            this.address = address;
+        }
+        ByteBuffer data = chunk.asReadOnlyByteBuffer();
+        bodySize += data.remaining();
+
+        byte[] out = Base64Transform.pooledBuffer(Base64Transform.encodedLength(data.remaining() + carried));
+        int written = 0;
+
+        if (carried > 0) {
+            while (carried < 3 && data.hasRemaining()) {
+                carry[carried++] = data.get();
+            }
+            if (carried < 3) {
+                return;
+            }
+            written += Base64Transform.encode(ByteBuffer.wrap(carry, 0, 3), out, 0);
+            carried = 0;
+        }
+
+        int whole = data.remaining() - data.remaining() % 3;
+        ByteBuffer groups = data.slice().limit(whole);
+        written += Base64Transform.encode(groups, out, written);
+        data.position(data.position() + whole);
+        while (data.hasRemaining()) {
+            carry[carried++] = data.get();
+        }
+        emit(out, written);
+    }
+
+    public Result finish() throws IOException {
+        if (carried > 0) {
+            byte[] out = Base64Transform.pooledBuffer(4);
+            int written = Base64Transform.encode(ByteBuffer.wrap(carry, 0, carried), out, 0);
+            carried = 0;
+            emit(out, written);
+        }
+        if (blob != null) {
+            String ref = blob.commit();
+            return new Result(address, bodySize, ByteString.EMPTY, ref);
+        }
+        return new Result(address, bodySize, UnsafeByteOperations.unsafeWrap(inline.toByteArray()), "");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (blob != null) {
+            blob.close();
+        }
+    }
+
+    private void emit(byte[] bytes, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (blob == null && inline.size() + length <= inlineLimit) {
+            inline.write(bytes, 0, length);
+            return;
+        }
+        if (blob == null) {
+            blob = blobStore.newWriter();
+            byte[] buffered = inline.toByteArray();
+            blob.write(buffered, 0, buffered.length);
+            inline.reset();
+        }
+        blob.write(bytes, 0, length);
+    }
+}
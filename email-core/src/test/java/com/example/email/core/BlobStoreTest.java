@@ -0,0 +1,55 @@
+package com.example.email.core;
+
+import com.example.email.proto.DecryptReply;
+import com.example.email.proto.DecryptRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void resolvesAStoredBlob() throws IOException {
+        BlobStore store = new BlobStore(root);
+        byte[] content = "hello".getBytes(StandardCharsets.UTF_8);
+        String ref;
+        try (BlobStore.Writer writer = store.newWriter()) {
+            writer.write(content, 0, content.length);
+            ref = writer.commit();
+        }
+        assertEquals(content.length, store.size(ref));
+        assertEquals(root, store.resolve(ref).getParent().getParent().getParent());
+    }
+
+    @Test
+    void rejectsTraversalRef() throws IOException {
+        BlobStore store = new BlobStore(root);
+        assertThrows(IllegalArgumentException.class, () -> store.resolve("sha256:../../etc/passwd"));
+        assertThrows(IllegalArgumentException.class, () -> store.read("sha256:" + "../".repeat(21) + "a"));
+    }
+
+    @Test
+    void rejectsShortRef() throws IOException {
+        BlobStore store = new BlobStore(root);
+        assertThrows(IllegalArgumentException.class, () -> store.resolve("sha256:a"));
+        assertThrows(IllegalArgumentException.class, () -> store.resolve("sha256:"));
+    }
+
+    @Test
+    void reportsBadRefAsDecryptFailure() throws IOException {
+        EmailEncryptor encryptor = new EmailEncryptor(new BlobStore(root), 1024, 1024);
+        DecryptReply reply = encryptor.decrypt(DecryptRequest.newBuilder().setId(7).setBlobRef("sha256:ab").build());
+        assertEquals(7, reply.getId());
+        assertTrue(reply.getError().startsWith("Failed: Not a blob reference"));
+    }
+}
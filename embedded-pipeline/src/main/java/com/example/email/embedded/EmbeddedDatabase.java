@@ -0,0 +1,100 @@
+package com.example.email.embedded;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+/**
+ * The Postgres server holding the pipeline's stores: a private one started from the embedded
+ * binaries, or the server at {@code EMBEDDED_DB_URL} (e.g. {@code jdbc:postgresql://localhost:5432/}),
+ * for hosts where initdb cannot run, such as containers running as root.
+ */
+final class EmbeddedDatabase implements AutoCloseable {
+
+    private final EmbeddedPostgres postgres;
+    private final String baseUrl;
+    private final String user;
+    private final String password;
+
+    private EmbeddedDatabase(EmbeddedPostgres postgres, String baseUrl, String user, String password) {
+        this.postgres = postgres;
+        this.baseUrl = baseUrl;
+        this.user = user;
+        this.password = password;
+    }
+
+    static EmbeddedDatabase start(Map<String, String> env) throws IOException {
+        String externalUrl = env.get("EMBEDDED_DB_URL");
+        if (externalUrl != null && !externalUrl.isBlank()) {
+            String baseUrl = externalUrl.endsWith("/") ? externalUrl : externalUrl + "/";
+            System.out.println("[EmbeddedDatabase] Using Postgres at " + baseUrl);
+            return new EmbeddedDatabase(null, baseUrl,
+                    env.getOrDefault("EMBEDDED_DB_USER", "email_user"),
+                    env.getOrDefault("EMBEDDED_DB_PASS", "email_pass"));
+        }
+        EmbeddedPostgres postgres = EmbeddedPostgres.builder().start();
+        String baseUrl = "jdbc:postgresql://localhost:" + postgres.getPort() + "/";
+        System.out.println("[EmbeddedDatabase] Started Postgres at " + baseUrl);
+        // The embedded cluster trusts local connections
+        return new EmbeddedDatabase(postgres, baseUrl, "postgres", "");
+    }
+
+    String url(String database) {
+        return baseUrl + database;
+    }
+
+    String user() {
+        return user;
+    }
+
+    String password() {
+        return password;
+    }
+
+    /** Creates {@code database} unless it exists; consumers create their tables in it. */
+    void ensureDatabase(String database) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url("postgres"), user, password);
+             PreparedStatement exists = connection.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+            exists.setString(1, database);
+            try (ResultSet rs = exists.executeQuery()) {
+                if (rs.next()) {
+                    return;
+                }
+            }
+            try (Statement create = connection.createStatement()) {
+                create.execute("CREATE DATABASE " + database);
+            }
+            System.out.println("[EmbeddedDatabase] Created database " + database);
+        }
+    }
+
+    /** Emails stored in {@code database}; the table only exists once a consumer stored one. */
+    long countEmails(String database) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url(database), user, password);
+             Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT to_regclass('emails') IS NOT NULL")) {
+                if (!rs.next() || !rs.getBoolean(1)) {
+                    return 0;
+                }
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT count(*) FROM emails")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+}
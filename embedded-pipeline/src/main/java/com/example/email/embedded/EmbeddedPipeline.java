@@ -0,0 +1,133 @@
+package com.example.email.embedded;
+
+import com.example.email.consumer.ConsumerApplication;
+import com.example.email.grpc.GrpcServer;
+import com.example.email.rest.GrpcEmailClient;
+import com.example.email.rest.RestApiApplication;
+import com.github.fridujo.rabbitmq.mock.MockConnectionFactory;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole pipeline in one JVM, for benchmarks and integration tests without Docker:
+ * <ul>
+ *   <li>grpc-service's encryption service, on an in-process gRPC server.</li>
+ *   <li>The REST API, whose {@code grpc.target} names that in-process server.</li>
+ *   <li>An in-memory AMQP broker that routes the topic exchanges the way RabbitMQ does.</li>
+ *   <li>The gmail.com, wp.com and catch-all consumers, each storing into its own database.</li>
+ *   <li>An embedded Postgres (see {@link EmbeddedDatabase}) holding the three stores.</li>
+ * </ul>
+ * Each component is started the way its own main method starts it, from the same environment
+ * variables, so only the transports differ from a deployment. With {@code BENCH_EMAILS} set,
+ * {@link LoadDriver} sends that many emails through the REST API, reports and exits.
+ */
+public final class EmbeddedPipeline {
+
+    static final String GRPC_SERVER_NAME = "email-service";
+
+    /** One consumer and its database per bucket, named as in docker-compose.yml. */
+    record Store(String key, String consumer, String domainFilter, String bucket, String database) {
+    }
+
+    static final List<Store> STORES = List.of(
+            new Store("gmail", "gmail-consumer", "gmail.com", "gmail.com", "gmail_store"),
+            new Store("wp", "wp-consumer", "wp.com", "wp.com", "wp_store"),
+            new Store("other", "other-consumer", "*", "other", "other_store"));
+
+    private EmbeddedPipeline() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> env = new HashMap<>(System.getenv());
+        int benchEmails = Integer.parseInt(env.getOrDefault("BENCH_EMAILS", "0"));
+        if (!env.containsKey("BLOB_DIR")) {
+            env.put("BLOB_DIR", Files.createTempDirectory("embedded-blobs").toString());
+        }
+
+        EmbeddedDatabase database = EmbeddedDatabase.start(env);
+        for (Store store : STORES) {
+            database.ensureDatabase(store.database());
+        }
+
+        // Routing state lives in the factory, so every component must connect through this one
+        MockConnectionFactory broker = new MockConnectionFactory();
+
+        Server grpcServer = InProcessServerBuilder.forName(GRPC_SERVER_NAME)
+                // As in GrpcServer: handlers only hand work to the service executor
+                .directExecutor()
+                .addService(GrpcServer.inProcessService(env))
+                .build()
+                .start();
+        System.out.println("[EmbeddedPipeline] gRPC service in process as " + GRPC_SERVER_NAME);
+
+        // Queues are declared before the REST API can publish; the broker drops unroutable messages
+        for (Store store : STORES) {
+            ConsumerApplication.start(consumerEnv(env, store, database), broker);
+        }
+
+        SpringApplication application = new SpringApplication(RestApiApplication.class);
+        application.addInitializers(context -> {
+            context.getBeanFactory().registerSingleton("embeddedBroker", broker);
+            context.getEnvironment().getPropertySources()
+                    .addFirst(new MapPropertySource("embedded-pipeline", restProperties(database)));
+        });
+        ConfigurableApplicationContext rest = application.run(args);
+        int port = Integer.parseInt(rest.getEnvironment().getProperty("local.server.port", "0"));
+        System.out.println("[EmbeddedPipeline] Ready: REST API on :" + port);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            grpcServer.shutdown();
+            try {
+                grpcServer.awaitTermination(5, TimeUnit.SECONDS);
+                database.close();
+            } catch (Exception e) {
+                System.err.println("[EmbeddedPipeline] Shutdown: " + e.getMessage());
+            }
+        }, "embedded-shutdown"));
+
+        if (benchEmails > 0) {
+            boolean complete = new LoadDriver(port, database).run(
+                    benchEmails,
+                    Integer.parseInt(env.getOrDefault("BENCH_CONCURRENCY", "16")),
+                    Integer.parseInt(env.getOrDefault("BENCH_BODY_BYTES", "256")),
+                    Long.parseLong(env.getOrDefault("BENCH_TIMEOUT_MS", "120000")));
+            SpringApplication.exit(rest);
+            System.exit(complete ? 0 : 1);
+        }
+    }
+
+    /** The consumer's environment in docker-compose.yml, over the inherited tuning variables. */
+    private static Map<String, String> consumerEnv(Map<String, String> env, Store store, EmbeddedDatabase database) {
+        Map<String, String> consumerEnv = new HashMap<>(env);
+        consumerEnv.put("CONSUMER_NAME", store.consumer());
+        consumerEnv.put("DOMAIN_FILTER", store.domainFilter());
+        consumerEnv.put("STORAGE_BUCKET", store.bucket());
+        consumerEnv.put("DB_URL", database.url(store.database()));
+        consumerEnv.put("DB_USER", database.user());
+        consumerEnv.put("DB_PASS", database.password());
+        // Three consumers cannot share one metrics port
+        consumerEnv.put("METRICS_PORT", "0");
+        return consumerEnv;
+    }
+
+    private static Map<String, Object> restProperties(EmbeddedDatabase database) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("encryption.mode", "grpc");
+        properties.put("grpc.target", GrpcEmailClient.IN_PROCESS_PREFIX + GRPC_SERVER_NAME);
+        for (Store store : STORES) {
+            properties.put("storage." + store.key() + ".url", database.url(store.database()));
+            properties.put("storage." + store.key() + ".user", database.user());
+            properties.put("storage." + store.key() + ".password", database.password());
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.email.embedded;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends emails to the REST API from a fixed number of closed-loop clients, then waits until
+ * the consumers have stored every accepted one. Reports how long the API took to accept them
+ * (throughput and latency percentiles) and how long they took to reach Postgres.
+ * Recipients rotate over gmail.com, wp.com and example.com, so all three consumers take load.
+ */
+final class LoadDriver {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String[] DOMAINS = {"gmail.com", "wp.com", "example.com"};
+
+    private final EmbeddedDatabase database;
+    private final URI endpoint;
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    LoadDriver(int port, EmbeddedDatabase database) {
+        this.database = database;
+        this.endpoint = URI.create("http://localhost:" + port + "/api/email");
+    }
+
+    /**
+     * Latency percentiles cover only the requests that completed; if sending outlasts
+     * {@code timeoutMillis} the clients are interrupted and the rest are never sent.
+     *
+     * @return whether every email was sent and every accepted one stored within {@code timeoutMillis}
+     */
+    boolean run(int emails, int concurrency, int bodyBytes, long timeoutMillis)
+            throws InterruptedException, SQLException {
+        long storedBefore = stored();
+        String body = "x".repeat(Math.max(1, bodyBytes));
+        long[] latencies = new long[emails];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger accepted = new AtomicInteger();
+        System.out.println("[LoadDriver] Sending " + emails + " emails of " + bodyBytes + " bytes from "
+                + concurrency + " clients");
+
+        long started = System.nanoTime();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        for (int client = 0; client < concurrency; client++) {
+            clients.execute(() -> {
+                int index;
+                while (!Thread.currentThread().isInterrupted() && (index = next.getAndIncrement()) < emails) {
+                    long sent = System.nanoTime();
+                    boolean ok = send("bench" + index + "@" + DOMAINS[index % DOMAINS.length], body);
+                    if (ok) {
+                        accepted.incrementAndGet();
+                    }
+                    // A request cut short by shutdownNow has no meaningful latency
+                    if (ok || !Thread.currentThread().isInterrupted()) {
+                        latencies[completed.getAndIncrement()] = System.nanoTime() - sent;
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        boolean sentAll = clients.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (!sentAll) {
+            clients.shutdownNow();
+            clients.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        long sendNanos = System.nanoTime() - started;
+
+        // Taken after the clients stopped, so no slot below it is still being written
+        long[] sorted = Arrays.copyOf(latencies, completed.get());
+        Arrays.sort(sorted);
+        if (!sentAll) {
+            System.err.println("[LoadDriver] Sending timed out after " + timeoutMillis + " ms; "
+                    + sorted.length + " of " + emails + " requests completed");
+        }
+        System.out.printf("[LoadDriver] Accepted %d/%d in %d ms (%.0f/s); latency ms p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+                accepted.get(), emails, TimeUnit.NANOSECONDS.toMillis(sendNanos),
+                accepted.get() / (sendNanos / 1e9),
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                percentile(sorted, 1.0));
+
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long stored;
+        while ((stored = stored() - storedBefore) < accepted.get() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        long storeNanos = System.nanoTime() - started;
+        System.out.printf("[LoadDriver] Stored %d/%d in %d ms since the first request (%.0f/s)%n",
+                stored, accepted.get(), TimeUnit.NANOSECONDS.toMillis(storeNanos), stored / (storeNanos / 1e9));
+        return sentAll && stored >= accepted.get();
+    }
+
+    private boolean send(String address, String body) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(endpoint)
+                    .header("Content-Type", "application/json")
+                    .timeout(Duration.ofSeconds(30))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(
+                            MAPPER.writeValueAsBytes(Map.of("address", address, "body", body))))
+                    .build();
+            int status = http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            return status / 100 == 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            System.err.println("[LoadDriver] Request for " + address + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private long stored() throws SQLException {
+        long total = 0;
+        for (EmbeddedPipeline.Store store : EmbeddedPipeline.STORES) {
+            total += database.countEmails(store.database());
+        }
+        return total;
+    }
+
+    private static double percentile(long[] sortedNanos, double quantile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,369 @@
+package com.example.email.grpc;
+
+import com.example.email.proto.Priority;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size pool shared fairly between sender domains. Each domain has its own queue (lane)
+ * and idle threads pick lanes by deficit round-robin: a lane is credited
+ * {@code weight × quantum} nanoseconds per turn and runs tasks while its credit lasts. A task
+ * is charged the lane's average run time when it starts and corrected by its actual run time
+ * when it ends, so a domain sending large bodies gets the same share of the threads as one
+ * sending many small ones, and a burst from one domain delays the others by about one turn.
+ * <p>
+ * Within a lane tasks run by priority, HIGH before NORMAL before BULK and in submission order
+ * within one. A lane holds at most {@code laneCapacity} admitted requests; further ones are
+ * refused rather than queued. Every domain with a configured weight has its own lane from the
+ * start; other domains get one as they are first seen until {@code maxLanes} of them exist,
+ * after which they share the {@link #SHARED_LANE}.
+ */
+final class FairExecutor {
+    static final String SHARED_LANE = "other";
+    /** Upper bounds of the queue wait histogram, in seconds. */
+    private static final double[] WAIT_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5};
+    /** Charge of a lane's first task, before it has an average. */
+    private static final long INITIAL_ESTIMATE_NANOS = 100_000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    /** Lanes with queued tasks; the first one is taking its turn. */
+    private final ArrayDeque<Lane> active = new ArrayDeque<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Map<String, Integer> weights;
+    private final int defaultWeight;
+    private final long quantumNanos;
+    private final int laneCapacity;
+    private final int maxLanes;
+    /** Lanes created for domains without a configured weight, bounded by {@code maxLanes}. */
+    private int unconfiguredLanes;
+    private long sequence;
+    private boolean shutdown;
+
+    FairExecutor(int threads, Map<String, Integer> weights, int defaultWeight, long quantumNanos,
+                 int laneCapacity, int maxLanes) {
+        this.weights = Map.copyOf(weights);
+        this.defaultWeight = defaultWeight;
+        this.quantumNanos = quantumNanos;
+        this.laneCapacity = laneCapacity;
+        this.maxLanes = maxLanes;
+        this.weights.forEach((domain, weight) -> lanes.put(domain, new Lane(domain, weight)));
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::work, "fair-executor-" + (i + 1));
+            this.threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a new request, unless its lane already holds {@code laneCapacity} of them.
+     *
+     * @return false if the request was refused
+     */
+    boolean admit(String domain, Priority priority, Runnable task) {
+        lock.lock();
+        try {
+            Lane lane = lane(domain);
+            if (shutdown || lane.admitted >= laneCapacity) {
+                lane.rejected++;
+                return false;
+            }
+            lane.admitted++;
+            enqueue(lane, new Task(rank(priority), sequence++, System.nanoTime(), true, task));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a NORMAL task that continues an already admitted call (a streamed chunk), which
+     * is never refused; streams are bounded by their flow control instead.
+     */
+    void execute(String domain, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            enqueue(lane(domain), new Task(rank(Priority.PRIORITY_NORMAL), sequence++, System.nanoTime(), false, task));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int queued() {
+        lock.lock();
+        try {
+            int queued = 0;
+            for (Lane lane : active) {
+                queued += lane.tasks.size();
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops accepting tasks; queued ones still run. */
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops queued tasks and interrupts running ones. */
+    void shutdownNow() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Lane lane : active) {
+                lane.tasks.clear();
+                lane.admitted = 0;
+            }
+            active.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        threads.forEach(Thread::interrupt);
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            }
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Per-lane queue length, queue wait histogram, busy time and refusals in the Prometheus
+     * text format.
+     */
+    String metrics() {
+        StringBuilder out = new StringBuilder();
+        lock.lock();
+        try {
+            out.append("# TYPE grpc_executor_queued gauge\n");
+            lanes.values().forEach(lane -> sample(out, "grpc_executor_queued", lane, "", lane.tasks.size()));
+            out.append("# TYPE grpc_executor_weight gauge\n");
+            lanes.values().forEach(lane -> sample(out, "grpc_executor_weight", lane, "", lane.weight));
+            out.append("# TYPE grpc_executor_queue_wait_seconds histogram\n");
+            for (Lane lane : lanes.values()) {
+                long cumulative = 0;
+                for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+                    cumulative += lane.waitBuckets[i];
+                    sample(out, "grpc_executor_queue_wait_seconds_bucket", lane, ",le=\"" + WAIT_BUCKETS[i] + "\"", cumulative);
+                }
+                sample(out, "grpc_executor_queue_wait_seconds_bucket", lane, ",le=\"+Inf\"", lane.waitCount);
+                sample(out, "grpc_executor_queue_wait_seconds_sum", lane, "", lane.waitNanos / 1e9);
+                sample(out, "grpc_executor_queue_wait_seconds_count", lane, "", lane.waitCount);
+            }
+            out.append("# TYPE grpc_executor_busy_seconds_total counter\n");
+            lanes.values().forEach(lane -> sample(out, "grpc_executor_busy_seconds_total", lane, "", lane.busyNanos / 1e9));
+            out.append("# TYPE grpc_executor_rejected_total counter\n");
+            lanes.values().forEach(lane -> sample(out, "grpc_executor_rejected_total", lane, "", lane.rejected));
+        } finally {
+            lock.unlock();
+        }
+        return out.toString();
+    }
+
+    /** The domain of an email address, which names its lane. */
+    static String domainOf(String address) {
+        int at = address.lastIndexOf('@');
+        String domain = at < 0 ? "" : address.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+        return domain.isEmpty() ? SHARED_LANE : domain;
+    }
+
+    /**
+     * Parses {@code "gmail.com=1,wp.com=2"}.
+     *
+     * @throws IllegalArgumentException for a malformed entry or a weight below 1
+     */
+    static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected <domain>=<weight>: " + entry);
+            }
+            int weight = Integer.parseInt(entry.substring(separator + 1).trim());
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight must be at least 1: " + entry);
+            }
+            weights.put(entry.substring(0, separator).trim().toLowerCase(Locale.ROOT), weight);
+        }
+        return weights;
+    }
+
+    private Lane lane(String domain) {
+        Lane lane = lanes.get(domain);
+        if (lane != null) {
+            return lane;
+        }
+        if (!domain.equals(SHARED_LANE) && unconfiguredLanes < maxLanes) {
+            unconfiguredLanes++;
+            lane = new Lane(domain, defaultWeight);
+            lanes.put(domain, lane);
+            return lane;
+        }
+        return lanes.computeIfAbsent(SHARED_LANE, key -> new Lane(key, defaultWeight));
+    }
+
+    private void enqueue(Lane lane, Task task) {
+        lane.tasks.add(task);
+        if (lane.tasks.size() == 1) {
+            active.addLast(lane);
+            if (active.size() == 1) {
+                lane.credit();
+            }
+        }
+        available.signal();
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            Task task;
+            long charge;
+            lock.lock();
+            try {
+                while (active.isEmpty() && !shutdown) {
+                    available.awaitUninterruptibly();
+                }
+                if (active.isEmpty()) {
+                    return;
+                }
+                lane = nextLane();
+                task = lane.tasks.poll();
+                charge = lane.averageNanos;
+                lane.deficit -= charge;
+                if (task.admitted) {
+                    lane.admitted--;
+                }
+                if (lane.tasks.isEmpty()) {
+                    // An idle lane keeps its debt but not its unused credit
+                    lane.deficit = Math.min(lane.deficit, 0);
+                    active.pollFirst();
+                    if (!active.isEmpty()) {
+                        active.peekFirst().credit();
+                    }
+                }
+                lane.waited(System.nanoTime() - task.enqueuedNanos);
+            } finally {
+                lock.unlock();
+            }
+
+            long started = System.nanoTime();
+            try {
+                task.delegate.run();
+            } catch (RuntimeException e) {
+                System.err.println("[FairExecutor] Task for " + lane.name + " failed: " + e.getMessage());
+            } finally {
+                long elapsed = System.nanoTime() - started;
+                lock.lock();
+                try {
+                    lane.deficit += charge - elapsed;
+                    lane.averageNanos += (elapsed - lane.averageNanos) / 8;
+                    lane.busyNanos += elapsed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Rotates past lanes that have used up their credit, crediting each new head. */
+    private Lane nextLane() {
+        while (active.peekFirst().deficit <= 0) {
+            active.addLast(active.pollFirst());
+            active.peekFirst().credit();
+        }
+        return active.peekFirst();
+    }
+
+    private static int rank(Priority priority) {
+        return switch (priority) {
+            case PRIORITY_HIGH -> 0;
+            case PRIORITY_BULK -> 2;
+            default -> 1;
+        };
+    }
+
+    private static void sample(StringBuilder out, String name, Lane lane, String labels, Object value) {
+        out.append(name).append("{domain=\"").append(lane.name).append('"').append(labels).append("} ")
+                .append(value).append('\n');
+    }
+
+    private final class Lane {
+        final String name;
+        final int weight;
+        final PriorityQueue<Task> tasks = new PriorityQueue<>();
+        long deficit;
+        long averageNanos = INITIAL_ESTIMATE_NANOS;
+        /** Queued tasks that count against the capacity. */
+        int admitted;
+        final long[] waitBuckets = new long[WAIT_BUCKETS.length];
+        long waitCount;
+        long waitNanos;
+        long busyNanos;
+        long rejected;
+
+        Lane(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        void credit() {
+            deficit += weight * quantumNanos;
+        }
+
+        void waited(long nanos) {
+            waitCount++;
+            waitNanos += nanos;
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+                if (seconds <= WAIT_BUCKETS[i]) {
+                    waitBuckets[i]++;
+                    break;
+                }
+            }
+        }
+    }
+
+    private record Task(int rank, long sequence, long enqueuedNanos, boolean admitted, Runnable delegate)
+            implements Comparable<Task> {
+        @Override
+        public int compareTo(Task other) {
+            int byRank = Integer.compare(rank, other.rank);
+            return byRank != 0 ? byRank : Long.compare(sequence, other.sequence);
+        }
+    }
+}
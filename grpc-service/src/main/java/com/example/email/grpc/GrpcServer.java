@@ -1,71 +1,425 @@
 package com.example.email.grpc;
 
+import com.example.email.core.BlobStore;
+import com.example.email.core.EmailEncryptor;
+import com.example.email.core.SerialExecutor;
+import com.example.email.core.StreamingUpload;
 import com.example.email.proto.*;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.BindableService;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.io.IOException;
-import java.util.Base64;
-import java.util.concurrent.ExecutorService;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GrpcServer {
     
     public static void main(String[] args) {
-        int port = 50001;
+        Map<String, String> env = System.getenv();
+        int port = intEnv(env, "GRPC_PORT", 50001);
+        int bossThreads = intEnv(env, "GRPC_BOSS_THREADS", 1);
+        // 0 lets Netty pick its default of 2 * available processors
+        int workerThreads = intEnv(env, "GRPC_WORKER_THREADS", 0);
+        int metricsPort = intEnv(env, "GRPC_METRICS_PORT", 9405);
+        int flowControlWindow = intEnv(env, "GRPC_FLOW_CONTROL_WINDOW", 1024 * 1024);
+        int maxInboundMessageSize = intEnv(env, "GRPC_MAX_INBOUND_MESSAGE_BYTES", 16 * 1024 * 1024);
+        int maxConcurrentCalls = intEnv(env, "GRPC_MAX_CONCURRENT_CALLS_PER_CONNECTION", 256);
+        long permitKeepAliveMillis = longEnv(env, "GRPC_PERMIT_KEEPALIVE_TIME_MS", 20000L);
+        long keepAliveMillis = longEnv(env, "GRPC_KEEPALIVE_TIME_MS", 60000L);
+        long maxConnectionAgeMillis = longEnv(env, "GRPC_MAX_CONNECTION_AGE_MS", 300000L);
+        long shutdownGraceMillis = longEnv(env, "GRPC_SHUTDOWN_GRACE_MS", 20000L);
+        Path blobDir = blobDir(env);
+        int warmupIterations = intEnv(env, "WARMUP_ITERATIONS", 0);
+        boolean trainingRun = Boolean.parseBoolean(env.getOrDefault("TRAINING_RUN", "false"));
+        
+        boolean epoll = Epoll.isAvailable();
+        EventLoopGroup bossGroup = epoll ? new EpollEventLoopGroup(bossThreads) : new NioEventLoopGroup(bossThreads);
+        EventLoopGroup workerGroup = epoll ? new EpollEventLoopGroup(workerThreads) : new NioEventLoopGroup(workerThreads);
+        Class<? extends ServerChannel> channelType = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+        
         System.out.println("Starting Async Email Encryption gRPC Server on port " + port + "...");
+        System.out.println("Transport: " + (epoll ? "epoll" : "nio") +
+                ", boss threads: " + bossThreads +
+                ", worker threads: " + (workerThreads == 0 ? "default" : workerThreads));
+        
+        BlobStore blobStore;
+        try {
+            blobStore = new BlobStore(blobDir);
+        } catch (IOException e) {
+            System.err.println("Cannot create blob store at " + blobDir + ": " + e.getMessage());
+            return;
+        }
+        
+        // Before the port opens, so readiness is only reported once the hot paths are compiled
+        long warmupMillis = 0;
+        if (warmupIterations > 0) {
+            long warmupStarted = System.nanoTime();
+            try {
+                Warmup.run(warmupIterations);
+            } catch (IOException e) {
+                System.err.println("Warm-up failed, starting cold: " + e.getMessage());
+            }
+            warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmupStarted);
+            System.out.println("Warm-up: " + warmupIterations + " iterations in " + warmupMillis + " ms");
+        }
+        
+        EmailServiceImpl service = newService(env, blobStore, true);
+        if (metricsPort > 0) {
+            try {
+                serveMetrics(metricsPort, service.executor);
+            } catch (IOException e) {
+                System.err.println("Cannot serve metrics on :" + metricsPort + ": " + e.getMessage());
+            }
+        }
         
-        Server server = ServerBuilder.forPort(port)
-                .addService(new EmailServiceImpl())
+        Server server = NettyServerBuilder.forPort(port)
+                .channelType(channelType)
+                .bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                // Handlers only hand work to the service executor, so run them on the event loop
+                .directExecutor()
+                .initialFlowControlWindow(flowControlWindow)
+                .maxInboundMessageSize(maxInboundMessageSize)
+                .maxConcurrentCallsPerConnection(maxConcurrentCalls)
+                .permitKeepAliveTime(permitKeepAliveMillis, TimeUnit.MILLISECONDS)
+                .permitKeepAliveWithoutCalls(false)
+                .keepAliveTime(keepAliveMillis, TimeUnit.MILLISECONDS)
+                // Recycling connections makes DNS round-robin clients pick up new pods
+                .maxConnectionAge(maxConnectionAgeMillis, TimeUnit.MILLISECONDS)
+                .maxConnectionAgeGrace(shutdownGraceMillis, TimeUnit.MILLISECONDS)
+                .addService(service)
                 .build();
         
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutdown requested, draining in-flight calls (grace " + shutdownGraceMillis + " ms)...");
+            server.shutdown();
+            try {
+                if (!server.awaitTermination(shutdownGraceMillis, TimeUnit.MILLISECONDS)) {
+                    System.err.println("Grace period elapsed, cancelling remaining calls");
+                    server.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                server.shutdownNow();
+            }
+            service.shutdown();
+            bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            System.out.println("gRPC server stopped");
+        }, "grpc-shutdown"));
+        
         try {
             server.start();
             System.out.println("Async email encryption service started successfully!");
+            System.out.println("Startup: ready in " + ManagementFactory.getRuntimeMXBean().getUptime() +
+                    " ms since JVM start (warm-up " + warmupMillis + " ms)");
+            if (trainingRun) {
+                // A class-data archive is written when the JVM exits
+                System.out.println("Training run finished, exiting");
+                System.exit(0);
+            }
             server.awaitTermination();
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
     
-    // Async Email service implementation
+    /**
+     * The encryption service as {@link #main} sets it up from {@code env}, without the Netty
+     * transport, metrics or warm-up. The embedded pipeline serves it in process, so benchmarks
+     * go through the same executor and flow control as the deployed server. Replies own their
+     * ciphertext, as the in-process transport hands them to the client without serializing.
+     */
+    public static BindableService inProcessService(Map<String, String> env) throws IOException {
+        return newService(env, new BlobStore(blobDir(env)), false);
+    }
+    
+    private static EmailServiceImpl newService(Map<String, String> env, BlobStore blobStore, boolean pooledReplies) {
+        int executorThreads = intEnv(env, "GRPC_EXECUTOR_THREADS", 10);
+        Map<String, Integer> domainWeights = FairExecutor.parseWeights(env.getOrDefault("GRPC_FAIR_WEIGHTS", ""));
+        int defaultWeight = intEnv(env, "GRPC_FAIR_DEFAULT_WEIGHT", 1);
+        long quantumMicros = longEnv(env, "GRPC_FAIR_QUANTUM_US", 1000L);
+        int laneCapacity = intEnv(env, "GRPC_FAIR_QUEUE_CAP", 10000);
+        int maxLanes = intEnv(env, "GRPC_FAIR_MAX_LANES", 256);
+        int inlineLimit = intEnv(env, "BLOB_INLINE_LIMIT_BYTES", 64 * 1024);
+        // Decrypted bodies above this are refused, so a reply stays within client message limits
+        int decryptMaxBytes = intEnv(env, "DECRYPT_MAX_BODY_BYTES", 3 * 1024 * 1024);
+        
+        System.out.println("Executor threads: " + executorThreads +
+                ", fair scheduling: weights " + (domainWeights.isEmpty() ? "{}" : domainWeights) +
+                ", default " + defaultWeight + ", quantum " + quantumMicros + " us, queue cap " + laneCapacity);
+        System.out.println("Blob store: " + blobStore.root() + " (inline limit " + inlineLimit + " bytes)");
+        
+        FairExecutor executor = new FairExecutor(executorThreads, domainWeights, defaultWeight,
+                TimeUnit.MICROSECONDS.toNanos(quantumMicros), laneCapacity, maxLanes);
+        return new EmailServiceImpl(executor, new EmailEncryptor(blobStore, inlineLimit, decryptMaxBytes), pooledReplies);
+    }
+    
+    private static Path blobDir(Map<String, String> env) {
+        return Path.of(env.getOrDefault("BLOB_DIR", "/data/storage/blobs"));
+    }
+    
+    /**
+     * Serves the executor's per-domain queue metrics in the Prometheus text format on {@code /metrics}.
+     */
+    private static void serveMetrics(int port, FairExecutor executor) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] bytes = executor.metrics().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "grpc-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Metrics on :" + port + "/metrics");
+    }
+    
+    private static int intEnv(Map<String, String> env, String name, int defaultValue) {
+        return Integer.parseInt(env.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+    
+    private static long longEnv(Map<String, String> env, String name, long defaultValue) {
+        return Long.parseLong(env.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+    
+    // Async Email service implementation: scheduling and flow control around the shared EmailEncryptor
     static class EmailServiceImpl extends EmailServiceGrpc.EmailServiceImplBase {
-        private final ExecutorService executor = Executors.newFixedThreadPool(10);
+        /** Decrypt requests read ahead of the one being processed. */
+        private static final int DECRYPT_WINDOW = 16;
+        /** Executor lane of DecryptBatch calls, which carry no address; storage reads share it. */
+        private static final String DECRYPT_LANE = "decrypt";
+        
+        private final FairExecutor executor;
+        private final EmailEncryptor encryptor;
+        /** Whether the transport serializes replies in onNext, so they may use pooled buffers. */
+        private final boolean pooledReplies;
+        
+        EmailServiceImpl(FairExecutor executor, EmailEncryptor encryptor, boolean pooledReplies) {
+            this.executor = executor;
+            this.encryptor = encryptor;
+            this.pooledReplies = pooledReplies;
+        }
+        
+        void shutdown() {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+            }
+        }
         
         @Override
         public void sendEmail(SendEmailRequest request, StreamObserver<SendEmailReply> responseObserver) {
-            System.out.println("\n[Async Email] Request received: " + request.getAddress());
+            System.out.println("\n[Async Email] Request received: " + request.getAddress() +
+                    " (" + request.getPriority() + ", queued " + executor.queued() + ")");
             
-            executor.submit(() -> {
-                try {
-                    System.out.println("[Async Email] Processing in thread: " + Thread.currentThread().getName());
-                    
-                    
-                    String encrypted = Base64.getEncoder().encodeToString(request.getBody().getBytes());
-                    System.out.println("[Async Email] Encrypted: " + encrypted.substring(0, Math.min(30, encrypted.length())) + "...");
-                    
-                    SendEmailReply reply = SendEmailReply.newBuilder()
-                            .setStatus("SUCCESS")
-                            .setDetails("Encrypted: " + encrypted)
-                            .build();
-                    
-                    // Send response asynchronously
-                    responseObserver.onNext(reply);
-                    responseObserver.onCompleted();
-                    System.out.println("[Async Email] Response sent successfully");
-                    
-                } catch (Exception e) {
-                    System.err.println("[Async Email] Error: " + e.getMessage());
-                    SendEmailReply errorReply = SendEmailReply.newBuilder()
-                            .setStatus("ERROR")
-                            .setDetails("Failed: " + e.getMessage())
-                            .build();
-                    
-                    responseObserver.onNext(errorReply);
-                    responseObserver.onCompleted();
+            // Queued per domain, so one domain's burst does not hold the others back, and by
+            // priority within it, so password resets are not stuck behind a campaign
+            String domain = FairExecutor.domainOf(request.getAddress());
+            boolean admitted = executor.admit(domain, request.getPriority(), () -> {
+                System.out.println("[Async Email] Processing in thread: " + Thread.currentThread().getName());
+                
+                // Over Netty onNext serializes the reply before returning, so the ciphertext can
+                // stay in this thread's pooled buffer; in process the client gets the message itself
+                SendEmailReply reply = pooledReplies ? encryptor.encryptForReply(request) : encryptor.encrypt(request);
+                if ("SUCCESS".equals(reply.getStatus())) {
+                    System.out.println("[Async Email] Encrypted " + request.getBody().size() + " bytes into " + reply.getEncryptedBody().size());
+                } else {
+                    System.err.println("[Async Email] Error: " + reply.getDetails());
                 }
+                
+                // Send response asynchronously
+                responseObserver.onNext(reply);
+                responseObserver.onCompleted();
+                System.out.println("[Async Email] Response sent successfully");
             });
+            if (!admitted) {
+                System.err.println("[Async Email] Queue of " + domain + " is full, refusing " + request.getAddress());
+                responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                        .withDescription("Too many queued requests for " + domain)
+                        .asRuntimeException());
+            }
+        }
+        
+        /**
+         * Client-streamed upload. Inbound flow control is manual: the next chunk is only
+         * requested after the previous one has been encrypted, so at most one chunk per
+         * upload is held in memory. Chunks are processed on the shared executor, in the lane
+         * of the address on the first chunk, through a per-call serial executor to keep them
+         * in order.
+         */
+        @Override
+        public StreamObserver<EmailChunk> sendEmailStream(StreamObserver<SendEmailReply> responseObserver) {
+            ServerCallStreamObserver<SendEmailReply> call = (ServerCallStreamObserver<SendEmailReply>) responseObserver;
+            call.disableAutoRequest();
+            StreamingUpload upload = encryptor.newUpload();
+            call.request(1);
+            
+            return new StreamObserver<>() {
+                // Set from the first chunk, before its task is queued
+                private volatile String domain;
+                private final SerialExecutor serial = new SerialExecutor(
+                        task -> executor.execute(domain != null ? domain : FairExecutor.SHARED_LANE, task));
+                // Only touched from tasks on the serial executor
+                private boolean failed;
+                
+                @Override
+                public void onNext(EmailChunk chunk) {
+                    if (domain == null) {
+                        domain = FairExecutor.domainOf(chunk.getAddress());
+                    }
+                    serial.execute(() -> {
+                        if (failed) {
+                            return;
+                        }
+                        try {
+                            upload.accept(chunk.getAddress(), chunk.getData());
+                            call.request(1);
+                        } catch (Exception e) {
+                            System.err.println("[Async Email] Stream chunk failed: " + e.getMessage());
+                            failed = true;
+                            closeQuietly(upload);
+                            call.onError(Status.INTERNAL.withDescription("Failed: " + e.getMessage()).asRuntimeException());
+                        }
+                    });
+                }
+                
+                @Override
+                public void onError(Throwable t) {
+                    System.err.println("[Async Email] Stream cancelled by client: " + t.getMessage());
+                    serial.execute(() -> {
+                        failed = true;
+                        closeQuietly(upload);
+                    });
+                }
+                
+                @Override
+                public void onCompleted() {
+                    serial.execute(() -> {
+                        if (failed) {
+                            return;
+                        }
+                        try {
+                            SendEmailReply reply = encryptor.finish(upload);
+                            System.out.println("[Async Email] Streamed " + reply.getBodySize() + " bytes for " + domain +
+                                    (reply.getBlobRef().isEmpty() ? " (inline)" : " into " + reply.getBlobRef()));
+                            
+                            call.onNext(reply);
+                            call.onCompleted();
+                        } catch (Exception e) {
+                            System.err.println("[Async Email] Stream finish failed: " + e.getMessage());
+                            closeQuietly(upload);
+                            call.onNext(EmailEncryptor.error(e));
+                            call.onCompleted();
+                        }
+                    });
+                }
+            };
+        }
+        
+        /**
+         * Decrypts a stream of stored emails, replying in request order. Requests are pulled
+         * {@link #DECRYPT_WINDOW} at a time and decrypted on the shared executor, in a lane of
+         * their own, through a per-call serial executor, as uploads are. Failures of single
+         * emails (malformed ciphertext, missing or oversized blob) are reported in their reply,
+         * so one damaged row does not fail the page.
+         * <p>
+         * The next request is only pulled once the reply before it could be sent without
+         * buffering: while the client reads slower than we decrypt, credits are held back and
+         * handed out by the on-ready handler, so at most {@link #DECRYPT_WINDOW} replies wait in
+         * the outbound buffer of a call.
+         */
+        @Override
+        public StreamObserver<DecryptRequest> decryptBatch(StreamObserver<DecryptReply> responseObserver) {
+            ServerCallStreamObserver<DecryptReply> call = (ServerCallStreamObserver<DecryptReply>) responseObserver;
+            call.disableAutoRequest();
+            SerialExecutor serial = new SerialExecutor(task -> executor.execute(DECRYPT_LANE, task));
+            // Requests not yet asked for because the client was not reading replies
+            AtomicInteger withheld = new AtomicInteger();
+            Runnable release = () -> {
+                int credits = withheld.getAndSet(0);
+                if (credits > 0) {
+                    call.request(credits);
+                }
+            };
+            call.setOnReadyHandler(release);
+            call.request(DECRYPT_WINDOW);
+            
+            return new StreamObserver<>() {
+                // Only touched from tasks on the serial executor
+                private int decrypted;
+                private boolean cancelled;
+                
+                @Override
+                public void onNext(DecryptRequest request) {
+                    serial.execute(() -> {
+                        if (cancelled) {
+                            return;
+                        }
+                        call.onNext(encryptor.decrypt(request));
+                        decrypted++;
+                        withheld.incrementAndGet();
+                        // Checked after withholding, so a transition to ready in between is not missed
+                        if (call.isReady()) {
+                            release.run();
+                        }
+                    });
+                }
+                
+                @Override
+                public void onError(Throwable t) {
+                    System.err.println("[Async Email] Decrypt stream cancelled by client: " + t.getMessage());
+                    serial.execute(() -> cancelled = true);
+                }
+                
+                @Override
+                public void onCompleted() {
+                    serial.execute(() -> {
+                        if (!cancelled) {
+                            System.out.println("[Async Email] Decrypted batch of " + decrypted + " emails");
+                            call.onCompleted();
+                        }
+                    });
+                }
+            };
+        }
+        
+        private static void closeQuietly(StreamingUpload upload) {
+            try {
+                upload.close();
+            } catch (IOException e) {
+                System.err.println("[Async Email] Failed to discard partial upload: " + e.getMessage());
+            }
         }
     }
 }
@@ -0,0 +1,177 @@
+package com.example.email.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Count-based sliding-window circuit breaker for one email domain.
+ *
+ * CLOSED records the last {@code windowSize} outcomes and opens once the failure or slow-call
+ * rate crosses its threshold. OPEN rejects everything until {@code openMillis} have passed,
+ * then HALF_OPEN lets one probe through per {@code probeIntervalMillis}; enough consecutive
+ * good probes close it again and any bad one re-opens it. Probes are admitted by time rather
+ * than by counting in-flight calls, so a request that never reports back cannot wedge it.
+ *
+ * {@link #tryAcquire()} is a volatile read while CLOSED and takes no lock while OPEN.
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    record Settings(int windowSize,
+                    int minimumCalls,
+                    int failureRateThreshold,
+                    long slowCallMillis,
+                    int slowCallRateThreshold,
+                    long openMillis,
+                    long probeIntervalMillis,
+                    int halfOpenSuccesses) {
+    }
+
+    private final String name;
+    private final Settings settings;
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private final AtomicLong nextProbeAt = new AtomicLong();
+
+    private int index;
+    private int count;
+    private int failures;
+    private int slow;
+    private int probeSuccesses;
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+
+    CircuitBreaker(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.failedCalls = new boolean[settings.windowSize()];
+        this.slowCalls = new boolean[settings.windowSize()];
+    }
+
+    State state() {
+        State current = state;
+        if (current == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            return State.HALF_OPEN;
+        }
+        return current;
+    }
+
+    /** Seconds until the breaker starts probing again, for Retry-After. */
+    long retryAfterSeconds() {
+        long remaining = openUntil - System.nanoTime();
+        return state == State.OPEN && remaining > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining)) : 1;
+    }
+
+    /**
+     * Whether a new request may go through. In HALF_OPEN only one caller per probe interval wins.
+     */
+    boolean tryAcquire() {
+        State current = state;
+        if (current == State.CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (current == State.OPEN) {
+            if (now - openUntil < 0) {
+                return false;
+            }
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    transition(State.HALF_OPEN);
+                    probeSuccesses = 0;
+                    nextProbeAt.set(now);
+                }
+            }
+        }
+        long next = nextProbeAt.get();
+        return now - next >= 0
+                && nextProbeAt.compareAndSet(next, now + TimeUnit.MILLISECONDS.toNanos(settings.probeIntervalMillis()));
+    }
+
+    synchronized void record(boolean success, long latencyMillis) {
+        boolean isSlow = latencyMillis >= settings.slowCallMillis();
+        switch (state) {
+            case OPEN -> {
+                // Late completions from before the breaker opened
+            }
+            case HALF_OPEN -> {
+                if (!success || isSlow) {
+                    open();
+                } else if (++probeSuccesses >= settings.halfOpenSuccesses()) {
+                    resetWindow();
+                    transition(State.CLOSED);
+                }
+            }
+            case CLOSED -> {
+                if (count == failedCalls.length) {
+                    failures -= failedCalls[index] ? 1 : 0;
+                    slow -= slowCalls[index] ? 1 : 0;
+                } else {
+                    count++;
+                }
+                failedCalls[index] = !success;
+                slowCalls[index] = isSlow;
+                failures += success ? 0 : 1;
+                slow += isSlow ? 1 : 0;
+                index = (index + 1) % failedCalls.length;
+
+                if (count >= settings.minimumCalls()
+                        && (failures * 100 >= settings.failureRateThreshold() * count
+                        || slow * 100 >= settings.slowCallRateThreshold() * count)) {
+                    open();
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds pre-aggregated outcomes, e.g. from consumer persistence reports, into the CLOSED
+     * window. They are ignored otherwise: only admitted probes may close a half-open breaker.
+     * The report only carries its slowest latency, so just one of its calls counts as slow.
+     */
+    synchronized void recordAll(int successes, int failed, long maxLatencyMillis) {
+        long latencyMillis = maxLatencyMillis;
+        for (int i = 0; i < failed && state == State.CLOSED; i++) {
+            record(false, latencyMillis);
+            latencyMillis = 0;
+        }
+        for (int i = 0; i < successes && state == State.CLOSED; i++) {
+            record(true, latencyMillis);
+            latencyMillis = 0;
+        }
+    }
+
+    synchronized void reset() {
+        resetWindow();
+        transition(State.CLOSED);
+    }
+
+    private void open() {
+        openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.openMillis());
+        resetWindow();
+        transition(State.OPEN);
+    }
+
+    private void resetWindow() {
+        index = 0;
+        count = 0;
+        failures = 0;
+        slow = 0;
+        probeSuccesses = 0;
+    }
+
+    private void transition(State next) {
+        if (state != next) {
+            LOGGER.warning("Circuit breaker for " + name + ": " + state + " -> " + next);
+            state = next;
+        }
+    }
+}
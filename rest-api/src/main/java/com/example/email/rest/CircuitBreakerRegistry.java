@@ -0,0 +1,65 @@
+package com.example.email.rest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One {@link CircuitBreaker} per email service (gmail, wp, other), fed by the gRPC, publish
+ * and persistence paths. Breakers are per replica: each pod trips on what it observes.
+ */
+@Component
+public class CircuitBreakerRegistry {
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final CircuitBreaker.Settings settings;
+
+    public CircuitBreakerRegistry(@Value("${breaker.window-size:100}") int windowSize,
+                                  @Value("${breaker.minimum-calls:20}") int minimumCalls,
+                                  @Value("${breaker.failure-rate-threshold:50}") int failureRateThreshold,
+                                  @Value("${breaker.slow-call-ms:2000}") long slowCallMillis,
+                                  @Value("${breaker.slow-call-rate-threshold:80}") int slowCallRateThreshold,
+                                  @Value("${breaker.open-ms:10000}") long openMillis,
+                                  @Value("${breaker.probe-interval-ms:500}") long probeIntervalMillis,
+                                  @Value("${breaker.half-open-successes:5}") int halfOpenSuccesses) {
+        this.settings = new CircuitBreaker.Settings(
+                windowSize,
+                Math.min(minimumCalls, windowSize),
+                failureRateThreshold,
+                slowCallMillis,
+                slowCallRateThreshold,
+                openMillis,
+                probeIntervalMillis,
+                halfOpenSuccesses);
+    }
+
+    CircuitBreaker forService(String serviceName) {
+        return breakers.computeIfAbsent(serviceName, name -> new CircuitBreaker(name, settings));
+    }
+
+    void recordSuccess(String serviceName, long latencyMillis) {
+        forService(serviceName).record(true, latencyMillis);
+    }
+
+    void recordFailure(String serviceName, long latencyMillis) {
+        forService(serviceName).record(false, latencyMillis);
+    }
+
+    /**
+     * Maps a storage bucket (gmail.com, wp.com, other) to its service name.
+     */
+    static String serviceForBucket(String bucket) {
+        if (bucket == null) {
+            return "other";
+        }
+        String normalized = bucket.toLowerCase();
+        if (normalized.contains("gmail")) {
+            return "gmail";
+        } else if (normalized.contains("wp")) {
+            return "wp";
+        }
+        return "other";
+    }
+}
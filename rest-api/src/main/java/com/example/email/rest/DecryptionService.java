@@ -0,0 +1,129 @@
+package com.example.email.rest;
+
+import com.example.email.proto.DecryptReply;
+import com.example.email.proto.DecryptRequest;
+import com.google.protobuf.ByteString;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Decrypts pages of stored emails for {@code ?decrypt=true} reads. Every email of a page
+ * that is not in the {@link PlaintextCache} goes to the encryption service in a single
+ * DecryptBatch call; emails that fail to decrypt are returned without a body.
+ */
+@Service
+public class DecryptionService {
+
+    private static final Logger LOGGER = Logger.getLogger(DecryptionService.class.getName());
+
+    private final EncryptionClient encryptionClient;
+    private final PlaintextCache cache;
+
+    public DecryptionService(EncryptionClient encryptionClient,
+                             @Value("${storage.decrypt.cache.enabled:true}") boolean cacheEnabled,
+                             @Value("${storage.decrypt.cache.max-bytes:16777216}") long cacheMaxBytes,
+                             @Value("${storage.decrypt.cache.ttl-ms:30000}") long cacheTtlMillis) {
+        this.encryptionClient = encryptionClient;
+        this.cache = new PlaintextCache(cacheEnabled ? cacheMaxBytes : 0, Duration.ofMillis(cacheTtlMillis));
+        LOGGER.info(() -> cache.enabled()
+                ? "Plaintext cache: " + cacheMaxBytes + " bytes off-heap, TTL " + cacheTtlMillis + " ms"
+                : "Plaintext cache disabled");
+    }
+
+    /**
+     * Copies of {@code emails} with their bodies decrypted, in the same order.
+     */
+    public CompletableFuture<List<StorageService.StoredEmail>> decryptAsync(List<StorageService.StoredEmail> emails) {
+        List<StorageService.StoredEmail> result = new ArrayList<>(emails);
+        List<DecryptRequest> requests = new ArrayList<>();
+        Map<Long, Integer> positions = new LinkedHashMap<>();
+        for (int i = 0; i < emails.size(); i++) {
+            StorageService.StoredEmail email = emails.get(i);
+            byte[] cached = cache.get(email.domain, email.id);
+            if (cached != null) {
+                result.set(i, email.withBody(new String(cached, StandardCharsets.UTF_8)));
+                PlaintextCache.zero(cached);
+                continue;
+            }
+            DecryptRequest.Builder request = DecryptRequest.newBuilder().setId(email.id);
+            if (email.blobRef != null) {
+                request.setBlobRef(email.blobRef);
+            } else if (email.encryptedBody != null) {
+                request.setEncryptedBody(ByteString.copyFromUtf8(email.encryptedBody));
+            } else {
+                continue;
+            }
+            positions.put(email.id, i);
+            requests.add(request.build());
+        }
+        if (requests.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        return encryptionClient.decryptBatch(requests).thenApply(replies -> {
+            int failed = 0;
+            for (DecryptReply reply : replies) {
+                Integer position = positions.get(reply.getId());
+                if (position == null) {
+                    continue;
+                }
+                if (!reply.getError().isEmpty()) {
+                    failed++;
+                    continue;
+                }
+                StorageService.StoredEmail email = result.get(position);
+                byte[] plaintext = reply.getBody().toByteArray();
+                cache.put(email.domain, email.id, plaintext);
+                result.set(position, email.withBody(new String(plaintext, StandardCharsets.UTF_8)));
+                PlaintextCache.zero(plaintext);
+            }
+            if (failed > 0) {
+                int count = failed;
+                LOGGER.warning(() -> count + " of " + requests.size() + " emails could not be decrypted");
+            }
+            return result;
+        });
+    }
+
+    public List<StorageService.StoredEmail> decrypt(List<StorageService.StoredEmail> emails) throws IOException {
+        try {
+            return decryptAsync(emails).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Decryption failed: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    /**
+     * A copy of a storage response with its {@code emails} list decrypted.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> decryptPage(Map<String, Object> response) throws IOException {
+        Object emails = response.get("emails");
+        if (!(emails instanceof List<?>)) {
+            return response;
+        }
+        Map<String, Object> decrypted = new LinkedHashMap<>(response);
+        decrypted.put("emails", decrypt((List<StorageService.StoredEmail>) emails));
+        return decrypted;
+    }
+
+    @PreDestroy
+    void close() {
+        cache.clear();
+    }
+}
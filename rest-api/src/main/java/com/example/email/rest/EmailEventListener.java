@@ -0,0 +1,186 @@
+package com.example.email.rest;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listens on the {@code email-events} topic exchange, where consumers publish:
+ * <ul>
+ *   <li>{@code persistence.<bucket>} - periodic insert success/failure counts, fed into the
+ *   domain's circuit breaker so a failing Postgres store sheds traffic at the REST API;</li>
+ *   <li>{@code changed.<bucket>} - the bucket committed new rows, so cached reads of it are stale.</li>
+ * </ul>
+ * Every replica binds its own exclusive queue, so each one sees every event.
+ */
+@Component
+public class EmailEventListener {
+
+    private static final Logger LOGGER = Logger.getLogger(EmailEventListener.class.getName());
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    static final String EXCHANGE = "email-events";
+    static final String PERSISTENCE_PREFIX = "persistence.";
+    static final String CHANGED_PREFIX = "changed.";
+    /** Passed to change listeners when events may have been missed, e.g. after a reconnect. */
+    static final String ALL_BUCKETS = "*";
+
+    @Value("${rabbitmq.host:localhost}")
+    private String host;
+
+    @Value("${rabbitmq.port:5672}")
+    private int port;
+
+    @Value("${rabbitmq.user:guest}")
+    private String user;
+
+    @Value("${rabbitmq.pass:guest}")
+    private String pass;
+
+    private final CircuitBreakerRegistry breakers;
+    /** Only set in the embedded pipeline, see {@link RabbitMQPublisher}. */
+    private final ObjectProvider<ConnectionFactory> connectionFactories;
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "email-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Connection connection;
+    private volatile Channel channel;
+
+    public record PersistenceReport(String bucket, int successes, int failures, long maxLatencyMs) {
+    }
+
+    public EmailEventListener(CircuitBreakerRegistry breakers, ObjectProvider<ConnectionFactory> connectionFactories) {
+        this.breakers = breakers;
+        this.connectionFactories = connectionFactories;
+    }
+
+    @PostConstruct
+    void start() {
+        scheduler.execute(this::connect);
+    }
+
+    /**
+     * Registers a callback receiving the bucket name of every {@code changed.<bucket>} event,
+     * or {@link #ALL_BUCKETS} when events may have been lost while disconnected.
+     */
+    void onChanged(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Tells every replica (this one included) that {@code bucket} changed.
+     */
+    void publishChanged(String bucket) {
+        Channel current = channel;
+        if (current == null || !current.isOpen()) {
+            return;
+        }
+        try {
+            synchronized (current) {
+                current.basicPublish(EXCHANGE, CHANGED_PREFIX + bucket, null, bucket.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to announce change of " + bucket, e);
+        }
+    }
+
+    private void connect() {
+        try {
+            ConnectionFactory factory = connectionFactories.getIfAvailable(ConnectionFactory::new);
+            factory.setHost(host);
+            factory.setPort(port);
+            factory.setUsername(user);
+            factory.setPassword(pass);
+            factory.setConnectionTimeout(5000);
+            factory.setRequestedHeartbeat(30);
+            factory.setAutomaticRecoveryEnabled(true);
+
+            Connection newConnection = factory.newConnection("rest-api-email-events");
+            Channel newChannel = newConnection.createChannel();
+            newChannel.exchangeDeclare(EXCHANGE, BuiltinExchangeType.TOPIC, true);
+            String queue = newChannel.queueDeclare().getQueue();
+            newChannel.queueBind(queue, EXCHANGE, PERSISTENCE_PREFIX + "#");
+            newChannel.queueBind(queue, EXCHANGE, CHANGED_PREFIX + "#");
+
+            DeliverCallback callback = (consumerTag, delivery) -> {
+                String routingKey = delivery.getEnvelope().getRoutingKey();
+                try {
+                    if (routingKey.startsWith(CHANGED_PREFIX)) {
+                        notifyChanged(routingKey.substring(CHANGED_PREFIX.length()));
+                    } else {
+                        PersistenceReport report = MAPPER.readValue(delivery.getBody(), PersistenceReport.class);
+                        breakers.forService(CircuitBreakerRegistry.serviceForBucket(report.bucket()))
+                                .recordAll(report.successes(), report.failures(), report.maxLatencyMs());
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Ignoring malformed event " + routingKey, e);
+                }
+            };
+            newChannel.basicConsume(queue, true, callback, consumerTag -> {});
+
+            // The embedded pipeline's in-memory broker never drops connections
+            if (newConnection instanceof Recoverable recoverableConnection) {
+                recoverableConnection.addRecoveryListener(new RecoveryListener() {
+                    @Override
+                    public void handleRecovery(Recoverable recoverable) {
+                        notifyChanged(ALL_BUCKETS);
+                    }
+
+                    @Override
+                    public void handleRecoveryStarted(Recoverable recoverable) {
+                    }
+                });
+            }
+
+            connection = newConnection;
+            channel = newChannel;
+            notifyChanged(ALL_BUCKETS);
+            LOGGER.info("Listening for storage events on " + EXCHANGE);
+        } catch (Exception e) {
+            LOGGER.warning("Storage events unavailable (" + e.getMessage() + "), retrying in 5s");
+            scheduler.schedule(this::connect, 5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void notifyChanged(String bucket) {
+        changeListeners.forEach(listener -> listener.accept(bucket));
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            if (connection != null && connection.isOpen()) {
+                connection.close();
+            }
+        } catch (Exception e) {
+            LOGGER.warning("Error closing storage events connection: " + e.getMessage());
+        }
+    }
+}
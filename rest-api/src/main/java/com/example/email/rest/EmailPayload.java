@@ -2,8 +2,19 @@ package com.example.email.rest;
 
 /**
  * Represents the incoming JSON payload from the frontend.
+ * {@code priority} is optional and defaults to {@link EmailPriority#NORMAL}.
  */
-public record EmailPayload(String address, String body) {
+public record EmailPayload(String address, String body, EmailPriority priority) {
+    public EmailPayload {
+        if (priority == null) {
+            priority = EmailPriority.NORMAL;
+        }
+    }
+
+    public EmailPayload(String address, String body) {
+        this(address, body, EmailPriority.NORMAL);
+    }
+
     public boolean isValid() {
         return address != null && address.contains("@") && body != null && !body.isBlank();
     }
@@ -0,0 +1,29 @@
+package com.example.email.rest;
+
+import com.example.email.proto.Priority;
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+/**
+ * Scheduling lane of an email, from the REST payload down to the consumers.
+ */
+public enum EmailPriority {
+    HIGH,        // Transactional mail (password resets): overtakes everything else
+    NORMAL,      // Default
+    BULK;        // Campaigns: only processed when nothing more urgent is waiting
+
+    @JsonCreator
+    public static EmailPriority parse(String value) {
+        if (value == null || value.isBlank()) {
+            return NORMAL;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    Priority toProto() {
+        return switch (this) {
+            case HIGH -> Priority.PRIORITY_HIGH;
+            case BULK -> Priority.PRIORITY_BULK;
+            case NORMAL -> Priority.PRIORITY_NORMAL;
+        };
+    }
+}
@@ -1,16 +1,34 @@
 package com.example.email.rest;
 
 import com.example.email.proto.SendEmailReply;
+import com.google.protobuf.ByteString;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
 import org.springframework.hateoas.EntityModel;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,12 +38,13 @@ import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.*;
 @RequestMapping("/api")
 @CrossOrigin(origins = "*")
 @Tag(name = "Email")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class EmailRestController {
     
     private static final Logger LOGGER = Logger.getLogger(EmailRestController.class.getName());
     
     @Autowired
-    private GrpcEmailClient grpcClient;
+    private EncryptionClient encryptionClient;
     
     @Autowired
     private RabbitMQPublisher rabbitPublisher;
@@ -33,9 +52,21 @@ public class EmailRestController {
     @Autowired
     private StorageService storageService;
     
+    @Autowired
+    private DecryptionService decryptionService;
+    
     @Autowired
     private ServiceManager serviceManager;
     
+    @Autowired
+    private CircuitBreakerRegistry breakers;
+    
+    @Autowired
+    private PurgeJobService purgeJobService;
+    
+    @Autowired
+    private ApplicationAvailability availability;
+    
     @PostMapping("/email")
     @Operation(summary = "Accept email payload and trigger async encryption workflow")
     public ResponseEntity<Map<String, String>> sendEmail(@RequestBody EmailPayload payload) {
@@ -52,29 +83,40 @@ public class EmailRestController {
             return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
                     .body(Map.of("error", "Service is currently disabled for " + domain + " emails"));
         }
+        if (!serviceManager.tryAcquire(domain)) {
+            return shed(domain);
+        }
 
-        LOGGER.info(() -> "REST received email for " + payload.address() + ". Processing asynchronously.");
+        LOGGER.info(() -> "REST received " + payload.priority() + " email for " + payload.address() + ". Processing asynchronously.");
+        long acceptedAt = System.currentTimeMillis();
 
-        CompletableFuture<SendEmailReply> grpcFuture = grpcClient.sendAsync(payload);
+        long started = System.nanoTime();
+        CompletableFuture<SendEmailReply> grpcFuture = encryptionClient.sendAsync(payload);
 
         grpcFuture.thenAccept(reply -> {
+            boolean delivered = false;
             if ("SUCCESS".equals(reply.getStatus())) {
                 try {
-                    String encryptedBody = reply.getDetails();
-                    if (encryptedBody.startsWith("Encrypted: ")) {
-                        encryptedBody = encryptedBody.substring("Encrypted: ".length());
+                    ByteString encryptedBody = reply.getEncryptedBody();
+                    if (encryptedBody.isEmpty() && reply.getDetails().startsWith("Encrypted: ")) {
+                        // Servers predating encrypted_body return the ciphertext in details
+                        encryptedBody = ByteString.copyFromUtf8(reply.getDetails().substring("Encrypted: ".length()));
                     }
 
-                    rabbitPublisher.publishEmail(payload.address(), encryptedBody);
+                    rabbitPublisher.publishEmail(payload.address(), encryptedBody, "", reply.getBodySize(), acceptedAt,
+                            payload.priority());
+                    delivered = true;
                     LOGGER.info("Async task completed: Email for " + payload.address() + " encrypted and published to RabbitMQ.");
                 } catch (Exception e) {
                     LOGGER.log(Level.SEVERE, "Failed to publish to RabbitMQ in async chain for " + payload.address(), e);
                 }
             } else {
-                 LOGGER.warning("gRPC call was not successful in async chain: " + reply.getDetails());
+                 LOGGER.warning("Encryption was not successful in async chain: " + reply.getDetails());
             }
+            recordOutcome(domain, delivered, started);
         }).exceptionally(ex -> {
-            LOGGER.log(Level.SEVERE, "gRPC call failed in async chain for " + payload.address(), ex);
+            LOGGER.log(Level.SEVERE, "Encryption failed in async chain for " + payload.address(), ex);
+            recordOutcome(domain, false, started);
             return null; // Musimy zwrócić null, to standard w exceptionally
         });
 
@@ -82,12 +124,78 @@ public class EmailRestController {
                 .body(Map.of("status", "ACCEPTED", "message", "Request accepted for processing."));
     }
     
+    @PostMapping(value = "/email/stream", consumes = MediaType.ALL_VALUE)
+    @Operation(summary = "Stream a large raw email body through chunked encryption; large ciphertexts are stored by reference")
+    public ResponseEntity<Map<String, String>> sendEmailStream(@RequestParam String address, HttpServletRequest request) {
+        if (address == null || !address.contains("@")) {
+            LOGGER.warning("Received invalid streamed payload");
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("error", "Invalid email address"));
+        }
+        
+        String domain = extractDomain(address);
+        if (!serviceManager.isServiceEnabled(domain)) {
+            LOGGER.warning("Service disabled for domain: " + domain);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(Map.of("error", "Service is currently disabled for " + domain + " emails"));
+        }
+        if (!serviceManager.tryAcquire(domain)) {
+            return shed(domain);
+        }
+        
+        // The body is never bound to an object: it is read chunk by chunk straight into the gRPC stream
+        long acceptedAt = System.currentTimeMillis();
+        long started = System.nanoTime();
+        boolean delivered = false;
+        UploadStream body = null;
+        try (UploadStream upload = new UploadStream(request.getInputStream())) {
+            body = upload;
+            SendEmailReply reply = encryptionClient.sendStream(address, body);
+            if (!"SUCCESS".equals(reply.getStatus())) {
+                LOGGER.warning("Encrypted stream was not successful: " + reply.getDetails());
+                return ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                        .body(Map.of("error", reply.getDetails()));
+            }
+            
+            rabbitPublisher.publishEmail(address, reply.getEncryptedBody(), reply.getBlobRef(), reply.getBodySize(), acceptedAt);
+            delivered = true;
+            LOGGER.info("Streamed email for " + address + " (" + reply.getBodySize() + " bytes) encrypted and published to RabbitMQ.");
+            
+            Map<String, String> response = new LinkedHashMap<>();
+            response.put("status", "ACCEPTED");
+            response.put("bytes", String.valueOf(reply.getBodySize()));
+            if (!reply.getBlobRef().isEmpty()) {
+                response.put("blobRef", reply.getBlobRef());
+            }
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to stream email body for " + address, ex);
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                    .body(Map.of("error", "Failed to stream email body: " + ex.getMessage()));
+        } finally {
+            // A client that broke off its upload says nothing about the domain
+            if (body == null || !body.failed) {
+                recordOutcome(domain, delivered, started);
+            }
+        }
+    }
+    
     @GetMapping("/health")
     @Operation(summary = "Health check for Kubernetes/containers")
     public ResponseEntity<String> health() {
         return ResponseEntity.ok("OK");
     }
     
+    @GetMapping("/ready")
+    @Operation(summary = "Readiness check: 503 until startup, including the warm-up, has finished")
+    public ResponseEntity<String> ready() {
+        ReadinessState state = availability.getReadinessState();
+        if (state != ReadinessState.ACCEPTING_TRAFFIC) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(state.name());
+        }
+        return ResponseEntity.ok("READY");
+    }
+    
     @GetMapping("/storage")
     @Operation(summary = "Fetch every stored email grouped by domain")
     public ResponseEntity<?> getAllStorages() {
@@ -101,12 +209,27 @@ public class EmailRestController {
         }
     }
     
+    @GetMapping("/storage/stream")
+    @Operation(summary = "Live tail of newly stored emails as Server-Sent Events; resume with ?cursor= or Last-Event-ID")
+    public Flux<ServerSentEvent<StorageService.StoredEmail>> streamStorage(
+            @RequestParam(required = false) String cursor,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) throws IOException {
+        try {
+            return storageService.tail(cursor != null ? cursor : lastEventId)
+                    .map(StorageService.TailEvent::toServerSentEvent);
+        } catch (IllegalArgumentException ex) {
+            // Streams cannot carry an error body, so this becomes a plain 400
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+        }
+    }
+
     @GetMapping("/storage/{domain}")
-    @Operation(summary = "Return stored emails for a specific domain")
-    public ResponseEntity<?> getDomainStorage(@PathVariable String domain) {
+    @Operation(summary = "Return stored emails for a specific domain; decrypt=true adds each plaintext body")
+    public ResponseEntity<?> getDomainStorage(@PathVariable String domain,
+                                              @RequestParam(defaultValue = "false") boolean decrypt) {
         try {
             Map<String, Object> storage = storageService.getDomainStorage(domain);
-            return ResponseEntity.ok(storage);
+            return ResponseEntity.ok(decrypt ? decryptionService.decryptPage(storage) : storage);
         } catch (Exception ex) {
             LOGGER.log(Level.SEVERE, "Failed to read storage for domain: " + domain, ex);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -114,19 +237,121 @@ public class EmailRestController {
         }
     }
 
+    @GetMapping("/storage/{domain}/recipients/{address:.+}")
+    @Operation(summary = "Page through emails sent to one address, newest first (keyset pagination); decrypt=true adds each plaintext body")
+    public ResponseEntity<?> getRecipientEmails(@PathVariable String domain,
+                                                @PathVariable String address,
+                                                @RequestParam(required = false) String cursor,
+                                                @RequestParam(defaultValue = "50") int limit,
+                                                @RequestParam(defaultValue = "false") boolean decrypt) {
+        try {
+            Map<String, Object> page = storageService.getRecipientEmails(domain, address, cursor, limit);
+            return ResponseEntity.ok(decrypt ? decryptionService.decryptPage(page) : page);
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("error", ex.getMessage()));
+        } catch (Exception ex) {
+            LOGGER.log(Level.SEVERE, "Failed to read recipient emails for " + address + " in domain: " + domain, ex);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to read storage: " + ex.getMessage()));
+        }
+    }
+    
+    @GetMapping("/storage/{domain}/count")
+    @Operation(summary = "Count stored emails for a domain without scanning the table")
+    public ResponseEntity<?> getDomainCount(@PathVariable String domain) {
+        try {
+            return ResponseEntity.ok(storageService.getDomainCount(domain));
+        } catch (Exception ex) {
+            LOGGER.log(Level.SEVERE, "Failed to count emails for domain: " + domain, ex);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to read storage: " + ex.getMessage()));
+        }
+    }
+
+    @GetMapping("/storage/{domain}/export")
+    @Operation(summary = "Stream a domain's emails as gzip/zstd-compressed NDJSON or CSV straight from COPY, optionally within a created_at range and in parallel id slices")
+    public void exportStorage(@PathVariable String domain,
+                              @RequestParam(defaultValue = "ndjson") String format,
+                              @RequestParam(defaultValue = "gzip") String compression,
+                              @RequestParam(required = false) Instant from,
+                              @RequestParam(required = false) Instant to,
+                              @RequestParam(defaultValue = "1") int parallel,
+                              HttpServletResponse response) throws IOException {
+        StorageExport.Options options;
+        try {
+            options = StorageExport.Options.parse(format, compression, from, to, parallel);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+        }
+        // Written on the request thread rather than as an async body, so long archival
+        // downloads are not cut off by the async request timeout
+        response.setContentType(options.contentType());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + options.fileName(storageService.bucketOf(domain)) + "\"");
+        try {
+            storageService.export(domain, options, response.getOutputStream());
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to export storage for domain: " + domain, ex);
+            if (response.isCommitted()) {
+                // Too late for a status: the connection is dropped without the final chunk, so
+                // the client sees a failed download rather than a short file
+                throw ex;
+            }
+            response.reset();
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to export storage: " + ex.getMessage(), ex);
+        }
+    }
+
+    @GetMapping("/stats")
+    @Operation(summary = "Per-domain, per-minute ingest counts, bytes and accept-to-store lag (defaults to the last hour)")
+    public ResponseEntity<?> getStats(@RequestParam(required = false) Instant from,
+                                      @RequestParam(required = false) Instant to,
+                                      @RequestParam(required = false) String domain) {
+        Instant end = to != null ? to : Instant.now();
+        Instant start = from != null ? from : end.minus(Duration.ofHours(1));
+        try {
+            return ResponseEntity.ok(storageService.getStats(start, end, domain));
+        } catch (Exception ex) {
+            LOGGER.log(Level.SEVERE, "Failed to read ingest statistics", ex);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to read statistics: " + ex.getMessage()));
+        }
+    }
+    
     @DeleteMapping("/storage")
-    @Operation(summary = "Remove all stored emails produced by RabbitMQ consumers")
-    public ResponseEntity<?> clearStorages() {
+    @Operation(summary = "Start a background purge of stored emails, optionally limited to a created_at range")
+    public ResponseEntity<?> clearStorages(@RequestParam(required = false) Instant from,
+                                           @RequestParam(required = false) Instant to) {
         try {
-            Map<String, Object> result = storageService.clearAllStorages();
-            return ResponseEntity.ok(result);
+            PurgeJob job = purgeJobService.submit(from, to);
+            EntityModel<PurgeJob> em = EntityModel.of(job);
+            em.add(linkTo(methodOn(EmailRestController.class).getPurgeJob(job.getId()))
+                    .withSelfRel());
+            return ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .location(linkTo(methodOn(EmailRestController.class).getPurgeJob(job.getId())).toUri())
+                    .body(em);
         } catch (Exception ex) {
-            LOGGER.log(Level.SEVERE, "Failed to clear storages", ex);
+            LOGGER.log(Level.SEVERE, "Failed to start storage purge", ex);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body(Map.of("error", "Failed to clear storage: " + ex.getMessage()));
         }
     }
     
+    @GetMapping("/storage/jobs/{id}")
+    @Operation(summary = "Progress of a storage purge job")
+    public ResponseEntity<?> getPurgeJob(@PathVariable String id) {
+        PurgeJob job = purgeJobService.getJob(id);
+        if (job == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", "Purge job not found: " + id));
+        }
+        EntityModel<PurgeJob> em = EntityModel.of(job);
+        em.add(linkTo(methodOn(EmailRestController.class).getPurgeJob(id))
+                .withSelfRel());
+        return ResponseEntity.ok(em);
+    }
+    
     @GetMapping("/services/status")
     @Operation(summary = "Get status of all email services")
     public ResponseEntity<Map<String, ServiceStatus>> getServicesStatus() {
@@ -157,6 +382,11 @@ public class EmailRestController {
         } else if (status == ServiceStatus.DISABLED) {
             em.add(linkTo(methodOn(EmailRestController.class).activateService(serviceName))
                     .withRel("activate"));
+        } else if (status == ServiceStatus.DEGRADED || status == ServiceStatus.OPEN) {
+            em.add(linkTo(methodOn(EmailRestController.class).resetService(serviceName))
+                    .withRel("reset"));
+            em.add(linkTo(methodOn(EmailRestController.class).disableService(serviceName))
+                    .withRel("disable"));
         }
         
         // Add link to list all services
@@ -176,12 +406,15 @@ public class EmailRestController {
         
         ServiceStatus currentStatus = serviceManager.getServiceStatus(serviceName);
         
-        if (currentStatus == ServiceStatus.ACTIVE) {
+        if (currentStatus != ServiceStatus.DISABLED) {
             throw new ConflictException("You CAN'T activate a service with status " + currentStatus);
         }
         
         // Change status to ACTIVE
-        serviceManager.setServiceStatus(serviceName, ServiceStatus.ACTIVE);
+        if (!serviceManager.setServiceStatus(serviceName, ServiceStatus.ACTIVE)) {
+            // Lost the compare-and-set to another replica
+            throw new ConflictException("You CAN'T activate a service with status " + serviceManager.getServiceStatus(serviceName));
+        }
         ServiceInfo serviceInfo = new ServiceInfo(serviceName, ServiceStatus.ACTIVE);
         
         EntityModel<ServiceInfo> em = EntityModel.of(serviceInfo);
@@ -213,7 +446,10 @@ public class EmailRestController {
         }
         
         // Change status to DISABLED
-        serviceManager.setServiceStatus(serviceName, ServiceStatus.DISABLED);
+        if (!serviceManager.setServiceStatus(serviceName, ServiceStatus.DISABLED)) {
+            // Lost the compare-and-set to another replica
+            throw new ConflictException("You CAN'T disable a service with status " + serviceManager.getServiceStatus(serviceName));
+        }
         ServiceInfo serviceInfo = new ServiceInfo(serviceName, ServiceStatus.DISABLED);
         
         EntityModel<ServiceInfo> em = EntityModel.of(serviceInfo);
@@ -230,6 +466,85 @@ public class EmailRestController {
         return ResponseEntity.ok(em);
     }
     
+    @PatchMapping("/services/{serviceName}/reset")
+    @Operation(summary = "Close a tripped circuit breaker")
+    public ResponseEntity<?> resetService(@PathVariable String serviceName) {
+        if (!serviceManager.serviceExists(serviceName)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", "Service not found: " + serviceName));
+        }
+        
+        ServiceStatus currentStatus = serviceManager.getServiceStatus(serviceName);
+        
+        if (currentStatus != ServiceStatus.DEGRADED && currentStatus != ServiceStatus.OPEN) {
+            throw new ConflictException("You CAN'T reset a service with status " + currentStatus);
+        }
+        
+        serviceManager.resetCircuitBreaker(serviceName);
+        ServiceInfo serviceInfo = new ServiceInfo(serviceName, serviceManager.getServiceStatus(serviceName));
+        
+        EntityModel<ServiceInfo> em = EntityModel.of(serviceInfo);
+        
+        em.add(linkTo(methodOn(EmailRestController.class).getService(serviceName))
+                .withSelfRel());
+        em.add(linkTo(methodOn(EmailRestController.class).disableService(serviceName))
+                .withRel("disable"));
+        em.add(linkTo(methodOn(EmailRestController.class).getServicesStatus())
+                .withRel("list all"));
+        
+        LOGGER.info("Circuit breaker for " + serviceName + " has been reset");
+        return ResponseEntity.ok(em);
+    }
+    
+    /**
+     * Rejects a request for a domain whose circuit breaker is open, without logging or
+     * touching gRPC/RabbitMQ.
+     */
+    private ResponseEntity<Map<String, String>> shed(String domain) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(serviceManager.retryAfterSeconds(domain)))
+                .body(Map.of("error", "Service is temporarily unavailable for " + domain + " emails ("
+                        + serviceManager.getServiceStatus(domain) + ")"));
+    }
+    
+    private void recordOutcome(String domain, boolean success, long startedNanos) {
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        if (success) {
+            breakers.recordSuccess(domain, latencyMillis);
+        } else {
+            breakers.recordFailure(domain, latencyMillis);
+        }
+    }
+    
+    
+    /** The request body, remembering whether reading it failed. */
+    private static final class UploadStream extends FilterInputStream {
+        private boolean failed;
+        
+        UploadStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
     
     private String extractDomain(String email) {
         if (email == null || !email.contains("@")) {
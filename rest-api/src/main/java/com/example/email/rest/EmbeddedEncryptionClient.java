@@ -0,0 +1,178 @@
+package com.example.email.rest;
+
+import com.example.email.core.EmailEncryptor;
+import com.example.email.core.SerialExecutor;
+import com.example.email.core.StreamingUpload;
+import com.example.email.proto.DecryptReply;
+import com.example.email.proto.DecryptRequest;
+import com.example.email.proto.SendEmailReply;
+import com.example.email.proto.SendEmailRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the encryption service's {@link EmailEncryptor} inside the REST API, for deployments
+ * where grpc-service would run next to it anyway. Requests skip protobuf serialization, the
+ * network hop and the service's executor handoff.
+ * <ul>
+ *   <li>unary bodies are encrypted on the calling thread, which is cheaper than any handoff;</li>
+ *   <li>streamed uploads and decrypts, which may touch the blob store, run on a small pool of
+ *   their own so reactive callers never do file I/O on an event loop.</li>
+ * </ul>
+ * Large bodies are spilled to the blob directory, which must be the one the deployment's
+ * decrypts read from.
+ */
+public final class EmbeddedEncryptionClient implements EncryptionClient {
+    private static final Logger LOGGER = Logger.getLogger(EmbeddedEncryptionClient.class.getName());
+
+    private final EmailEncryptor encryptor;
+    private final ExecutorService executor;
+    private final int chunkBytes;
+
+    public EmbeddedEncryptionClient(EmailEncryptor encryptor, int threads, int chunkBytes) {
+        this.encryptor = encryptor;
+        this.chunkBytes = chunkBytes;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "embedded-encryption-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<SendEmailReply> sendAsync(EmailPayload payload) {
+        SendEmailRequest request = SendEmailRequest.newBuilder()
+                .setAddress(payload.address())
+                .setBody(ByteString.copyFromUtf8(payload.body()))
+                .setPriority(payload.priority().toProto())
+                .build();
+        return CompletableFuture.completedFuture(encryptor.encrypt(request));
+    }
+
+    @Override
+    public SendEmailReply sendStream(String address, InputStream body) throws IOException {
+        LOGGER.info(() -> "Encrypting streamed upload in process for " + address);
+        // The chunk buffer is reused: each chunk is encoded before the next read
+        byte[] buffer = new byte[chunkBytes];
+        try (StreamingUpload upload = encryptor.newUpload()) {
+            int read;
+            while ((read = body.readNBytes(buffer, 0, buffer.length)) > 0) {
+                upload.accept(address, UnsafeByteOperations.unsafeWrap(buffer, 0, read));
+            }
+            return encryptor.finish(upload);
+        }
+    }
+
+    /**
+     * Chunks are requested one at a time and each is encrypted before the next is asked for,
+     * on a serial executor over the pool, so the upload stays in order.
+     */
+    @Override
+    public CompletableFuture<SendEmailReply> sendStream(String address, Publisher<ByteString> body) {
+        CompletableFuture<SendEmailReply> future = new CompletableFuture<>();
+        StreamingUpload upload = encryptor.newUpload();
+        SerialExecutor serial = new SerialExecutor(executor);
+        LOGGER.info(() -> "Encrypting reactive streamed upload in process for " + address);
+
+        body.subscribe(new Subscriber<>() {
+            // Set before the first chunk is requested, then only used from tasks
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(ByteString data) {
+                serial.execute(() -> {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        upload.accept(address, data);
+                        subscription.request(1);
+                    } catch (IOException | RuntimeException e) {
+                        subscription.cancel();
+                        fail(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                serial.execute(() -> fail(t));
+            }
+
+            @Override
+            public void onComplete() {
+                serial.execute(() -> {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(encryptor.finish(upload));
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                });
+            }
+
+            private void fail(Throwable t) {
+                closeQuietly(upload);
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<List<DecryptReply>> decryptBatch(List<DecryptRequest> requests) {
+        LOGGER.fine(() -> "Decrypting batch of " + requests.size() + " emails in process");
+        return CompletableFuture.supplyAsync(() -> {
+            List<DecryptReply> replies = new ArrayList<>(requests.size());
+            for (DecryptRequest request : requests) {
+                replies.add(encryptor.decrypt(request));
+            }
+            return replies;
+        }, executor);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void closeQuietly(StreamingUpload upload) {
+        try {
+            upload.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to discard partial upload", e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.email.rest;
+
+import com.example.email.proto.DecryptReply;
+import com.example.email.proto.DecryptRequest;
+import com.example.email.proto.SendEmailReply;
+import com.google.protobuf.ByteString;
+import org.reactivestreams.Publisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The encryption service as the REST API uses it: remote over gRPC ({@link GrpcEmailClient})
+ * or in process ({@link EmbeddedEncryptionClient}), chosen with {@code encryption.mode}.
+ */
+public interface EncryptionClient extends AutoCloseable {
+
+    CompletableFuture<SendEmailReply> sendAsync(EmailPayload payload);
+
+    /**
+     * Encrypts a body of unknown size read from {@code body}, holding a bounded part of it in
+     * memory. Blocks until the reply is ready.
+     */
+    SendEmailReply sendStream(String address, InputStream body) throws IOException;
+
+    /** Non-blocking variant of {@link #sendStream(String, InputStream)} for the reactive stack. */
+    CompletableFuture<SendEmailReply> sendStream(String address, Publisher<ByteString> body);
+
+    /** Decrypts stored emails; replies come back in request order. */
+    CompletableFuture<List<DecryptReply>> decryptBatch(List<DecryptRequest> requests);
+
+    @Override
+    void close();
+}
@@ -29,4 +29,18 @@ public class GlobalExceptionHandler {
         
         return ResponseEntity.status(HttpStatus.CONFLICT).body(problemDetail);
     }
+    
+    @ResponseBody
+    @ExceptionHandler(ServiceUnavailableException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public ResponseEntity<?> serviceUnavailableHandler(ServiceUnavailableException e) {
+        ProblemDetail problemDetail = ProblemDetail.forStatusAndDetail(
+            HttpStatus.SERVICE_UNAVAILABLE, 
+            e.getMessage()
+        );
+        problemDetail.setTitle("SERVICE UNAVAILABLE");
+        problemDetail.setType(URI.create("about:blank"));
+        
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(problemDetail);
+    }
 }
@@ -1,17 +1,103 @@
 package com.example.email.rest;
 
+import com.example.email.core.BlobStore;
+import com.example.email.core.EmailEncryptor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
 @Configuration
 public class GrpcConfig {
     
-    @Value("${grpc.target:localhost:50051}")
+    private static final Logger LOGGER = Logger.getLogger(GrpcConfig.class.getName());
+    
+    /** {@code grpc} calls grpc-service; {@code embedded} runs the same encryption in process. */
+    @Value("${encryption.mode:grpc}")
+    private String encryptionMode;
+    
+    @Value("${encryption.embedded.blob-dir:/data/storage/blobs}")
+    private String embeddedBlobDir;
+    
+    @Value("${encryption.embedded.inline-limit-bytes:65536}")
+    private int embeddedInlineLimit;
+    
+    @Value("${encryption.embedded.decrypt-max-body-bytes:3145728}")
+    private int embeddedDecryptMaxBytes;
+    
+    @Value("${encryption.embedded.threads:4}")
+    private int embeddedThreads;
+    
+    @Value("${grpc.target:localhost:50001}")
     private String grpcTarget;
     
-    @Bean
-    public GrpcEmailClient grpcEmailClient() {
-        return new GrpcEmailClient(grpcTarget);
+    @Value("${grpc.client.deadline-ms:5000}")
+    private long deadlineMillis;
+    
+    @Value("${grpc.client.channels:2}")
+    private int channels;
+    
+    @Value("${grpc.client.keepalive-time-ms:30000}")
+    private long keepAliveTimeMillis;
+    
+    @Value("${grpc.client.keepalive-timeout-ms:10000}")
+    private long keepAliveTimeoutMillis;
+    
+    @Value("${grpc.client.max-attempts:3}")
+    private int maxAttempts;
+    
+    @Value("${grpc.client.hedging.enabled:false}")
+    private boolean hedging;
+    
+    @Value("${grpc.client.hedging.delay-ms:200}")
+    private long hedgingDelayMillis;
+    
+    @Value("${grpc.client.max-inbound-message-bytes:4194304}")
+    private int maxInboundMessageBytes;
+    
+    @Value("${grpc.client.stream-deadline-ms:120000}")
+    private long streamDeadlineMillis;
+    
+    @Value("${grpc.client.stream-chunk-bytes:65536}")
+    private int streamChunkBytes;
+    
+    /**
+     * Chosen here rather than with conditional beans, so an AOT-processed build still follows
+     * {@code encryption.mode} at runtime.
+     */
+    @Bean(destroyMethod = "close")
+    public EncryptionClient encryptionClient() {
+        if ("embedded".equalsIgnoreCase(encryptionMode)) {
+            BlobStore blobStore;
+            try {
+                blobStore = new BlobStore(Path.of(embeddedBlobDir));
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Cannot create blob store at " + embeddedBlobDir, ex);
+            }
+            LOGGER.info(() -> "Encrypting in process (blob store " + blobStore.root()
+                    + ", inline limit " + embeddedInlineLimit + " bytes)");
+            return new EmbeddedEncryptionClient(
+                    new EmailEncryptor(blobStore, embeddedInlineLimit, embeddedDecryptMaxBytes),
+                    embeddedThreads,
+                    streamChunkBytes);
+        }
+        if (!"grpc".equalsIgnoreCase(encryptionMode)) {
+            throw new IllegalStateException("Unknown encryption.mode: " + encryptionMode + " (expected grpc or embedded)");
+        }
+        return new GrpcEmailClient(grpcTarget, new GrpcEmailClient.Settings(
+                deadlineMillis,
+                channels,
+                keepAliveTimeMillis,
+                keepAliveTimeoutMillis,
+                maxAttempts,
+                hedging,
+                hedgingDelayMillis,
+                maxInboundMessageBytes,
+                streamDeadlineMillis,
+                streamChunkBytes));
     }
 }
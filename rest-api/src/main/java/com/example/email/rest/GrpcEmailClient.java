@@ -1,54 +1,120 @@
 package com.example.email.rest;
 
+import com.example.email.proto.DecryptReply;
+import com.example.email.proto.DecryptRequest;
+import com.example.email.proto.EmailChunk;
 import com.example.email.proto.EmailServiceGrpc;
 import com.example.email.proto.SendEmailReply;
 import com.example.email.proto.SendEmailRequest;
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
-public final class GrpcEmailClient implements AutoCloseable {
+public final class GrpcEmailClient implements EncryptionClient {
     private static final Logger LOGGER = Logger.getLogger(GrpcEmailClient.class.getName());
-    private final ManagedChannel channel;
-    private final EmailServiceGrpc.EmailServiceStub asyncStub;
+    private static final int DEFAULT_PORT = 50001; // Default port matching GrpcServer
+    /** Target prefix naming an in-process server in this JVM, as the embedded pipeline runs it. */
+    public static final String IN_PROCESS_PREFIX = "in-process:";
+
+    private final List<ManagedChannel> channels;
+    private final List<EmailServiceGrpc.EmailServiceStub> stubs;
+    private final AtomicInteger nextStub = new AtomicInteger();
+    private final Settings settings;
+
+    /**
+     * Client-side tuning knobs. {@code channels} is the size of the channel pool; each channel
+     * load-balances round-robin over every address the target resolves to, so the pool only
+     * spreads HTTP/2 stream concurrency, it does not pin callers to a backend.
+     */
+    public record Settings(long deadlineMillis,
+                           int channels,
+                           long keepAliveTimeMillis,
+                           long keepAliveTimeoutMillis,
+                           int maxAttempts,
+                           boolean hedging,
+                           long hedgingDelayMillis,
+                           int maxInboundMessageBytes,
+                           long streamDeadlineMillis,
+                           int streamChunkBytes) {
+
+        public static Settings defaults() {
+            return new Settings(5000, 2, 30000, 10000, 3, false, 200, 4 * 1024 * 1024, 120000, 64 * 1024);
+        }
+    }
 
     public GrpcEmailClient(String target) {
-        this.channel = buildChannel(target);
-        this.asyncStub = EmailServiceGrpc.newStub(channel);
-        LOGGER.info(() -> "Connected to gRPC target (async) " + target);
+        this(target, Settings.defaults());
     }
 
+    public GrpcEmailClient(String target, Settings settings) {
+        this.settings = settings;
+        int poolSize = Math.max(1, settings.channels());
+        this.channels = new ArrayList<>(poolSize);
+        this.stubs = new ArrayList<>(poolSize);
+        String resolvedTarget = resolveTarget(target);
+        for (int i = 0; i < poolSize; i++) {
+            ManagedChannel channel = buildChannel(resolvedTarget);
+            channels.add(channel);
+            stubs.add(EmailServiceGrpc.newStub(channel));
+        }
+        LOGGER.info(() -> "Connected to gRPC target (async) " + resolvedTarget + " with " + poolSize
+                + " channel(s), deadline " + settings.deadlineMillis() + " ms");
+    }
+
+    @Override
     public CompletableFuture<SendEmailReply> sendAsync(EmailPayload payload) {
         CompletableFuture<SendEmailReply> future = new CompletableFuture<>();
-        
+
         SendEmailRequest request = SendEmailRequest.newBuilder()
                 .setAddress(payload.address())
-                .setBody(payload.body())
+                .setBody(ByteString.copyFromUtf8(payload.body()))
+                .setPriority(payload.priority().toProto())
                 .build();
-        
+
         LOGGER.info(() -> "Sending async gRPC request for " + payload.address());
-        
-        asyncStub.sendEmail(request, new StreamObserver<SendEmailReply>() {
+
+        // The deadline covers every retry/hedge attempt made by the channel
+        EmailServiceGrpc.EmailServiceStub stub = nextStub()
+                .withDeadlineAfter(settings.deadlineMillis(), TimeUnit.MILLISECONDS);
+
+        stub.sendEmail(request, new StreamObserver<SendEmailReply>() {
             private SendEmailReply response;
-            
+
             @Override
             public void onNext(SendEmailReply value) {
                 response = value;
                 LOGGER.info(() -> "Received async gRPC reply: " + value.getStatus());
             }
-            
+
             @Override
             public void onError(Throwable t) {
                 LOGGER.log(Level.SEVERE, "gRPC async call failed", t);
                 future.completeExceptionally(t);
             }
-            
+
             @Override
             public void onCompleted() {
                 if (response != null) {
@@ -58,43 +124,286 @@ public final class GrpcEmailClient implements AutoCloseable {
                 }
             }
         });
-        
+
         return future;
     }
 
-    public SendEmailReply send(EmailPayload payload) {
+    /**
+     * Streams a body of unknown size to SendEmailStream in fixed-size chunks, reading from
+     * {@code body} only as fast as the transport accepts data, so at most one chunk is held
+     * in memory regardless of the body size. Blocks the calling thread until the reply
+     * arrives or the stream deadline expires.
+     */
+    @Override
+    public SendEmailReply sendStream(String address, InputStream body) throws IOException {
+        CompletableFuture<SendEmailReply> future = new CompletableFuture<>();
+        Object readyLock = new Object();
+
+        ClientResponseObserver<EmailChunk, SendEmailReply> responseObserver = new ClientResponseObserver<>() {
+            private SendEmailReply response;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<EmailChunk> requestStream) {
+                requestStream.setOnReadyHandler(() -> {
+                    synchronized (readyLock) {
+                        readyLock.notifyAll();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(SendEmailReply value) {
+                response = value;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+                synchronized (readyLock) {
+                    readyLock.notifyAll();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                if (response != null) {
+                    future.complete(response);
+                } else {
+                    future.completeExceptionally(new RuntimeException("No response received"));
+                }
+            }
+        };
+
+        ClientCallStreamObserver<EmailChunk> requestStream = (ClientCallStreamObserver<EmailChunk>) nextStub()
+                .withDeadlineAfter(settings.streamDeadlineMillis(), TimeUnit.MILLISECONDS)
+                .sendEmailStream(responseObserver);
+
+        LOGGER.info(() -> "Streaming gRPC upload for " + address);
+        byte[] buffer = new byte[settings.streamChunkBytes()];
+        boolean first = true;
         try {
-            return sendAsync(payload).get(10, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to get async response", e);
-            throw new RuntimeException("gRPC call failed", e);
+            int read;
+            while ((read = body.readNBytes(buffer, 0, buffer.length)) > 0 || first) {
+                awaitReady(requestStream, readyLock, future);
+                if (future.isDone()) {
+                    break;
+                }
+                requestStream.onNext(EmailChunk.newBuilder()
+                        .setAddress(first ? address : "")
+                        .setData(ByteString.copyFrom(buffer, 0, read))
+                        .build());
+                first = false;
+            }
+            requestStream.onCompleted();
+        } catch (IOException | RuntimeException e) {
+            requestStream.onError(e);
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            requestStream.onError(e);
+            throw new IOException("Interrupted while streaming body", e);
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for gRPC reply", e);
+        } catch (ExecutionException e) {
+            throw new IOException("gRPC stream failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #sendStream(String, InputStream)} for the reactive stack:
+     * chunks are requested from {@code body} one at a time, only while the gRPC stream is
+     * ready, so HTTP reads are paced by the gRPC flow-control window instead of a thread.
+     */
+    @Override
+    public CompletableFuture<SendEmailReply> sendStream(String address, Publisher<ByteString> body) {
+        CompletableFuture<SendEmailReply> future = new CompletableFuture<>();
+        AtomicReference<Subscription> subscription = new AtomicReference<>();
+        AtomicReference<ClientCallStreamObserver<EmailChunk>> call = new AtomicReference<>();
+        // At most one chunk is requested at a time
+        AtomicBoolean awaitingChunk = new AtomicBoolean();
+        Runnable demand = () -> {
+            Subscription current = subscription.get();
+            ClientCallStreamObserver<EmailChunk> requestStream = call.get();
+            if (current != null && requestStream != null && requestStream.isReady()
+                    && awaitingChunk.compareAndSet(false, true)) {
+                current.request(1);
+            }
+        };
+
+        ClientResponseObserver<EmailChunk, SendEmailReply> responseObserver = new ClientResponseObserver<>() {
+            private SendEmailReply response;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<EmailChunk> requestStream) {
+                requestStream.setOnReadyHandler(demand);
+            }
+
+            @Override
+            public void onNext(SendEmailReply value) {
+                response = value;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Subscription current = subscription.get();
+                if (current != null) {
+                    current.cancel();
+                }
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (response != null) {
+                    future.complete(response);
+                } else {
+                    future.completeExceptionally(new RuntimeException("No response received"));
+                }
+            }
+        };
+
+        LOGGER.info(() -> "Streaming reactive gRPC upload for " + address);
+        ClientCallStreamObserver<EmailChunk> requestStream = (ClientCallStreamObserver<EmailChunk>) nextStub()
+                .withDeadlineAfter(settings.streamDeadlineMillis(), TimeUnit.MILLISECONDS)
+                .sendEmailStream(responseObserver);
+        call.set(requestStream);
+
+        body.subscribe(new Subscriber<>() {
+            private boolean first = true;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription.set(s);
+                demand.run();
+            }
+
+            @Override
+            public void onNext(ByteString data) {
+                requestStream.onNext(EmailChunk.newBuilder()
+                        .setAddress(first ? address : "")
+                        .setData(data)
+                        .build());
+                first = false;
+                awaitingChunk.set(false);
+                demand.run();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                requestStream.onError(t);
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onComplete() {
+                if (first) {
+                    requestStream.onNext(EmailChunk.newBuilder().setAddress(address).build());
+                }
+                requestStream.onCompleted();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Decrypts {@code requests} in one DecryptBatch call. Requests are written only while the
+     * stream is ready, so a large page is not buffered in the transport all at once. Replies
+     * come back in request order.
+     */
+    @Override
+    public CompletableFuture<List<DecryptReply>> decryptBatch(List<DecryptRequest> requests) {
+        CompletableFuture<List<DecryptReply>> future = new CompletableFuture<>();
+        Iterator<DecryptRequest> pending = requests.iterator();
+
+        ClientResponseObserver<DecryptRequest, DecryptReply> responseObserver = new ClientResponseObserver<>() {
+            private final List<DecryptReply> replies = new ArrayList<>(requests.size());
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<DecryptRequest> requestStream) {
+                requestStream.setOnReadyHandler(() -> {
+                    // Runs serially on the call executor, and only while the stream is open
+                    while (requestStream.isReady() && pending.hasNext()) {
+                        requestStream.onNext(pending.next());
+                        if (!pending.hasNext()) {
+                            requestStream.onCompleted();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(DecryptReply value) {
+                replies.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                future.complete(replies);
+            }
+        };
+
+        LOGGER.fine(() -> "Decrypting batch of " + requests.size() + " emails");
+        ClientCallStreamObserver<DecryptRequest> requestStream = (ClientCallStreamObserver<DecryptRequest>) nextStub()
+                .withDeadlineAfter(settings.streamDeadlineMillis(), TimeUnit.MILLISECONDS)
+                .decryptBatch(responseObserver);
+        if (requests.isEmpty()) {
+            requestStream.onCompleted();
+        }
+        return future;
+    }
+
+    private static void awaitReady(ClientCallStreamObserver<EmailChunk> requestStream,
+                                   Object readyLock,
+                                   CompletableFuture<SendEmailReply> future) throws InterruptedException {
+        synchronized (readyLock) {
+            while (!requestStream.isReady() && !future.isDone()) {
+                readyLock.wait(100);
+            }
         }
     }
 
     @Override
     public void close() {
-        channel.shutdown();
+        channels.forEach(ManagedChannel::shutdown);
         try {
-            if (!channel.awaitTermination(5, TimeUnit.SECONDS)) {
-                LOGGER.warning("Forcing gRPC channel shutdown.");
-                channel.shutdownNow();
+            for (ManagedChannel channel : channels) {
+                if (!channel.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOGGER.warning("Forcing gRPC channel shutdown.");
+                    channel.shutdownNow();
+                }
             }
         } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
             LOGGER.log(Level.WARNING, "Interrupted while closing gRPC channel", ex);
-            channel.shutdownNow();
+            channels.forEach(ManagedChannel::shutdownNow);
         }
     }
 
-    private ManagedChannel buildChannel(String target) {
-        if (target.contains("://")) {
-            return ManagedChannelBuilder.forTarget(target)
-                    .usePlaintext()
-                    .build();
+    private EmailServiceGrpc.EmailServiceStub nextStub() {
+        return stubs.get(Math.floorMod(nextStub.getAndIncrement(), stubs.size()));
+    }
+
+    /**
+     * Plain {@code host:port} targets are turned into {@code dns:///host:port} so the channel
+     * sees every A record (e.g. a headless k8s service) instead of a single resolved address.
+     */
+    private String resolveTarget(String target) {
+        if (target.contains("://") || target.startsWith(IN_PROCESS_PREFIX)) {
+            return target;
         }
 
         String host = target;
-        int port = 50001; // Default port matching GrpcServer
+        int port = DEFAULT_PORT;
         int separatorIndex = target.lastIndexOf(':');
         if (separatorIndex > -1 && separatorIndex < target.length() - 1) {
             host = target.substring(0, separatorIndex);
@@ -102,8 +411,63 @@ public final class GrpcEmailClient implements AutoCloseable {
         }
 
         LOGGER.info("Connecting to gRPC via host:port → " + host + ":" + port);
-        return ManagedChannelBuilder.forAddress(host, port)
-                .usePlaintext()
+        return "dns:///" + host + ":" + port;
+    }
+
+    private ManagedChannel buildChannel(String target) {
+        ManagedChannelBuilder<?> builder;
+        if (target.startsWith(IN_PROCESS_PREFIX)) {
+            // No connection to keep alive; deadlines, retries and message limits still apply
+            builder = InProcessChannelBuilder.forName(target.substring(IN_PROCESS_PREFIX.length()));
+        } else {
+            builder = ManagedChannelBuilder.forTarget(target)
+                    .usePlaintext()
+                    .keepAliveTime(settings.keepAliveTimeMillis(), TimeUnit.MILLISECONDS)
+                    .keepAliveTimeout(settings.keepAliveTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        return builder
+                .defaultServiceConfig(serviceConfig())
+                .enableRetry()
+                .maxInboundMessageSize(settings.maxInboundMessageBytes())
                 .build();
     }
+
+    /**
+     * Service config with round-robin balancing and either a retry or a hedging policy for
+     * SendEmail (gRPC allows only one of the two per method). Encryption is idempotent, so
+     * hedging a slow backend with a second attempt is safe.
+     */
+    private Map<String, Object> serviceConfig() {
+        Map<String, Object> policy;
+        String policyName;
+        double attempts = Math.max(1, settings.maxAttempts());
+        if (settings.hedging()) {
+            policyName = "hedgingPolicy";
+            policy = Map.of(
+                    "maxAttempts", attempts,
+                    "hedgingDelay", seconds(settings.hedgingDelayMillis()),
+                    "nonFatalStatusCodes", List.of("UNAVAILABLE"));
+        } else {
+            policyName = "retryPolicy";
+            policy = Map.of(
+                    "maxAttempts", attempts,
+                    "initialBackoff", "0.1s",
+                    "maxBackoff", "1s",
+                    "backoffMultiplier", 2.0,
+                    "retryableStatusCodes", List.of("UNAVAILABLE"));
+        }
+
+        Map<String, Object> methodConfig = Map.of(
+                "name", List.of(Map.of("service", EmailServiceGrpc.SERVICE_NAME, "method", "SendEmail")),
+                "waitForReady", false,
+                policyName, policy);
+
+        return Map.of(
+                "loadBalancingConfig", List.of(Map.of("round_robin", Map.of())),
+                "methodConfig", List.of(methodConfig));
+    }
+
+    private static String seconds(long millis) {
+        return (millis / 1000.0) + "s";
+    }
 }
@@ -0,0 +1,119 @@
+package com.example.email.rest;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Short-lived cache of decrypted bodies for emails read repeatedly with {@code ?decrypt=true}.
+ * Plaintexts are kept off-heap in direct buffers, bounded by their total size, and
+ * overwritten with zeros as soon as they are evicted, expire or are replaced, so they do not
+ * linger in memory or show up in heap dumps.
+ * <p>
+ * Stored rows never change, so an entry keyed by bucket and row id cannot go stale; the TTL
+ * only limits how long plaintext stays in memory.
+ */
+final class PlaintextCache {
+
+    private record Key(String bucket, long id) {
+    }
+
+    /** One plaintext; reads and wiping are serialized so a reader never sees a half-zeroed body. */
+    private static final class Entry {
+        private final ByteBuffer buffer;
+        private boolean wiped;
+
+        Entry(byte[] plaintext) {
+            buffer = ByteBuffer.allocateDirect(plaintext.length);
+            buffer.put(plaintext).flip();
+        }
+
+        synchronized byte[] read() {
+            if (wiped) {
+                return null;
+            }
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            return copy;
+        }
+
+        synchronized void wipe() {
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            wiped = true;
+        }
+
+        int weight() {
+            return buffer.capacity() + 64;
+        }
+    }
+
+    private final Cache<Key, Entry> cache;
+
+    /**
+     * @param maxBytes total size of the cached plaintexts; {@code 0} disables the cache
+     */
+    PlaintextCache(long maxBytes, Duration ttl) {
+        cache = maxBytes <= 0 ? null : Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Entry entry) -> entry.weight())
+                .expireAfterWrite(ttl)
+                // Wipe on the evicting thread rather than later on the common pool
+                .executor(Runnable::run)
+                // Expire on time even when nothing reads the cache
+                .scheduler(Scheduler.systemScheduler())
+                .removalListener((Key key, Entry entry, RemovalCause cause) -> {
+                    if (entry != null) {
+                        entry.wipe();
+                    }
+                })
+                .build();
+    }
+
+    boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * The cached plaintext, or null. The caller owns the returned copy and should zero it
+     * once done.
+     */
+    byte[] get(String bucket, long id) {
+        if (cache == null) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(new Key(bucket, id));
+        return entry == null ? null : entry.read();
+    }
+
+    /** Copies {@code plaintext} off-heap; the caller may zero its array afterwards. */
+    void put(String bucket, long id, byte[] plaintext) {
+        if (cache != null) {
+            cache.put(new Key(bucket, id), new Entry(plaintext));
+        }
+    }
+
+    long size() {
+        return cache == null ? 0 : cache.estimatedSize();
+    }
+
+    /** Wipes and drops every entry. */
+    void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+            cache.cleanUp();
+        }
+    }
+
+    static void zero(byte[] bytes) {
+        if (bytes != null) {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.email.rest;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DTO and live progress of a background storage purge. Each bucket is purged by its own
+ * task; the job is done once every bucket is.
+ */
+public class PurgeJob {
+
+    public enum State {
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    private final String id;
+    private final Instant from;
+    private final Instant to;
+    private final Instant createdAt = Instant.now();
+    private final Map<String, BucketProgress> buckets = new LinkedHashMap<>();
+
+    public PurgeJob(String id, Instant from, Instant to, List<String> bucketNames) {
+        this.id = id;
+        this.from = from;
+        this.to = to;
+        for (String bucket : bucketNames) {
+            buckets.put(bucket, new BucketProgress(bucket));
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /** Start of the purged created_at range, or null for everything. */
+    public Instant getFrom() {
+        return from;
+    }
+
+    /** End (exclusive) of the purged created_at range, or null for everything. */
+    public Instant getTo() {
+        return to;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public State getState() {
+        boolean anyRunning = false;
+        boolean anyFailed = false;
+        boolean allPending = true;
+        for (BucketProgress progress : buckets.values()) {
+            State state = progress.getState();
+            anyRunning |= state == State.RUNNING || state == State.PENDING;
+            anyFailed |= state == State.FAILED;
+            allPending &= state == State.PENDING;
+        }
+        if (allPending) {
+            return State.PENDING;
+        }
+        if (anyRunning) {
+            return State.RUNNING;
+        }
+        return anyFailed ? State.FAILED : State.COMPLETED;
+    }
+
+    public long getDeletedEmails() {
+        return buckets.values().stream().mapToLong(BucketProgress::getDeleted).sum();
+    }
+
+    public Map<String, BucketProgress> getBuckets() {
+        return buckets;
+    }
+
+    boolean isFinished() {
+        State state = getState();
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    public static class BucketProgress {
+        private final String bucket;
+        private volatile State state = State.PENDING;
+        private volatile String method;
+        private volatile long deleted;
+        private volatile int percent;
+        private volatile String error;
+        private volatile Instant finishedAt;
+
+        BucketProgress(String bucket) {
+            this.bucket = bucket;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /** "truncate" or "chunked". */
+        public String getMethod() {
+            return method;
+        }
+
+        public long getDeleted() {
+            return deleted;
+        }
+
+        public int getPercent() {
+            return percent;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Instant getFinishedAt() {
+            return finishedAt;
+        }
+
+        void start(String method) {
+            this.method = method;
+            this.state = State.RUNNING;
+        }
+
+        void advance(long deletedRows, int percentDone) {
+            this.deleted += deletedRows;
+            this.percent = percentDone;
+        }
+
+        void complete() {
+            this.percent = 100;
+            this.finishedAt = Instant.now();
+            this.state = State.COMPLETED;
+        }
+
+        void fail(String message) {
+            this.error = message;
+            this.finishedAt = Instant.now();
+            this.state = State.FAILED;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.email.rest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs storage purges in the background, one task per bucket, so a large purge holds
+ * neither the request thread nor a database connection beyond one short chunk at a time.
+ */
+@Service
+public class PurgeJobService {
+
+    private static final Logger LOGGER = Logger.getLogger(PurgeJobService.class.getName());
+
+    private final StorageService storageService;
+    private final ExecutorService executor;
+    private final Map<String, PurgeJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${storage.purge.job-retention-ms:3600000}")
+    private long jobRetentionMillis;
+
+    public PurgeJobService(StorageService storageService,
+                           @Value("${storage.purge.threads:3}") int threads) {
+        this.storageService = storageService;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "storage-purge-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts purging every bucket, or only emails with {@code from <= created_at < to} when a
+     * range is given (either end may be open).
+     * @return the job, already registered for {@link #getJob}
+     */
+    public PurgeJob submit(Instant from, Instant to) throws IOException {
+        evictFinishedJobs();
+        PurgeJob job = new PurgeJob(UUID.randomUUID().toString(), from, to, storageService.buckets());
+        jobs.put(job.getId(), job);
+        for (PurgeJob.BucketProgress progress : job.getBuckets().values()) {
+            executor.execute(() -> {
+                try {
+                    storageService.purgeBucket(progress.getBucket(), from, to, progress);
+                    progress.complete();
+                } catch (Exception ex) {
+                    LOGGER.log(Level.SEVERE, "Purge job " + job.getId() + " failed for " + progress.getBucket(), ex);
+                    progress.fail(ex.getMessage());
+                }
+            });
+        }
+        LOGGER.info("Started purge job " + job.getId() + (from != null || to != null ? " for " + from + " - " + to : ""));
+        return job;
+    }
+
+    public PurgeJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    private void evictFinishedJobs() {
+        Instant cutoff = Instant.now().minusMillis(jobRetentionMillis);
+        jobs.values().removeIf(job -> job.isFinished() && job.getCreatedAt().isBefore(cutoff));
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+}
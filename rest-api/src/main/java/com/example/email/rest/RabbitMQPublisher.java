@@ -1,14 +1,26 @@
 package com.example.email.rest;
 
+import com.example.email.proto.QueuedEmail;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,6 +30,17 @@ public class RabbitMQPublisher {
     
     private static final Logger LOGGER = Logger.getLogger(RabbitMQPublisher.class.getName());
     private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final LZ4Compressor LZ4 = LZ4Factory.fastestInstance().fastCompressor();
+    
+    static final String CONTENT_TYPE_JSON = "application/json";
+    static final String CONTENT_TYPE_PROTOBUF = "application/x-protobuf";
+    static final String CONTENT_ENCODING_LZ4 = "lz4";
+    static final String ORIGINAL_LENGTH_HEADER = "x-original-length";
+    /** The recipient address, which partitioned consumers hash to keep each recipient in order. */
+    static final String PARTITION_KEY_HEADER = "x-partition-key";
+    static final String EXCHANGE = "emails";
+    /** HIGH priority lane; consumers drain its queue before their regular one. */
+    static final String PRIORITY_EXCHANGE = "emails-priority";
     
     @Value("${rabbitmq.host:localhost}")
     private String host;
@@ -31,10 +54,48 @@ public class RabbitMQPublisher {
     @Value("${rabbitmq.pass:guest}")
     private String pass;
     
+    /** Wire format for queue payloads: "json" or "protobuf". Consumers accept both. */
+    @Value("${rabbitmq.format:json}")
+    private String format;
+    
+    /** Compression for payloads above the threshold: "none" or "lz4". */
+    @Value("${rabbitmq.compression:none}")
+    private String compression;
+    
+    @Value("${rabbitmq.compression.threshold:1024}")
+    private int compressionThreshold;
+    
+    /** Also retain every email in a replayable RabbitMQ stream queue bound to both exchanges. */
+    @Value("${rabbitmq.stream.enabled:false}")
+    private boolean streamEnabled;
+    
+    @Value("${rabbitmq.stream.name:emails-stream}")
+    private String streamName;
+    
+    @Value("${rabbitmq.stream.max-age:7D}")
+    private String streamMaxAge;
+    
+    @Value("${rabbitmq.stream.max-length-bytes:20000000000}")
+    private long streamMaxLengthBytes;
+    
+    /**
+     * A {@link ConnectionFactory} bean is only registered by the embedded pipeline, so that
+     * every connection reaches its in-memory broker; deployments connect with a new factory.
+     */
+    private final ObjectProvider<ConnectionFactory> connectionFactories;
+    
     private Connection connection;
     private Channel channel;
     private boolean initialized = false;
     
+    private final Object confirmLock = new Object();
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> unconfirmed = new ConcurrentSkipListMap<>();
+    private Channel confirmChannel;
+    
+    public RabbitMQPublisher(ObjectProvider<ConnectionFactory> connectionFactories) {
+        this.connectionFactories = connectionFactories;
+    }
+    
     private synchronized void ensureConnected() throws IOException, TimeoutException {
         if (initialized && connection != null && connection.isOpen()) {
             return;
@@ -42,7 +103,7 @@ public class RabbitMQPublisher {
         
         LOGGER.info("Connecting to RabbitMQ at " + host + ":" + port + "...");
         
-        ConnectionFactory factory = new ConnectionFactory();
+        ConnectionFactory factory = connectionFactories.getIfAvailable(ConnectionFactory::new);
         factory.setHost(host);
         factory.setPort(port);
         factory.setUsername(user);
@@ -53,25 +114,66 @@ public class RabbitMQPublisher {
         connection = factory.newConnection();
         channel = connection.createChannel();
         
-        // Declare topic exchange
-        channel.exchangeDeclare("emails", "topic", true);
+        // Declare topic exchanges: the regular one and the HIGH priority lane
+        channel.exchangeDeclare(EXCHANGE, "topic", true);
+        channel.exchangeDeclare(PRIORITY_EXCHANGE, "topic", true);
+        if (streamEnabled) {
+            declareStream();
+        }
         
         initialized = true;
         LOGGER.info("RabbitMQ publisher connected successfully");
     }
     
-    public void publishEmail(String address, String encryptedBody) throws IOException {
+    /**
+     * Declares the stream unless it already exists (redeclaring with other retention
+     * arguments would fail) and binds it to both lanes, so it logs every published email.
+     */
+    private void declareStream() throws IOException {
+        try {
+            channel.queueDeclarePassive(streamName);
+        } catch (IOException missing) {
+            // A failed passive declare closes the channel
+            channel = connection.createChannel();
+            channel.queueDeclare(streamName, true, false, false, Map.of(
+                    "x-queue-type", "stream",
+                    "x-max-age", streamMaxAge,
+                    "x-max-length-bytes", streamMaxLengthBytes));
+        }
+        channel.queueBind(streamName, EXCHANGE, "#");
+        channel.queueBind(streamName, PRIORITY_EXCHANGE, "#");
+        LOGGER.info("Logging published emails to stream " + streamName);
+    }
+    
+    public void publishEmail(String address, ByteString encryptedBody) throws IOException {
+        publishEmail(address, encryptedBody, "", 0, System.currentTimeMillis());
+    }
+    
+    public void publishEmail(String address, ByteString encryptedBody, String blobRef) throws IOException {
+        publishEmail(address, encryptedBody, blobRef, 0, System.currentTimeMillis());
+    }
+    
+    public void publishEmail(String address, ByteString encryptedBody, String blobRef,
+                             long bodySize, long acceptedAtMillis) throws IOException {
+        publishEmail(address, encryptedBody, blobRef, bodySize, acceptedAtMillis, EmailPriority.NORMAL);
+    }
+    
+    /**
+     * Publishes an encrypted email. Large bodies are sent by reference: {@code blobRef}
+     * points at the ciphertext in the blob store and {@code encryptedBody} is empty.
+     * {@code bodySize} and {@code acceptedAtMillis} feed the consumers' ingest statistics.
+     * HIGH priority emails go to the {@value #PRIORITY_EXCHANGE} lane so they never queue
+     * behind a campaign backlog in the regular queues.
+     */
+    public void publishEmail(String address, ByteString encryptedBody, String blobRef,
+                             long bodySize, long acceptedAtMillis, EmailPriority priority) throws IOException {
         try {
             ensureConnected();
             
-            String domain = extractDomain(address);
-            
-            EmailMessage message = new EmailMessage(address, encryptedBody);
-            String json = MAPPER.writeValueAsString(message);
-            
-            channel.basicPublish("emails", domain, null, json.getBytes("UTF-8"));
+            Outgoing outgoing = prepare(address, encryptedBody, blobRef, bodySize, acceptedAtMillis, priority);
+            channel.basicPublish(outgoing.exchange(), outgoing.routingKey(), outgoing.properties(), outgoing.body());
             
-            LOGGER.info("Published email to RabbitMQ with routing key: " + domain);
+            LOGGER.info("Published email to " + outgoing.exchange() + " with routing key: " + outgoing.routingKey());
         } catch (TimeoutException e) {
             LOGGER.log(Level.SEVERE, "Timeout connecting to RabbitMQ", e);
             throw new IOException("RabbitMQ connection timeout", e);
@@ -82,6 +184,129 @@ public class RabbitMQPublisher {
         }
     }
     
+    /**
+     * Non-blocking publish for the reactive stack. Messages go out on a separate channel in
+     * confirm mode, and the future completes when the broker confirms the message. It fails
+     * on a nack or when the channel is lost. The caller never waits on a confirm.
+     */
+    public CompletableFuture<Void> publishEmailConfirmed(String address, ByteString encryptedBody, String blobRef,
+                                                         long bodySize, long acceptedAtMillis, EmailPriority priority) {
+        CompletableFuture<Void> confirmed = new CompletableFuture<>();
+        try {
+            Outgoing outgoing = prepare(address, encryptedBody, blobRef, bodySize, acceptedAtMillis, priority);
+            synchronized (confirmLock) {
+                Channel current = ensureConfirmChannel();
+                unconfirmed.put(current.getNextPublishSeqNo(), confirmed);
+                current.basicPublish(outgoing.exchange(), outgoing.routingKey(), outgoing.properties(), outgoing.body());
+            }
+        } catch (IOException | TimeoutException e) {
+            LOGGER.log(Level.SEVERE, "Failed to publish to RabbitMQ", e);
+            confirmed.completeExceptionally(e);
+        }
+        return confirmed;
+    }
+    
+    private Channel ensureConfirmChannel() throws IOException, TimeoutException {
+        if (confirmChannel != null && confirmChannel.isOpen()) {
+            return confirmChannel;
+        }
+        ensureConnected();
+        Channel created = connection.createChannel();
+        created.confirmSelect();
+        created.addConfirmListener(
+                (sequence, multiple) -> settleConfirms(sequence, multiple, null),
+                (sequence, multiple) -> settleConfirms(sequence, multiple, new IOException("Message rejected by RabbitMQ")));
+        created.addShutdownListener(cause -> {
+            // Sequence numbers restart on a new channel, so nothing pending can be confirmed any more
+            synchronized (confirmLock) {
+                unconfirmed.values().forEach(future -> future.completeExceptionally(cause));
+                unconfirmed.clear();
+            }
+        });
+        confirmChannel = created;
+        return created;
+    }
+    
+    private void settleConfirms(long sequence, boolean multiple, Exception failure) {
+        Map<Long, CompletableFuture<Void>> settled = multiple
+                ? unconfirmed.headMap(sequence, true)
+                : unconfirmed.subMap(sequence, true, sequence, true);
+        settled.values().forEach(future -> {
+            if (failure == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        });
+        settled.clear();
+    }
+    
+    /**
+     * Encodes a message in the configured format and compression without publishing it, for
+     * {@link StartupWarmup}.
+     * @return the size of the encoded message body
+     */
+    int warmUp(String address, ByteString encryptedBody, EmailPriority priority) throws IOException {
+        return prepare(address, encryptedBody, "", encryptedBody.size(), System.currentTimeMillis(), priority).body().length;
+    }
+    
+    private record Outgoing(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+    }
+    
+    private Outgoing prepare(String address, ByteString encryptedBody, String blobRef,
+                             long bodySize, long acceptedAtMillis, EmailPriority priority) throws IOException {
+        byte[] body = encode(address, encryptedBody, blobRef, bodySize, acceptedAtMillis, priority);
+        Map<String, Object> headers = new HashMap<>(4);
+        headers.put(PARTITION_KEY_HEADER, address);
+        AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder()
+                .contentType(isProtobuf() ? CONTENT_TYPE_PROTOBUF : CONTENT_TYPE_JSON)
+                .headers(headers);
+        
+        if (CONTENT_ENCODING_LZ4.equalsIgnoreCase(compression) && body.length >= compressionThreshold) {
+            byte[] compressed = LZ4.compress(body);
+            // Only keep the compressed form when it actually saves bytes on the wire
+            if (compressed.length < body.length) {
+                properties.contentEncoding(CONTENT_ENCODING_LZ4);
+                headers.put(ORIGINAL_LENGTH_HEADER, body.length);
+                body = compressed;
+            }
+        }
+        
+        String exchange = priority == EmailPriority.HIGH ? PRIORITY_EXCHANGE : EXCHANGE;
+        return new Outgoing(exchange, extractDomain(address), properties.build(), body);
+    }
+    
+    private byte[] encode(String address, ByteString encryptedBody, String blobRef,
+                          long bodySize, long acceptedAtMillis, EmailPriority priority) throws IOException {
+        if (isProtobuf()) {
+            return QueuedEmail.newBuilder()
+                    .setAddress(address)
+                    .setEncryptedBody(encryptedBody)
+                    .setBlobRef(blobRef)
+                    .setAcceptedAtMillis(acceptedAtMillis)
+                    .setBodySize(bodySize)
+                    .setPriority(priority.toProto())
+                    .build()
+                    .toByteArray();
+        }
+        EmailMessage message = new EmailMessage(address, encryptedBody.toStringUtf8());
+        if (!blobRef.isEmpty()) {
+            message.blobRef = blobRef;
+        }
+        message.acceptedAt = acceptedAtMillis;
+        if (bodySize > 0) {
+            message.bodySize = bodySize;
+        }
+        if (priority != EmailPriority.NORMAL) {
+            message.priority = priority.name();
+        }
+        return MAPPER.writeValueAsBytes(message);
+    }
+    
+    private boolean isProtobuf() {
+        return "protobuf".equalsIgnoreCase(format);
+    }
+    
     private String extractDomain(String email) {
         int atIndex = email.indexOf('@');
         if (atIndex > 0 && atIndex < email.length() - 1) {
@@ -105,9 +330,16 @@ public class RabbitMQPublisher {
         }
     }
     
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     static class EmailMessage {
         public String address;
         public String encryptedBody;
+        public String blobRef;
+        /** Epoch millis at which the REST API accepted the email. */
+        public Long acceptedAt;
+        public Long bodySize;
+        /** HIGH or BULK; omitted for NORMAL. */
+        public String priority;
         
         public EmailMessage() {}
         
@@ -0,0 +1,518 @@
+package com.example.email.rest;
+
+import com.example.email.proto.SendEmailReply;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.hateoas.EntityModel;
+import org.springframework.hateoas.Link;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reactive counterpart of {@link EmailRestController}, active with the {@code reactive}
+ * profile. The same endpoints run on a few Netty event-loop threads:
+ * <ul>
+ *   <li>gRPC calls and RabbitMQ publisher confirms are bridged from futures, so nothing waits
+ *   on them;</li>
+ *   <li>streamed uploads are read as the gRPC stream is ready for them;</li>
+ *   <li>{@code GET /storage/{domain}} with {@code Accept: application/x-ndjson} streams rows
+ *   from R2DBC with backpressure down to the socket.</li>
+ * </ul>
+ * Calls into the blocking JDBC services (cached storage reads, purges, service status
+ * changes) are moved to the bounded elastic scheduler, off the event loop.
+ */
+@RestController
+@RequestMapping("/api")
+@CrossOrigin(origins = "*")
+@Tag(name = "Email")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveEmailRestController {
+
+    private static final Logger LOGGER = Logger.getLogger(ReactiveEmailRestController.class.getName());
+    private static final Duration CONFIRM_TIMEOUT = Duration.ofSeconds(10);
+    private static final int DECRYPT_PAGE = 256;
+
+    @Autowired
+    private EncryptionClient encryptionClient;
+
+    @Autowired
+    private RabbitMQPublisher rabbitPublisher;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private ReactiveStorageService reactiveStorage;
+
+    @Autowired
+    private DecryptionService decryptionService;
+
+    @Autowired
+    private ServiceManager serviceManager;
+
+    @Autowired
+    private CircuitBreakerRegistry breakers;
+
+    @Autowired
+    private PurgeJobService purgeJobService;
+
+    @Autowired
+    private ApplicationAvailability availability;
+
+    @PostMapping("/email")
+    @Operation(summary = "Encrypt and publish an email; completes once RabbitMQ confirms it")
+    public Mono<ResponseEntity<Map<String, String>>> sendEmail(@RequestBody EmailPayload payload) {
+        if (payload == null || !payload.isValid()) {
+            LOGGER.warning("Received invalid payload");
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("error", "Invalid email payload")));
+        }
+
+        String domain = extractDomain(payload.address());
+        ResponseEntity<Map<String, String>> refused = admit(domain);
+        if (refused != null) {
+            return Mono.just(refused);
+        }
+
+        long acceptedAt = System.currentTimeMillis();
+        long started = System.nanoTime();
+        return Mono.fromFuture(() -> encryptionClient.sendAsync(payload))
+                .flatMap(reply -> {
+                    if (!"SUCCESS".equals(reply.getStatus())) {
+                        return Mono.error(new IllegalStateException("Encryption was not successful: " + reply.getDetails()));
+                    }
+                    return Mono.fromFuture(() -> rabbitPublisher.publishEmailConfirmed(payload.address(),
+                                    reply.getEncryptedBody(), "", reply.getBodySize(), acceptedAt, payload.priority()))
+                            .timeout(CONFIRM_TIMEOUT);
+                })
+                .then(Mono.fromCallable(() -> {
+                    recordOutcome(domain, true, started);
+                    LOGGER.info("Email for " + payload.address() + " encrypted and confirmed by RabbitMQ.");
+                    return ResponseEntity.status(HttpStatus.ACCEPTED)
+                            .body(Map.of("status", "ACCEPTED", "message", "Email encrypted and queued."));
+                }))
+                .onErrorResume(ex -> {
+                    LOGGER.log(Level.SEVERE, "Failed to deliver email for " + payload.address(), ex);
+                    recordOutcome(domain, false, started);
+                    return Mono.just(ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                            .body(Map.of("error", "Failed to deliver email: " + ex.getMessage())));
+                });
+    }
+
+    @PostMapping(value = "/email/stream", consumes = MediaType.ALL_VALUE)
+    @Operation(summary = "Stream a large raw email body through chunked encryption; large ciphertexts are stored by reference")
+    public Mono<ResponseEntity<Map<String, String>>> sendEmailStream(@RequestParam String address,
+                                                                     ServerHttpRequest request) {
+        if (address == null || !address.contains("@")) {
+            LOGGER.warning("Received invalid streamed payload");
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("error", "Invalid email address")));
+        }
+
+        String domain = extractDomain(address);
+        ResponseEntity<Map<String, String>> refused = admit(domain);
+        if (refused != null) {
+            return Mono.just(refused);
+        }
+
+        long acceptedAt = System.currentTimeMillis();
+        long started = System.nanoTime();
+        AtomicBoolean uploadFailed = new AtomicBoolean();
+        Flux<ByteString> body = request.getBody()
+                .map(ReactiveEmailRestController::toByteString)
+                .doOnError(ex -> uploadFailed.set(true));
+        return Mono.fromFuture(() -> encryptionClient.sendStream(address, body))
+                .flatMap(reply -> {
+                    if (!"SUCCESS".equals(reply.getStatus())) {
+                        LOGGER.warning("Encrypted stream was not successful: " + reply.getDetails());
+                        return Mono.just(ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                                .body(Map.of("error", reply.getDetails())));
+                    }
+                    return Mono.fromFuture(() -> rabbitPublisher.publishEmailConfirmed(address, reply.getEncryptedBody(),
+                                    reply.getBlobRef(), reply.getBodySize(), acceptedAt, EmailPriority.NORMAL))
+                            .timeout(CONFIRM_TIMEOUT)
+                            .then(Mono.fromCallable(() -> accepted(address, reply)));
+                })
+                .onErrorResume(ex -> {
+                    LOGGER.log(Level.SEVERE, "Failed to stream email body for " + address, ex);
+                    return Mono.just(ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                            .body(Map.of("error", "Failed to stream email body: " + ex.getMessage())));
+                })
+                // A client that broke off its upload says nothing about the domain
+                .doOnNext(response -> {
+                    if (!uploadFailed.get()) {
+                        recordOutcome(domain, response.getStatusCode().is2xxSuccessful(), started);
+                    }
+                });
+    }
+
+    @GetMapping("/health")
+    @Operation(summary = "Health check for Kubernetes/containers")
+    public Mono<ResponseEntity<String>> health() {
+        return Mono.just(ResponseEntity.ok("OK"));
+    }
+
+    @GetMapping("/ready")
+    @Operation(summary = "Readiness check: 503 until startup, including the warm-up, has finished")
+    public Mono<ResponseEntity<String>> ready() {
+        ReadinessState state = availability.getReadinessState();
+        if (state != ReadinessState.ACCEPTING_TRAFFIC) {
+            return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(state.name()));
+        }
+        return Mono.just(ResponseEntity.ok("READY"));
+    }
+
+    @GetMapping("/storage")
+    @Operation(summary = "Fetch every stored email grouped by domain")
+    public Mono<ResponseEntity<?>> getAllStorages() {
+        return blocking(() -> ResponseEntity.ok(storageService.getAllStorages()), "Failed to read storages");
+    }
+
+    @GetMapping("/storage/stream")
+    @Operation(summary = "Live tail of newly stored emails as Server-Sent Events; resume with ?cursor= or Last-Event-ID")
+    public Flux<ServerSentEvent<StorageService.StoredEmail>> streamStorage(
+            @RequestParam(required = false) String cursor,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) throws IOException {
+        try {
+            return storageService.tail(cursor != null ? cursor : lastEventId)
+                    .map(StorageService.TailEvent::toServerSentEvent);
+        } catch (IllegalArgumentException ex) {
+            // Streams cannot carry an error body, so this becomes a plain 400
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+        }
+    }
+
+    @GetMapping("/storage/{domain}")
+    @Operation(summary = "Return stored emails for a specific domain; decrypt=true adds each plaintext body")
+    public Mono<ResponseEntity<?>> getDomainStorage(@PathVariable String domain,
+                                                    @RequestParam(defaultValue = "false") boolean decrypt) {
+        return blocking(() -> {
+                    Map<String, Object> storage = storageService.getDomainStorage(domain);
+                    return ResponseEntity.ok(decrypt ? decryptionService.decryptPage(storage) : storage);
+                },
+                "Failed to read storage for domain: " + domain);
+    }
+
+    @GetMapping(value = "/storage/{domain}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Stream stored emails for a domain as newline-delimited JSON, newest first; decrypt=true adds each plaintext body")
+    public Flux<StorageService.StoredEmail> streamDomainStorage(@PathVariable String domain,
+                                                                @RequestParam(defaultValue = "false") boolean decrypt) {
+        Flux<StorageService.StoredEmail> emails = reactiveStorage.streamDomain(domain);
+        if (!decrypt) {
+            return emails;
+        }
+        // One DecryptBatch call per page of rows, one page in flight
+        return emails.buffer(DECRYPT_PAGE)
+                .concatMap(page -> Mono.fromFuture(() -> decryptionService.decryptAsync(page)))
+                .flatMapIterable(page -> page);
+    }
+
+    @GetMapping("/storage/{domain}/recipients/{address:.+}")
+    @Operation(summary = "Page through emails sent to one address, newest first (keyset pagination); decrypt=true adds each plaintext body")
+    public Mono<ResponseEntity<?>> getRecipientEmails(@PathVariable String domain,
+                                                      @PathVariable String address,
+                                                      @RequestParam(required = false) String cursor,
+                                                      @RequestParam(defaultValue = "50") int limit,
+                                                      @RequestParam(defaultValue = "false") boolean decrypt) {
+        return blocking(() -> {
+                    Map<String, Object> page = storageService.getRecipientEmails(domain, address, cursor, limit);
+                    return ResponseEntity.ok(decrypt ? decryptionService.decryptPage(page) : page);
+                },
+                "Failed to read recipient emails for " + address + " in domain: " + domain);
+    }
+
+    @GetMapping("/storage/{domain}/count")
+    @Operation(summary = "Count stored emails for a domain without scanning the table")
+    public Mono<ResponseEntity<?>> getDomainCount(@PathVariable String domain) {
+        return blocking(() -> ResponseEntity.ok(storageService.getDomainCount(domain)),
+                "Failed to count emails for domain: " + domain);
+    }
+
+    @GetMapping("/storage/{domain}/export")
+    @Operation(summary = "Stream a domain's emails as gzip/zstd-compressed NDJSON or CSV straight from COPY, optionally within a created_at range and in parallel id slices")
+    public ResponseEntity<Flux<DataBuffer>> exportStorage(@PathVariable String domain,
+                                                          @RequestParam(defaultValue = "ndjson") String format,
+                                                          @RequestParam(defaultValue = "gzip") String compression,
+                                                          @RequestParam(required = false) Instant from,
+                                                          @RequestParam(required = false) Instant to,
+                                                          @RequestParam(defaultValue = "1") int parallel) {
+        StorageExport.Options options;
+        try {
+            options = StorageExport.Options.parse(format, compression, from, to, parallel);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+        }
+        // The blocking COPY writes into an output stream on the bounded elastic scheduler,
+        // which only produces buffers as fast as the socket takes them
+        Flux<DataBuffer> body = Flux.from(DataBufferUtils.outputStreamPublisher(out -> {
+            try {
+                storageService.export(domain, options, out);
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, "Failed to export storage for domain: " + domain, ex);
+                throw new UncheckedIOException(ex);
+            }
+        }, DefaultDataBufferFactory.sharedInstance, Schedulers.boundedElastic()::schedule));
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(options.contentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"" + options.fileName(storageService.bucketOf(domain)) + "\"")
+                .body(body);
+    }
+
+    @GetMapping("/stats")
+    @Operation(summary = "Per-domain, per-minute ingest counts, bytes and accept-to-store lag (defaults to the last hour)")
+    public Mono<ResponseEntity<?>> getStats(@RequestParam(required = false) Instant from,
+                                            @RequestParam(required = false) Instant to,
+                                            @RequestParam(required = false) String domain) {
+        Instant end = to != null ? to : Instant.now();
+        Instant start = from != null ? from : end.minus(Duration.ofHours(1));
+        return blocking(() -> ResponseEntity.ok(storageService.getStats(start, end, domain)),
+                "Failed to read ingest statistics");
+    }
+
+    @DeleteMapping("/storage")
+    @Operation(summary = "Start a background purge of stored emails, optionally limited to a created_at range")
+    public Mono<ResponseEntity<?>> clearStorages(@RequestParam(required = false) Instant from,
+                                                 @RequestParam(required = false) Instant to,
+                                                 ServerHttpRequest request) {
+        return blocking(() -> {
+            PurgeJob job = purgeJobService.submit(from, to);
+            URI self = URI.create(link(request, "/api/storage/jobs/" + job.getId()));
+            EntityModel<PurgeJob> em = EntityModel.of(job);
+            em.add(Link.of(self.toString()).withSelfRel());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).location(self).body(em);
+        }, "Failed to start storage purge");
+    }
+
+    @GetMapping("/storage/jobs/{id}")
+    @Operation(summary = "Progress of a storage purge job")
+    public Mono<ResponseEntity<?>> getPurgeJob(@PathVariable String id, ServerHttpRequest request) {
+        PurgeJob job = purgeJobService.getJob(id);
+        if (job == null) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", "Purge job not found: " + id)));
+        }
+        EntityModel<PurgeJob> em = EntityModel.of(job);
+        em.add(Link.of(link(request, "/api/storage/jobs/" + id)).withSelfRel());
+        return Mono.just(ResponseEntity.ok(em));
+    }
+
+    @GetMapping("/services/status")
+    @Operation(summary = "Get status of all email services")
+    public Mono<ResponseEntity<Map<String, ServiceStatus>>> getServicesStatus() {
+        return Mono.just(ResponseEntity.ok(serviceManager.getAllServicesStatus()));
+    }
+
+    @GetMapping("/services/{serviceName}")
+    @Operation(summary = "Get a specific service with HATEOAS links")
+    public Mono<ResponseEntity<?>> getService(@PathVariable String serviceName, ServerHttpRequest request) {
+        if (!serviceManager.serviceExists(serviceName)) {
+            return Mono.just(notFound(serviceName));
+        }
+        ServiceStatus status = serviceManager.getServiceStatus(serviceName);
+        EntityModel<ServiceInfo> em = EntityModel.of(new ServiceInfo(serviceName, status));
+        em.add(Link.of(link(request, servicePath(serviceName))).withSelfRel());
+        if (status == ServiceStatus.ACTIVE) {
+            em.add(Link.of(link(request, servicePath(serviceName) + "/disable"), "disable"));
+        } else if (status == ServiceStatus.DISABLED) {
+            em.add(Link.of(link(request, servicePath(serviceName) + "/activate"), "activate"));
+        } else if (status == ServiceStatus.DEGRADED || status == ServiceStatus.OPEN) {
+            em.add(Link.of(link(request, servicePath(serviceName) + "/reset"), "reset"));
+            em.add(Link.of(link(request, servicePath(serviceName) + "/disable"), "disable"));
+        }
+        em.add(Link.of(link(request, "/api/services/status"), "list all"));
+        return Mono.just(ResponseEntity.ok(em));
+    }
+
+    @PatchMapping("/services/{serviceName}/activate")
+    @Operation(summary = "Activate a service")
+    public Mono<ResponseEntity<?>> activateService(@PathVariable String serviceName, ServerHttpRequest request) {
+        if (!serviceManager.serviceExists(serviceName)) {
+            return Mono.just(notFound(serviceName));
+        }
+        // The compare-and-set on the shared status store is JDBC
+        return Mono.<ResponseEntity<?>>fromCallable(() -> {
+                    ServiceStatus currentStatus = serviceManager.getServiceStatus(serviceName);
+                    if (currentStatus != ServiceStatus.DISABLED) {
+                        throw new ConflictException("You CAN'T activate a service with status " + currentStatus);
+                    }
+                    if (!serviceManager.setServiceStatus(serviceName, ServiceStatus.ACTIVE)) {
+                        throw new ConflictException("You CAN'T activate a service with status " + serviceManager.getServiceStatus(serviceName));
+                    }
+                    EntityModel<ServiceInfo> em = EntityModel.of(new ServiceInfo(serviceName, ServiceStatus.ACTIVE));
+                    em.add(Link.of(link(request, servicePath(serviceName))).withSelfRel());
+                    em.add(Link.of(link(request, servicePath(serviceName) + "/disable"), "disable"));
+                    em.add(Link.of(link(request, "/api/services/status"), "list all"));
+                    LOGGER.info("Service " + serviceName + " has been activated");
+                    return ResponseEntity.ok(em);
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @PatchMapping("/services/{serviceName}/disable")
+    @Operation(summary = "Disable a service")
+    public Mono<ResponseEntity<?>> disableService(@PathVariable String serviceName, ServerHttpRequest request) {
+        if (!serviceManager.serviceExists(serviceName)) {
+            return Mono.just(notFound(serviceName));
+        }
+        return Mono.<ResponseEntity<?>>fromCallable(() -> {
+                    ServiceStatus currentStatus = serviceManager.getServiceStatus(serviceName);
+                    if (currentStatus == ServiceStatus.DISABLED) {
+                        throw new ConflictException("You CAN'T disable a service with status " + currentStatus);
+                    }
+                    if (!serviceManager.setServiceStatus(serviceName, ServiceStatus.DISABLED)) {
+                        throw new ConflictException("You CAN'T disable a service with status " + serviceManager.getServiceStatus(serviceName));
+                    }
+                    EntityModel<ServiceInfo> em = EntityModel.of(new ServiceInfo(serviceName, ServiceStatus.DISABLED));
+                    em.add(Link.of(link(request, servicePath(serviceName))).withSelfRel());
+                    em.add(Link.of(link(request, servicePath(serviceName) + "/activate"), "activate"));
+                    em.add(Link.of(link(request, "/api/services/status"), "list all"));
+                    LOGGER.info("Service " + serviceName + " has been disabled");
+                    return ResponseEntity.ok(em);
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @PatchMapping("/services/{serviceName}/reset")
+    @Operation(summary = "Close a tripped circuit breaker")
+    public Mono<ResponseEntity<?>> resetService(@PathVariable String serviceName, ServerHttpRequest request) {
+        if (!serviceManager.serviceExists(serviceName)) {
+            return Mono.just(notFound(serviceName));
+        }
+        ServiceStatus currentStatus = serviceManager.getServiceStatus(serviceName);
+        if (currentStatus != ServiceStatus.DEGRADED && currentStatus != ServiceStatus.OPEN) {
+            return Mono.error(new ConflictException("You CAN'T reset a service with status " + currentStatus));
+        }
+        serviceManager.resetCircuitBreaker(serviceName);
+        EntityModel<ServiceInfo> em = EntityModel.of(new ServiceInfo(serviceName, serviceManager.getServiceStatus(serviceName)));
+        em.add(Link.of(link(request, servicePath(serviceName))).withSelfRel());
+        em.add(Link.of(link(request, servicePath(serviceName) + "/disable"), "disable"));
+        em.add(Link.of(link(request, "/api/services/status"), "list all"));
+        LOGGER.info("Circuit breaker for " + serviceName + " has been reset");
+        return Mono.just(ResponseEntity.ok(em));
+    }
+
+    /**
+     * The 503 to return when {@code domain} is disabled or its circuit breaker refuses the
+     * request, or null when the request may proceed.
+     */
+    private ResponseEntity<Map<String, String>> admit(String domain) {
+        if (!serviceManager.isServiceEnabled(domain)) {
+            LOGGER.warning("Service disabled for domain: " + domain);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(Map.of("error", "Service is currently disabled for " + domain + " emails"));
+        }
+        if (!serviceManager.tryAcquire(domain)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(serviceManager.retryAfterSeconds(domain)))
+                    .body(Map.of("error", "Service is temporarily unavailable for " + domain + " emails ("
+                            + serviceManager.getServiceStatus(domain) + ")"));
+        }
+        return null;
+    }
+
+    private ResponseEntity<Map<String, String>> accepted(String address, SendEmailReply reply) {
+        LOGGER.info("Streamed email for " + address + " (" + reply.getBodySize() + " bytes) encrypted and confirmed by RabbitMQ.");
+        Map<String, String> response = new LinkedHashMap<>();
+        response.put("status", "ACCEPTED");
+        response.put("bytes", String.valueOf(reply.getBodySize()));
+        if (!reply.getBlobRef().isEmpty()) {
+            response.put("blobRef", reply.getBlobRef());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+
+    /**
+     * Runs a blocking service call off the event loop, mapping failures like the servlet
+     * controller does.
+     */
+    private Mono<ResponseEntity<?>> blocking(Callable<ResponseEntity<?>> call, String failure) {
+        return Mono.fromCallable(call)
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("error", ex.getMessage()))))
+                .onErrorResume(ex -> !(ex instanceof ConflictException), ex -> {
+                    LOGGER.log(Level.SEVERE, failure, ex);
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                            .body(Map.of("error", failure + ": " + ex.getMessage())));
+                });
+    }
+
+    private static ByteString toByteString(DataBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        DataBufferUtils.release(buffer);
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    private static ResponseEntity<?> notFound(String serviceName) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(Map.of("error", "Service not found: " + serviceName));
+    }
+
+    private static String servicePath(String serviceName) {
+        return "/api/services/" + serviceName;
+    }
+
+    private static String link(ServerHttpRequest request, String path) {
+        return UriComponentsBuilder.fromUri(request.getURI())
+                .replacePath(path)
+                .replaceQuery(null)
+                .toUriString();
+    }
+
+    private void recordOutcome(String domain, boolean success, long startedNanos) {
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        if (success) {
+            breakers.recordSuccess(domain, latencyMillis);
+        } else {
+            breakers.recordFailure(domain, latencyMillis);
+        }
+    }
+
+    private String extractDomain(String email) {
+        if (email == null || !email.contains("@")) {
+            return "other";
+        }
+        String domain = email.substring(email.indexOf("@") + 1).toLowerCase();
+        if (domain.contains("gmail")) {
+            return "gmail";
+        } else if (domain.contains("wp")) {
+            return "wp";
+        } else {
+            return "other";
+        }
+    }
+}
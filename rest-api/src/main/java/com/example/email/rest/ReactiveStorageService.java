@@ -0,0 +1,134 @@
+package com.example.email.rest;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import io.r2dbc.spi.R2dbcBadGrammarException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * R2DBC reads for the reactive stack. Rows are fetched from a server-side cursor in
+ * {@code storage.r2dbc.fetch-size} batches as the HTTP response drains, so a slow client
+ * holds neither a thread nor the whole result set.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveStorageService {
+
+    private static final Logger LOGGER = Logger.getLogger(ReactiveStorageService.class.getName());
+    private static final String UNDEFINED_TABLE = "42P01";
+
+    @Value("${storage.gmail.url:jdbc:postgresql://gmail-db:5432/gmail_store}")
+    private String gmailUrl;
+    @Value("${storage.gmail.user:email_user}")
+    private String gmailUser;
+    @Value("${storage.gmail.password:email_pass}")
+    private String gmailPassword;
+
+    @Value("${storage.wp.url:jdbc:postgresql://wp-db:5432/wp_store}")
+    private String wpUrl;
+    @Value("${storage.wp.user:email_user}")
+    private String wpUser;
+    @Value("${storage.wp.password:email_pass}")
+    private String wpPassword;
+
+    @Value("${storage.other.url:jdbc:postgresql://other-db:5432/other_store}")
+    private String otherUrl;
+    @Value("${storage.other.user:email_user}")
+    private String otherUser;
+    @Value("${storage.other.password:email_pass}")
+    private String otherPassword;
+
+    @Value("${storage.r2dbc.pool-size:10}")
+    private int poolSize;
+    @Value("${storage.r2dbc.fetch-size:256}")
+    private int fetchSize;
+
+    private final Map<String, ConnectionPool> pools = new LinkedHashMap<>();
+
+    @PostConstruct
+    void init() {
+        registerPool("gmail.com", gmailUrl, gmailUser, gmailPassword);
+        registerPool("wp.com", wpUrl, wpUser, wpPassword);
+        registerPool("other", otherUrl, otherUser, otherPassword);
+        LOGGER.info(() -> "ReactiveStorageService configured for domains: " + String.join(", ", pools.keySet()));
+    }
+
+    /**
+     * Streams the stored emails of one domain, newest first.
+     */
+    public Flux<StorageService.StoredEmail> streamDomain(String domain) {
+        String key = normalizeDomain(domain);
+        ConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            return Flux.empty();
+        }
+        return Flux.usingWhen(pool.create(),
+                        connection -> readAll(connection),
+                        Connection::close)
+                // The consumer creates the table on its first insert
+                .onErrorResume(R2dbcBadGrammarException.class,
+                        ex -> UNDEFINED_TABLE.equals(ex.getSqlState()) ? Flux.empty() : Flux.error(ex));
+    }
+
+    private Flux<StorageService.StoredEmail> readAll(Connection connection) {
+        return Flux.from(connection.createStatement(
+                                "SELECT id, address, encrypted_body, domain, created_at, blob_ref FROM emails ORDER BY created_at DESC")
+                        .fetchSize(fetchSize)
+                        .execute())
+                .concatMap(result -> result.map((row, metadata) -> new StorageService.StoredEmail(
+                        row.get("id", Long.class),
+                        row.get("address", String.class),
+                        row.get("encrypted_body", String.class),
+                        row.get("domain", String.class),
+                        row.get("created_at", OffsetDateTime.class).toInstant(),
+                        row.get("blob_ref", String.class))));
+    }
+
+    private void registerPool(String domainKey, String jdbcUrl, String user, String password) {
+        if (jdbcUrl == null || jdbcUrl.isBlank()) {
+            LOGGER.warning("Skipping reactive storage registration for " + domainKey + " - URL missing");
+            return;
+        }
+        // Same databases as the JDBC settings: jdbc:postgresql://... becomes r2dbc:postgresql://...
+        ConnectionFactoryOptions options = ConnectionFactoryOptions.parse(jdbcUrl.replaceFirst("^jdbc:", "r2dbc:"))
+                .mutate()
+                .option(ConnectionFactoryOptions.USER, user)
+                .option(ConnectionFactoryOptions.PASSWORD, password)
+                .build();
+        pools.put(domainKey, new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+                .maxSize(poolSize)
+                .maxIdleTime(Duration.ofMinutes(5))
+                .build()));
+    }
+
+    private String normalizeDomain(String domain) {
+        if (domain == null) {
+            return "other";
+        }
+        String trimmed = domain.trim();
+        if ("gmail.com".equals(trimmed) || "wp.com".equals(trimmed)) {
+            return trimmed;
+        }
+        return "other";
+    }
+
+    @PreDestroy
+    public void close() {
+        pools.values().forEach(ConnectionPool::dispose);
+    }
+}
@@ -1,24 +1,71 @@
 package com.example.email.rest;
 
+import com.example.email.rest.ServiceStatusBroadcaster.StatusEvent;
+import com.example.email.rest.ServiceStatusStore.VersionedStatus;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.OptionalLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * Manages the status of email services (Gmail, WP, Other).
+ *
+ * The authoritative state lives in {@link ServiceStatusStore}, shared by every replica.
+ * Each replica serves reads from an immutable snapshot that is swapped atomically, so the
+ * per-request {@link #isServiceEnabled} check is a single volatile read. Changes are pushed
+ * to the other replicas through {@link ServiceStatusBroadcaster}, and a periodic resync
+ * repairs any event that was missed.
+ *
+ * On top of the administrator's ACTIVE/DISABLED setting, each service has a per-replica
+ * {@link CircuitBreaker}; while it is half-open or open the service reports DEGRADED or OPEN.
  */
 @Service
 public class ServiceManager {
     
-    private final Map<String, ServiceStatus> serviceStatus = new ConcurrentHashMap<>();
+    private static final Logger LOGGER = Logger.getLogger(ServiceManager.class.getName());
+    private static final List<String> SERVICES = List.of("gmail", "wp", "other");
     
-    public ServiceManager() {
-        // Initialize all services as active by default
-        serviceStatus.put("gmail", ServiceStatus.ACTIVE);
-        serviceStatus.put("wp", ServiceStatus.ACTIVE);
-        serviceStatus.put("other", ServiceStatus.ACTIVE);
+    private final ServiceStatusStore store;
+    private final ServiceStatusBroadcaster broadcaster;
+    private final CircuitBreakerRegistry breakers;
+    private final ScheduledExecutorService syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "service-status-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    @Value("${services.sync-interval-ms:30000}")
+    private long syncIntervalMillis;
+    
+    private volatile Map<String, VersionedStatus> snapshot;
+    
+    public ServiceManager(ServiceStatusStore store, ServiceStatusBroadcaster broadcaster, CircuitBreakerRegistry breakers) {
+        this.store = store;
+        this.broadcaster = broadcaster;
+        this.breakers = breakers;
+        // Initialize all services as active by default until the shared store is read
+        Map<String, VersionedStatus> initial = new HashMap<>();
+        for (String name : SERVICES) {
+            initial.put(name, new VersionedStatus(ServiceStatus.ACTIVE, -1));
+        }
+        this.snapshot = Map.copyOf(initial);
+    }
+    
+    @PostConstruct
+    void start() {
+        broadcaster.start(event -> apply(event.name(), new VersionedStatus(event.status(), event.version())));
+        syncScheduler.execute(this::resync);
+        syncScheduler.scheduleWithFixedDelay(this::resync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
     }
     
     /**
@@ -27,49 +74,116 @@ public class ServiceManager {
      * @return true if active, false otherwise
      */
     public boolean isServiceEnabled(String serviceName) {
-        if (serviceName == null) {
-            return false;
-        }
-        ServiceStatus status = serviceStatus.getOrDefault(serviceName.toLowerCase(), ServiceStatus.DISABLED);
-        return status == ServiceStatus.ACTIVE;
+        return getConfiguredStatus(serviceName) == ServiceStatus.ACTIVE;
     }
     
     /**
-     * Get the status of a service.
+     * Admission check for a new request to an enabled service: false while its circuit
+     * breaker is open, and for all but one request per probe interval while half-open.
+     * @param serviceName Service name (gmail, wp, other)
+     * @return true if the request may proceed
+     */
+    public boolean tryAcquire(String serviceName) {
+        return breakers.forService(serviceName.toLowerCase()).tryAcquire();
+    }
+    
+    /**
+     * Seconds a shed client should wait before retrying.
+     * @param serviceName Service name (gmail, wp, other)
+     * @return Retry-After value in seconds
+     */
+    public long retryAfterSeconds(String serviceName) {
+        return breakers.forService(serviceName.toLowerCase()).retryAfterSeconds();
+    }
+    
+    /**
+     * Get the effective status of a service, including its circuit breaker state.
      * @param serviceName Service name (gmail, wp, other)
      * @return ServiceStatus
      */
     public ServiceStatus getServiceStatus(String serviceName) {
+        ServiceStatus configured = getConfiguredStatus(serviceName);
+        if (configured != ServiceStatus.ACTIVE) {
+            return configured;
+        }
+        return switch (breakers.forService(serviceName.toLowerCase()).state()) {
+            case CLOSED -> ServiceStatus.ACTIVE;
+            case HALF_OPEN -> ServiceStatus.DEGRADED;
+            case OPEN -> ServiceStatus.OPEN;
+        };
+    }
+    
+    /**
+     * Get the status an administrator set for a service (ACTIVE or DISABLED).
+     * @param serviceName Service name (gmail, wp, other)
+     * @return ServiceStatus
+     */
+    public ServiceStatus getConfiguredStatus(String serviceName) {
         if (serviceName == null) {
             return ServiceStatus.DISABLED;
         }
-        return serviceStatus.getOrDefault(serviceName.toLowerCase(), ServiceStatus.DISABLED);
+        VersionedStatus current = snapshot.get(serviceName.toLowerCase());
+        return current == null ? ServiceStatus.DISABLED : current.status();
+    }
+    
+    /**
+     * Close the circuit breaker of a service by hand.
+     * @param serviceName Service name (gmail, wp, other)
+     */
+    public void resetCircuitBreaker(String serviceName) {
+        breakers.forService(serviceName.toLowerCase()).reset();
     }
     
     /**
-     * Set the status of a service.
+     * Set the status of a service cluster-wide. The change is a compare-and-set against the
+     * version this replica last saw, so of two replicas racing on any transitions of the same
+     * service only the first succeeds; the other resyncs and reports the change as refused.
+     * Versions only come from the store, so while it is unreachable nothing changes.
      * @param serviceName Service name (gmail, wp, other)
      * @param status New status
-     * @return true if successful, false if invalid service name
+     * @return true if the status changed, false if the service is unknown, already had that
+     *         status, or this replica's view of it was stale
+     * @throws ServiceUnavailableException if the status store cannot be reached
      */
     public boolean setServiceStatus(String serviceName, ServiceStatus status) {
-        if (serviceName == null || status == null) {
+        if (serviceName == null || (status != ServiceStatus.ACTIVE && status != ServiceStatus.DISABLED)) {
+            // DEGRADED and OPEN come from the circuit breaker, never from an administrator
             return false;
         }
         String normalizedName = serviceName.toLowerCase();
-        if (!serviceStatus.containsKey(normalizedName)) {
+        if (!snapshot.containsKey(normalizedName)) {
+            return false;
+        }
+        VersionedStatus current = snapshot.get(normalizedName);
+        if (current.status() == status) {
             return false;
         }
-        serviceStatus.put(normalizedName, status);
+        OptionalLong updated;
+        try {
+            updated = store.compareAndSet(normalizedName, status, current.version());
+        } catch (SQLException e) {
+            LOGGER.warning("Service status store unavailable, refusing " + normalizedName + "=" + status + ": " + e.getMessage());
+            throw new ServiceUnavailableException("Service status store unavailable, try again later", e);
+        }
+        if (updated.isEmpty()) {
+            // Another replica got there first; make sure this one reflects it
+            resync();
+            return false;
+        }
+        long version = updated.getAsLong();
+        apply(normalizedName, new VersionedStatus(status, version));
+        broadcaster.publish(new StatusEvent(normalizedName, status, version));
         return true;
     }
     
     /**
-     * Get the status of all services.
+     * Get the effective status of all services.
      * @return Map of service names to their status
      */
     public Map<String, ServiceStatus> getAllServicesStatus() {
-        return new HashMap<>(serviceStatus);
+        Map<String, ServiceStatus> result = new HashMap<>();
+        snapshot.keySet().forEach(name -> result.put(name, getServiceStatus(name)));
+        return result;
     }
     
     /**
@@ -81,6 +195,38 @@ public class ServiceManager {
         if (serviceName == null) {
             return false;
         }
-        return serviceStatus.containsKey(serviceName.toLowerCase());
+        return snapshot.containsKey(serviceName.toLowerCase());
+    }
+    
+    /**
+     * Swaps in a new snapshot if {@code update} is newer than what this replica holds.
+     * Out-of-order or duplicate events are dropped by the version check; of two updates with
+     * the same version the first one seen is kept, so no replica flips between them.
+     */
+    private synchronized void apply(String name, VersionedStatus update) {
+        VersionedStatus current = snapshot.get(name);
+        if (current == null || update.version() <= current.version()) {
+            return;
+        }
+        Map<String, VersionedStatus> next = new HashMap<>(snapshot);
+        next.put(name, update);
+        snapshot = Map.copyOf(next);
+    }
+    
+    private void resync() {
+        try {
+            store.load(SERVICES).forEach((name, row) -> {
+                if (SERVICES.contains(name)) {
+                    apply(name, row);
+                }
+            });
+        } catch (SQLException e) {
+            LOGGER.warning("Service status resync failed: " + e.getMessage());
+        }
+    }
+    
+    @PreDestroy
+    public void close() {
+        syncScheduler.shutdownNow();
     }
 }
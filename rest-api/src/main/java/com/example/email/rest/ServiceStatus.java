@@ -5,5 +5,7 @@ package com.example.email.rest;
  */
 public enum ServiceStatus {
     ACTIVE,      // Service is operational and accepting requests
-    DISABLED    // Service is disabled by administrator
+    DISABLED,    // Service is disabled by administrator
+    DEGRADED,    // Circuit breaker is half-open: only probe requests are let through
+    OPEN         // Circuit breaker tripped: requests are shed until the next probe
 }
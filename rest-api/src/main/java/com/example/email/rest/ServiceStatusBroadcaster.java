@@ -0,0 +1,132 @@
+package com.example.email.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DeliverCallback;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans service status changes out to every rest-api replica through a RabbitMQ fanout
+ * exchange. Each replica listens on its own exclusive, auto-delete queue.
+ */
+@Component
+public class ServiceStatusBroadcaster {
+
+    private static final Logger LOGGER = Logger.getLogger(ServiceStatusBroadcaster.class.getName());
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    static final String EXCHANGE = "service-status";
+
+    @Value("${rabbitmq.host:localhost}")
+    private String host;
+
+    @Value("${rabbitmq.port:5672}")
+    private int port;
+
+    @Value("${rabbitmq.user:guest}")
+    private String user;
+
+    @Value("${rabbitmq.pass:guest}")
+    private String pass;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "service-status-bus");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Only set in the embedded pipeline, see {@link RabbitMQPublisher}. */
+    private final ObjectProvider<ConnectionFactory> connectionFactories;
+    private volatile Connection connection;
+    private volatile Channel channel;
+
+    public ServiceStatusBroadcaster(ObjectProvider<ConnectionFactory> connectionFactories) {
+        this.connectionFactories = connectionFactories;
+    }
+
+    public record StatusEvent(String name, ServiceStatus status, long version) {
+    }
+
+    /**
+     * Starts listening in the background, retrying until RabbitMQ is reachable.
+     * Automatic recovery re-declares the queue and consumer after connection loss.
+     */
+    void start(Consumer<StatusEvent> listener) {
+        scheduler.execute(() -> connect(listener));
+    }
+
+    void publish(StatusEvent event) {
+        Channel current = channel;
+        if (current == null || !current.isOpen()) {
+            LOGGER.warning("Service status bus not connected; other replicas pick up " + event.name() + " on next sync");
+            return;
+        }
+        try {
+            synchronized (current) {
+                current.basicPublish(EXCHANGE, "", null, MAPPER.writeValueAsBytes(event));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to broadcast status change for " + event.name(), e);
+        }
+    }
+
+    private void connect(Consumer<StatusEvent> listener) {
+        try {
+            ConnectionFactory factory = connectionFactories.getIfAvailable(ConnectionFactory::new);
+            factory.setHost(host);
+            factory.setPort(port);
+            factory.setUsername(user);
+            factory.setPassword(pass);
+            factory.setConnectionTimeout(5000);
+            factory.setRequestedHeartbeat(30);
+            factory.setAutomaticRecoveryEnabled(true);
+
+            Connection newConnection = factory.newConnection("rest-api-service-status");
+            Channel newChannel = newConnection.createChannel();
+            newChannel.exchangeDeclare(EXCHANGE, BuiltinExchangeType.FANOUT, true);
+            String queue = newChannel.queueDeclare().getQueue();
+            newChannel.queueBind(queue, EXCHANGE, "");
+
+            DeliverCallback callback = (consumerTag, delivery) -> {
+                try {
+                    listener.accept(MAPPER.readValue(delivery.getBody(), StatusEvent.class));
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Ignoring malformed service status event", e);
+                }
+            };
+            newChannel.basicConsume(queue, true, callback, consumerTag -> {});
+
+            connection = newConnection;
+            channel = newChannel;
+            LOGGER.info("Service status bus connected to " + host + ":" + port);
+        } catch (Exception e) {
+            LOGGER.warning("Service status bus unavailable (" + e.getMessage() + "), retrying in 5s");
+            scheduler.schedule(() -> connect(listener), 5, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            if (connection != null && connection.isOpen()) {
+                connection.close();
+            }
+        } catch (Exception e) {
+            LOGGER.warning("Error closing service status bus: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.email.rest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * Shared, versioned service status table. Every rest-api replica reads and writes the same
+ * rows, so status changes are decided by a single compare-and-set in the database rather
+ * than by whichever pod happened to take the request.
+ */
+@Component
+public class ServiceStatusStore {
+
+    @Value("${services.store.url:${storage.other.url:jdbc:postgresql://other-db:5432/other_store}}")
+    private String url;
+    @Value("${services.store.user:${storage.other.user:email_user}}")
+    private String user;
+    @Value("${services.store.password:${storage.other.password:email_pass}}")
+    private String password;
+
+    private final Object schemaLock = new Object();
+    private volatile boolean schemaReady = false;
+
+    public record VersionedStatus(ServiceStatus status, long version) {
+    }
+
+    /**
+     * Loads every row, creating the table and the given services (as ACTIVE) when missing.
+     */
+    Map<String, VersionedStatus> load(Collection<String> knownServices) throws SQLException {
+        try (Connection connection = openConnection()) {
+            ensureSchema(connection, knownServices);
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT name, status, version FROM service_status")) {
+                Map<String, VersionedStatus> rows = new HashMap<>();
+                while (resultSet.next()) {
+                    rows.put(resultSet.getString("name"), new VersionedStatus(
+                            ServiceStatus.valueOf(resultSet.getString("status")),
+                            resultSet.getLong("version")));
+                }
+                return rows;
+            }
+        }
+    }
+
+    /**
+     * Atomically moves {@code name} to {@code status} if the row is still at
+     * {@code expectedVersion}, the version the caller based its decision on.
+     * @return the new version, or empty when another change got there first
+     */
+    OptionalLong compareAndSet(String name, ServiceStatus status, long expectedVersion) throws SQLException {
+        try (Connection connection = openConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "UPDATE service_status SET status = ?, version = version + 1 " +
+                     "WHERE name = ? AND version = ? RETURNING version")) {
+            statement.setString(1, status.name());
+            statement.setString(2, name);
+            statement.setLong(3, expectedVersion);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? OptionalLong.of(resultSet.getLong(1)) : OptionalLong.empty();
+            }
+        }
+    }
+
+    private Connection openConnection() throws SQLException {
+        if (user == null || user.isBlank()) {
+            return DriverManager.getConnection(url);
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private void ensureSchema(Connection connection, Collection<String> knownServices) throws SQLException {
+        if (schemaReady) {
+            return;
+        }
+        synchronized (schemaLock) {
+            if (schemaReady) {
+                return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS service_status (
+                        name TEXT PRIMARY KEY,
+                        status TEXT NOT NULL,
+                        version BIGINT NOT NULL
+                    )
+                    """);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO service_status(name, status, version) VALUES (?, ?, 0) ON CONFLICT (name) DO NOTHING")) {
+                for (String name : knownServices) {
+                    statement.setString(1, name);
+                    statement.setString(2, ServiceStatus.ACTIVE.name());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            schemaReady = true;
+        }
+    }
+}
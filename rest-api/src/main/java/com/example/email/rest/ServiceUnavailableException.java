@@ -0,0 +1,16 @@
+package com.example.email.rest;
+
+/**
+ * Exception thrown when a change cannot be made because a backing store is unavailable.
+ * HTTP Status: 503 Service Unavailable
+ */
+public class ServiceUnavailableException extends RuntimeException {
+    
+    public ServiceUnavailableException(String message) {
+        super(message);
+    }
+    
+    public ServiceUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.email.rest;
+
+import com.example.email.proto.SendEmailRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the request hot paths on synthetic emails before the application reports itself
+ * ready: JSON request binding, the gRPC request message and the RabbitMQ message in the
+ * configured format and compression. Runners complete before readiness switches to
+ * accepting traffic, so {@code /api/ready} keeps new pods out of rotation meanwhile.
+ * <p>
+ * With {@code startup.training-run=true} the application exits right after, which is how
+ * the class-data archive of the {@code cds} build profile is recorded.
+ */
+@Component
+public class StartupWarmup implements ApplicationRunner {
+
+    private static final Logger LOGGER = Logger.getLogger(StartupWarmup.class.getName());
+    private static final int[] BODY_SIZES = {256, 4 * 1024, 64 * 1024};
+
+    @Value("${startup.warmup.iterations:0}")
+    private int iterations;
+
+    @Value("${startup.training-run:false}")
+    private boolean trainingRun;
+
+    private final ObjectMapper objectMapper;
+    private final RabbitMQPublisher rabbitPublisher;
+    private final ConfigurableApplicationContext context;
+
+    public StartupWarmup(ObjectMapper objectMapper, RabbitMQPublisher rabbitPublisher,
+                         ConfigurableApplicationContext context) {
+        this.objectMapper = objectMapper;
+        this.rabbitPublisher = rabbitPublisher;
+        this.context = context;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long warmupMillis = 0;
+        if (iterations > 0) {
+            long started = System.nanoTime();
+            try {
+                warmUp();
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "Warm-up failed, starting cold", ex);
+            }
+            warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            LOGGER.info("Warm-up: " + iterations + " iterations in " + warmupMillis + " ms");
+        }
+        LOGGER.info("Startup: ready in " + ManagementFactory.getRuntimeMXBean().getUptime()
+                + " ms since JVM start (warm-up " + warmupMillis + " ms)");
+
+        if (trainingRun) {
+            // A class-data archive is written when the JVM exits
+            LOGGER.info("Training run finished, exiting");
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    private void warmUp() throws Exception {
+        EmailPriority[] priorities = EmailPriority.values();
+        byte[][] requests = new byte[BODY_SIZES.length][];
+        for (int i = 0; i < requests.length; i++) {
+            char[] body = new char[BODY_SIZES[i]];
+            for (int j = 0; j < body.length; j++) {
+                body[j] = (char) ('a' + ThreadLocalRandom.current().nextInt(26));
+            }
+            requests[i] = objectMapper.writeValueAsBytes(Map.of(
+                    "address", "warmup@example.com",
+                    "body", new String(body),
+                    "priority", priorities[i % priorities.length].name()));
+        }
+
+        long produced = 0;
+        for (int i = 0; i < iterations; i++) {
+            EmailPayload payload = objectMapper.readValue(requests[i % requests.length], EmailPayload.class);
+            byte[] body = payload.body().getBytes(StandardCharsets.UTF_8);
+            produced += SendEmailRequest.newBuilder()
+                    .setAddress(payload.address())
+                    .setBody(ByteString.copyFrom(body))
+                    .setPriority(payload.priority().toProto())
+                    .build()
+                    .getSerializedSize();
+            ByteString encrypted = ByteString.copyFrom(Base64.getEncoder().encode(body));
+            produced += rabbitPublisher.warmUp(payload.address(), encrypted, payload.priority());
+            produced += objectMapper.writeValueAsBytes(Map.of("status", "ACCEPTED", "message", "Email encrypted and queued.")).length;
+        }
+        LOGGER.fine("Warm-up produced " + produced + " bytes");
+    }
+}
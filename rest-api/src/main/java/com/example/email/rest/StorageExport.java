@@ -0,0 +1,258 @@
+package com.example.email.rest;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bulk export of one bucket. Rows are produced by {@code COPY (SELECT ...) TO STDOUT}, so the
+ * server formats them and the driver hands over bytes that go through the compressor straight
+ * to the response; nothing is parsed into objects and memory use does not depend on the
+ * table size.
+ * <p>
+ * With a parallelism above one the id range is cut into slices of {@code sliceIds} ids that
+ * are copied on separate connections. Each slice is compressed on its own into a complete
+ * gzip member or zstd frame, and finished slices are written in id order; concatenated
+ * members decompress as one stream. At most {@code parallelism} slices are held at a time,
+ * so memory use is about {@code parallelism × sliceIds ×} the compressed row size.
+ * Each slice reads its own snapshot, and rows inserted after the export started are left out.
+ */
+final class StorageExport {
+
+    private static final Logger LOGGER = Logger.getLogger(StorageExport.class.getName());
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int ZSTD_LEVEL = 3;
+    /** Same columns and names as the consumer's bulk import reads. */
+    private static final String COLUMNS = "id, address, encrypted_body, domain, created_at, blob_ref, accepted_at";
+
+    enum Format {
+        NDJSON("ndjson", "application/x-ndjson"),
+        CSV("csv", "text/csv");
+
+        final String extension;
+        final String contentType;
+
+        Format(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+    }
+
+    enum Compression {
+        GZIP(".gz", "application/gzip"),
+        ZSTD(".zst", "application/zstd"),
+        NONE("", null);
+
+        final String extension;
+        final String contentType;
+
+        Compression(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * What to export: rows with {@code from <= created_at < to} (either end may be open), by id.
+     */
+    record Options(Format format, Compression compression, Instant from, Instant to, int parallelism) {
+        Options {
+            if (from != null && to != null && !from.isBefore(to)) {
+                throw new IllegalArgumentException("'from' must be before 'to'");
+            }
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallel must be at least 1");
+            }
+        }
+
+        static Options parse(String format, String compression, Instant from, Instant to, int parallelism) {
+            return new Options(value(Format.class, format), value(Compression.class, compression), from, to, parallelism);
+        }
+
+        String contentType() {
+            return compression.contentType != null ? compression.contentType : format.contentType;
+        }
+
+        String fileName(String bucket) {
+            return bucket + "-emails." + format.extension + compression.extension;
+        }
+    }
+
+    /** Per-bucket database access, implemented by the storage service's clients. */
+    interface Source {
+        String bucket();
+
+        /** Runs a {@code COPY ... TO STDOUT} on a connection of its own, in UTC. */
+        long copyOut(String sql, OutputStream out) throws SQLException, IOException;
+
+        /** Lowest and highest id with {@code from <= created_at < to}, or null if there are none. */
+        long[] idRange(Instant from, Instant to) throws SQLException;
+    }
+
+    private final ExecutorService executor;
+    private final int maxParallelism;
+    private final long sliceIds;
+
+    StorageExport(int maxParallelism, long sliceIds) {
+        this.maxParallelism = Math.max(1, maxParallelism);
+        this.sliceIds = Math.max(1, sliceIds);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.maxParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "storage-export-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Writes the export to {@code out}, which is flushed but not closed. The parallelism is
+     * capped at {@code storage.export.max-parallelism}, whose threads all exports share.
+     */
+    void export(Source source, Options options, OutputStream out) throws IOException, SQLException {
+        int parallelism = Math.min(options.parallelism(), maxParallelism);
+        long[] range = null;
+        if (parallelism > 1) {
+            range = source.idRange(options.from() != null ? options.from() : Instant.EPOCH,
+                    options.to() != null ? options.to() : Instant.now().plusSeconds(1));
+        }
+        long started = System.nanoTime();
+        long rows;
+        OutputStream response = new Unclosed(out);
+        if (range == null || range[1] - range[0] < sliceIds) {
+            try (OutputStream compressed = compress(response, options.compression())) {
+                rows = source.copyOut(copySql(options, null, true), compressed);
+            }
+        } else {
+            rows = exportSlices(source, options, parallelism, range, response);
+            response.flush();
+        }
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        LOGGER.info(() -> "Exported " + rows + " rows of " + source.bucket() + " in " + millis + " ms");
+    }
+
+    private long exportSlices(Source source, Options options, int parallelism, long[] range, OutputStream out)
+            throws IOException, SQLException {
+        Deque<Future<Slice>> window = new ArrayDeque<>();
+        long rows = 0;
+        long low = range[0];
+        try {
+            while (low <= range[1] || !window.isEmpty()) {
+                while (low <= range[1] && window.size() < parallelism) {
+                    String sql = copySql(options, new long[] {low, Math.min(range[1] + 1, low + sliceIds)}, low == range[0]);
+                    window.add(executor.submit(() -> slice(source, sql, options.compression())));
+                    low = Math.min(range[1] + 1, low + sliceIds);
+                }
+                Slice slice = await(window.poll());
+                slice.bytes().writeTo(out);
+                rows += slice.rows();
+            }
+            return rows;
+        } finally {
+            // Left over only when the client went away or a slice failed
+            window.forEach(pending -> pending.cancel(true));
+        }
+    }
+
+    private static Slice slice(Source source, String sql, Compression compression) throws IOException, SQLException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        long rows;
+        try (OutputStream compressed = compress(buffer, compression)) {
+            rows = source.copyOut(sql, compressed);
+        }
+        return new Slice(buffer, rows);
+    }
+
+    private static Slice await(Future<Slice> future) throws IOException, SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException sql) {
+                throw sql;
+            }
+            if (ex.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Export slice failed", ex.getCause());
+        }
+    }
+
+    /**
+     * The COPY statement for the options, limited to {@code low <= id < high} when
+     * {@code ids} is given. COPY takes no bind parameters, so the bounds are inlined; they are
+     * numbers and ISO instants only.
+     */
+    static String copySql(Options options, long[] ids, boolean header) {
+        List<String> conditions = new ArrayList<>();
+        if (ids != null) {
+            conditions.add("id >= " + ids[0]);
+            conditions.add("id < " + ids[1]);
+        }
+        if (options.from() != null) {
+            conditions.add("created_at >= '" + options.from() + "'::timestamptz");
+        }
+        if (options.to() != null) {
+            conditions.add("created_at < '" + options.to() + "'::timestamptz");
+        }
+        String select = "SELECT " + COLUMNS + " FROM emails"
+                + (conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions))
+                + " ORDER BY id";
+        if (options.format() == Format.CSV) {
+            return "COPY (" + select + ") TO STDOUT (FORMAT csv" + (header ? ", HEADER" : "") + ")";
+        }
+        // One JSON document per row. Text format would escape its backslashes, so this is CSV
+        // with a quote and delimiter that JSON never contains unescaped: lines come out as is
+        return "COPY (SELECT row_to_json(e) FROM (" + select + ") e) TO STDOUT "
+                + "(FORMAT csv, QUOTE e'\\x01', DELIMITER e'\\x02')";
+    }
+
+    private static OutputStream compress(OutputStream out, Compression compression) throws IOException {
+        return switch (compression) {
+            case GZIP -> new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD -> new BufferedOutputStream(new ZstdOutputStream(out, ZSTD_LEVEL), BUFFER_SIZE);
+            case NONE -> new BufferedOutputStream(out, BUFFER_SIZE);
+        };
+    }
+
+    private static <E extends Enum<E>> E value(Class<E> type, String name) {
+        try {
+            return Enum.valueOf(type, name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unsupported " + type.getSimpleName().toLowerCase(Locale.ROOT) + ": " + name);
+        }
+    }
+
+    private record Slice(ByteArrayOutputStream bytes, long rows) {
+    }
+
+    /** Buffers writes to the response and flushes it on close, leaving it open. */
+    private static final class Unclosed extends BufferedOutputStream {
+        Unclosed(OutputStream out) {
+            super(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package com.example.email.rest;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -12,12 +21,23 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -26,6 +46,9 @@ import java.util.stream.Collectors;
 public class StorageService {
 
     private static final Logger LOGGER = Logger.getLogger(StorageService.class.getName());
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+    private static final String DUPLICATE_OBJECT = "42710";
 
     @Value("${storage.gmail.url:jdbc:postgresql://gmail-db:5432/gmail_store}")
     private String gmailUrl;
@@ -48,7 +71,59 @@ public class StorageService {
     @Value("${storage.other.password:email_pass}")
     private String otherPassword;
 
+    @Value("${storage.cache.max-bytes:67108864}")
+    private long cacheMaxBytes;
+    @Value("${storage.cache.ttl-ms:60000}")
+    private long cacheTtlMillis;
+
+    @Value("${storage.tail.buffer:1024}")
+    private int tailBuffer;
+    @Value("${storage.tail.heartbeat-ms:15000}")
+    private long tailHeartbeatMillis;
+
+    @Value("${storage.purge.chunk-size:5000}")
+    private int purgeChunkSize;
+    @Value("${storage.purge.pause-ms:50}")
+    private long purgePauseMillis;
+    @Value("${storage.purge.lock-timeout-ms:2000}")
+    private long purgeLockTimeoutMillis;
+
+    @Value("${storage.counts.fold-ms:1000}")
+    private long countsFoldMillis;
+
+    @Value("${storage.export.max-parallelism:4}")
+    private int exportMaxParallelism;
+    @Value("${storage.export.slice-ids:10000}")
+    private long exportSliceIds;
+
     private final Map<String, DatabaseClient> clients = new LinkedHashMap<>();
+    private final EmailEventListener events;
+    private StorageTail tail;
+    private StorageExport export;
+    private final ScheduledExecutorService countsFolder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "email-counts-fold");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Query results per bucket, bounded by approximate heap size. Caffeine's W-TinyLFU policy
+     * keeps frequently polled results over one-off reads. Entries are dropped when the
+     * consumer of their bucket announces a commit; the TTL only guards against lost events.
+     */
+    private Cache<CacheKey, Object> cache;
+    /**
+     * Bumped per bucket before its entries are dropped. Invalidation cannot see loads still
+     * in flight, so a load that overlapped one removes its own result once it is cached.
+     */
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private record CacheKey(String bucket, String query) {
+    }
+
+    public StorageService(EmailEventListener events) {
+        this.events = events;
+    }
 
     @PostConstruct
     void init() {
@@ -56,6 +131,48 @@ public class StorageService {
         registerClient("wp.com", wpUrl, wpUser, wpPassword);
         registerClient("other", otherUrl, otherUser, otherPassword);
         LOGGER.info(() -> "StorageService configured for domains: " + String.join(", ", clients.keySet()));
+        tail = new StorageTail(List.copyOf(clients.values()), tailBuffer, Duration.ofMillis(tailHeartbeatMillis));
+        export = new StorageExport(exportMaxParallelism, exportSliceIds);
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(cacheMaxBytes)
+                .weigher((CacheKey key, Object value) -> weigh(value))
+                .expireAfterWrite(Duration.ofMillis(cacheTtlMillis))
+                .build();
+        events.onChanged(this::invalidate);
+        countsFolder.scheduleWithFixedDelay(this::foldCounts, countsFoldMillis, countsFoldMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        countsFolder.shutdownNow();
+    }
+
+    /**
+     * Folds each bucket's pending counter deltas into {@code email_counts}, so the deltas
+     * readers have to add up stay few.
+     */
+    private void foldCounts() {
+        for (DatabaseClient database : clients.values()) {
+            try {
+                database.foldCounts();
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "Failed to fold email counts for " + database.bucket(), ex);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached result for {@code bucket}, or for all buckets.
+     */
+    void invalidate(String bucket) {
+        if (EmailEventListener.ALL_BUCKETS.equals(bucket)) {
+            generations.values().forEach(AtomicLong::incrementAndGet);
+            cache.invalidateAll();
+        } else {
+            generation(bucket).incrementAndGet();
+            cache.asMap().keySet().removeIf(key -> key.bucket().equals(bucket));
+        }
     }
 
     public Map<String, Object> getAllStorages() throws IOException {
@@ -66,7 +183,7 @@ public class StorageService {
             int totalCount = 0;
 
             for (Map.Entry<String, DatabaseClient> entry : clients.entrySet()) {
-                List<StoredEmail> emails = entry.getValue().fetchAll();
+                List<StoredEmail> emails = cached(entry.getKey(), "all", database -> List.copyOf(database.fetchAll()));
                 domainEmails.put(entry.getKey(), emails);
                 totalCount += emails.size();
             }
@@ -87,6 +204,30 @@ public class StorageService {
         }
     }
 
+    /** One email of the live tail, or a heartbeat when {@code email} is null, and the cursor to resume after it. */
+    public record TailEvent(String cursor, StoredEmail email) {
+
+        /** The event with the cursor as its id, so EventSource clients resume through Last-Event-ID. */
+        public ServerSentEvent<StoredEmail> toServerSentEvent() {
+            if (email == null) {
+                return ServerSentEvent.<StoredEmail>builder().id(cursor).comment("heartbeat").build();
+            }
+            return ServerSentEvent.builder(email).id(cursor).event("email").build();
+        }
+    }
+
+    /**
+     * Emails from every bucket as their inserts commit, read through one LISTEN connection per
+     * bucket database. With a {@code cursor} from an earlier event, the emails stored since
+     * are replayed first. Idle streams get a heartbeat carrying the current cursor.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public Flux<TailEvent> tail(String cursor) throws IOException {
+        ensureConfigured();
+        return tail.subscribe(cursor);
+    }
+
     public Map<String, Object> getDomainStorage(String domain) throws IOException {
         ensureConfigured();
 
@@ -103,7 +244,7 @@ public class StorageService {
         }
 
         try {
-            List<StoredEmail> emails = client.fetchAll();
+            List<StoredEmail> emails = cached(key, "all", database -> List.copyOf(database.fetchAll()));
             Map<String, Object> response = new LinkedHashMap<>();
             response.put("domain", key);
             response.put("emails", emails);
@@ -114,26 +255,256 @@ public class StorageService {
         }
     }
 
-    public Map<String, Object> clearAllStorages() throws IOException {
+    /**
+     * One page of the emails sent to {@code address}, newest first. Pages are keyed on
+     * (created_at, id) so each one is a single index range scan however deep the caller goes.
+     * @param cursor {@code nextCursor} of the previous page, or null for the first page
+     */
+    public Map<String, Object> getRecipientEmails(String domain, String address, String cursor, int limit) throws IOException {
+        ensureConfigured();
+
+        String key = normalizeDomain(domain);
+        if (!clients.containsKey(key)) {
+            throw new IOException("No storage configured for domain: " + domain);
+        }
+        PageCursor after = PageCursor.decode(cursor);
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        try {
+            RecipientPage page = cached(key, "recipient:" + address + ":" + cursor + ":" + pageSize,
+                    database -> database.fetchByAddress(address, after, pageSize));
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("domain", key);
+            response.put("address", address);
+            response.put("emails", page.emails());
+            response.put("count", page.emails().size());
+            response.put("nextCursor", page.nextCursor());
+            return response;
+        } catch (SQLException ex) {
+            throw new IOException("Failed to read recipient emails for domain: " + key, ex);
+        }
+    }
+
+    /**
+     * Number of stored emails in a bucket, read from the trigger-maintained
+     * {@code email_counts} table and its pending deltas instead of counting rows.
+     */
+    public Map<String, Object> getDomainCount(String domain) throws IOException {
+        ensureConfigured();
+
+        String key = normalizeDomain(domain);
+        if (!clients.containsKey(key)) {
+            throw new IOException("No storage configured for domain: " + domain);
+        }
+
+        try {
+            Map<String, Long> counts = cached(key, "count", DatabaseClient::countByDomain);
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("domain", key);
+            response.put("count", counts.values().stream().mapToLong(Long::longValue).sum());
+            response.put("byDomain", counts);
+            return response;
+        } catch (SQLException ex) {
+            throw new IOException("Failed to read email count for domain: " + key, ex);
+        }
+    }
+
+    /**
+     * Per-minute ingest statistics between {@code from} and {@code to}, read only from the
+     * {@code email_stats_minute} rollups the consumers create and maintain, never from
+     * {@code emails}; bytes only counts bodies whose size the publisher recorded.
+     * @param bucket restrict to one bucket, or null for all
+     */
+    public Map<String, Object> getStats(Instant from, Instant to, String bucket) throws IOException {
         ensureConfigured();
 
         try {
-            int clearedRows = 0;
-            int clearedBuckets = 0;
+            Map<String, List<MinuteStats>> buckets = new LinkedHashMap<>();
+            long emails = 0;
+            long bytes = 0;
+            long lagSum = 0;
+            long lagSamples = 0;
+            long lagMax = 0;
 
-            for (DatabaseClient client : clients.values()) {
-                clearedRows += client.clear();
-                clearedBuckets++;
+            for (Map.Entry<String, DatabaseClient> entry : clients.entrySet()) {
+                if (bucket != null && !entry.getKey().equals(normalizeDomain(bucket))) {
+                    continue;
+                }
+                List<MinuteStats> minutes = entry.getValue().fetchStats(from, to);
+                buckets.put(entry.getKey(), minutes);
+                for (MinuteStats minute : minutes) {
+                    emails += minute.emails();
+                    bytes += minute.bytes();
+                    lagSum += minute.lagMsSum();
+                    lagSamples += minute.lagSamples();
+                    lagMax = Math.max(lagMax, minute.maxLagMs());
+                }
             }
 
+            Map<String, Object> totals = new LinkedHashMap<>();
+            totals.put("emails", emails);
+            totals.put("bytes", bytes);
+            totals.put("avgLagMs", lagSamples > 0 ? lagSum / lagSamples : null);
+            totals.put("maxLagMs", lagMax);
+
             Map<String, Object> response = new LinkedHashMap<>();
-            response.put("deletedEmails", clearedRows);
-            response.put("deletedFiles", clearedBuckets);
-            response.put("storageType", "database");
-            response.put("databases", new ArrayList<>(clients.keySet()));
+            response.put("from", from);
+            response.put("to", to);
+            response.put("totals", totals);
+            response.put("buckets", buckets);
             return response;
         } catch (SQLException ex) {
-            throw new IOException("Failed to clear storage databases", ex);
+            throw new IOException("Failed to read ingest statistics", ex);
+        }
+    }
+
+    /**
+     * Streams the emails of a bucket into {@code out} as compressed NDJSON or CSV, straight
+     * from a {@code COPY ... TO STDOUT}; see {@link StorageExport}. {@code out} is left open.
+     */
+    void export(String domain, StorageExport.Options options, OutputStream out) throws IOException {
+        ensureConfigured();
+
+        String key = normalizeDomain(domain);
+        DatabaseClient client = clients.get(key);
+        if (client == null) {
+            throw new IOException("No storage configured for domain: " + domain);
+        }
+        try {
+            export.export(client, options, out);
+        } catch (SQLException ex) {
+            throw new IOException("Failed to export storage for domain: " + key, ex);
+        }
+    }
+
+    /** The bucket {@code domain} is stored in. */
+    String bucketOf(String domain) {
+        return normalizeDomain(domain);
+    }
+
+    /** Names of the configured buckets. */
+    public List<String> buckets() throws IOException {
+        ensureConfigured();
+        return List.copyOf(clients.keySet());
+    }
+
+    /**
+     * Deletes the emails of one bucket, optionally only those with {@code from <= created_at < to}.
+     * A full purge first tries TRUNCATE, giving up after {@code storage.purge.lock-timeout-ms}
+     * rather than queueing in front of the consumer's inserts. Otherwise rows are deleted in
+     * short id-range transactions with a pause between them, so ingestion keeps running and
+     * autovacuum can keep up.
+     */
+    void purgeBucket(String bucket, Instant from, Instant to, PurgeJob.BucketProgress progress) throws SQLException {
+        DatabaseClient client = clients.get(bucket);
+        try {
+            if (from == null && to == null) {
+                progress.start("truncate");
+                long truncated = client.truncate(purgeLockTimeoutMillis);
+                if (truncated >= 0) {
+                    progress.advance(truncated, 100);
+                    return;
+                }
+                LOGGER.info("TRUNCATE of " + bucket + " could not get its lock, falling back to chunked deletes");
+            }
+
+            progress.start("chunked");
+            Instant start = from != null ? from : Instant.EPOCH;
+            Instant end = to != null ? to : Instant.now().plusSeconds(1);
+            long[] range = client.idRange(start, end);
+            if (range == null) {
+                return;
+            }
+            long span = range[1] - range[0] + 1;
+            for (long low = range[0]; low <= range[1]; low += purgeChunkSize) {
+                long high = Math.min(range[1] + 1, low + purgeChunkSize);
+                int deleted = client.deleteChunk(low, high, start, end);
+                progress.advance(deleted, (int) Math.min(99, (high - range[0]) * 100 / span));
+                if (deleted > 0) {
+                    invalidate(bucket);
+                }
+                try {
+                    Thread.sleep(purgePauseMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Purge of " + bucket + " interrupted", ex);
+                }
+            }
+        } finally {
+            invalidate(bucket);
+            events.publishChanged(bucket);
+        }
+    }
+
+    /**
+     * Returns the cached result of {@code query} on {@code bucket}, loading it once on a miss.
+     * Concurrent misses for the same key share a single database read.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cached(String bucket, String query, SqlFunction<DatabaseClient, T> loader) throws SQLException {
+        DatabaseClient client = clients.get(bucket);
+        AtomicLong generation = generation(bucket);
+        // Set only when this thread runs the load; Cache.get loads on the calling thread
+        long[] loadedAt = {-1};
+        Function<CacheKey, Object> load = key -> {
+            loadedAt[0] = generation.get();
+            try {
+                return loader.apply(client);
+            } catch (SQLException ex) {
+                throw new LoadFailure(ex);
+            }
+        };
+        CacheKey key = new CacheKey(bucket, query);
+        try {
+            Object value = cache.get(key, load);
+            if (loadedAt[0] >= 0 && generation.get() != loadedAt[0]) {
+                // The bucket changed during the read; serve the result once, but do not keep it
+                cache.asMap().remove(key, value);
+            }
+            return (T) value;
+        } catch (LoadFailure ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private AtomicLong generation(String bucket) {
+        return generations.computeIfAbsent(bucket, unused -> new AtomicLong());
+    }
+
+    private static int weigh(Object value) {
+        long bytes = 64;
+        if (value instanceof RecipientPage page) {
+            value = page.emails();
+        } else if (value instanceof Map<?, ?> counts) {
+            bytes += 64L * counts.size();
+        }
+        if (value instanceof List<?> emails) {
+            for (Object item : emails) {
+                StoredEmail email = (StoredEmail) item;
+                bytes += 96 + 2L * (length(email.address) + length(email.encryptedBody) + length(email.domain) + length(email.blobRef));
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    @FunctionalInterface
+    private interface SqlFunction<T, R> {
+        R apply(T t) throws SQLException;
+    }
+
+    /** Carries a SQLException out of a cache loader; failed loads are not cached. */
+    private static final class LoadFailure extends RuntimeException {
+        LoadFailure(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
         }
     }
 
@@ -166,20 +537,74 @@ public class StorageService {
     }
 
     public static final class StoredEmail {
+        public final long id;
         public final String address;
         public final String encryptedBody;
         public final String domain;
         public final Instant timestamp;
+        /** Blob store reference for large bodies streamed through /api/email/stream, otherwise null. */
+        public final String blobRef;
+        /** Plaintext, only set on copies returned by {@link DecryptionService}. */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public final String body;
 
-        public StoredEmail(String address, String encryptedBody, String domain, Instant timestamp) {
+        public StoredEmail(long id, String address, String encryptedBody, String domain, Instant timestamp, String blobRef) {
+            this(id, address, encryptedBody, domain, timestamp, blobRef, null);
+        }
+
+        private StoredEmail(long id, String address, String encryptedBody, String domain, Instant timestamp,
+                            String blobRef, String body) {
+            this.id = id;
             this.address = address;
             this.encryptedBody = encryptedBody;
             this.domain = domain;
             this.timestamp = timestamp;
+            this.blobRef = blobRef;
+            this.body = body;
+        }
+
+        /** A copy carrying the decrypted body; cached instances are shared and never modified. */
+        StoredEmail withBody(String body) {
+            return new StoredEmail(id, address, encryptedBody, domain, timestamp, blobRef, body);
+        }
+    }
+
+    private record RecipientPage(List<StoredEmail> emails, String nextCursor) {
+    }
+
+    /** One {@code email_stats_minute} row. */
+    public record MinuteStats(String domain, Instant minute, long emails, long bytes,
+                              long avgLagMs, long maxLagMs,
+                              @JsonIgnore long lagMsSum, @JsonIgnore long lagSamples) {
+    }
+
+    /**
+     * Position after the last row of a page, encoded for clients as
+     * {@code base64url(<created_at epoch micros>:<id>)}.
+     */
+    record PageCursor(Instant createdAt, long id) {
+
+        static PageCursor decode(String cursor) {
+            if (cursor == null || cursor.isBlank()) {
+                return null;
+            }
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII).split(":");
+                long micros = Long.parseLong(parts[0]);
+                return new PageCursor(Instant.EPOCH.plus(micros, ChronoUnit.MICROS), Long.parseLong(parts[1]));
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+        }
+
+        static String encode(StoredEmail last) {
+            long micros = ChronoUnit.MICROS.between(Instant.EPOCH, last.timestamp);
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((micros + ":" + last.id).getBytes(StandardCharsets.US_ASCII));
         }
     }
 
-    private static final class DatabaseClient {
+    private static final class DatabaseClient implements StorageTail.Source, StorageExport.Source {
         private final String bucket;
         private final String jdbcUrl;
         private final String username;
@@ -194,33 +619,234 @@ public class StorageService {
             this.password = password;
         }
 
+        @Override
+        public String bucket() {
+            return bucket;
+        }
+
+        @Override
+        public Connection listenerConnection() throws SQLException {
+            Connection connection = openConnection();
+            try {
+                ensureSchema(connection);
+                return connection;
+            } catch (SQLException ex) {
+                connection.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public List<StoredEmail> fetchIds(Connection connection, long after, long upTo, int limit) throws SQLException {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT id, address, encrypted_body, domain, created_at, blob_ref FROM emails "
+                            + "WHERE id > ? AND id <= ? ORDER BY id LIMIT ?")) {
+                statement.setLong(1, after);
+                statement.setLong(2, upTo);
+                statement.setInt(3, limit);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return readEmails(resultSet);
+                }
+            }
+        }
+
+        @Override
+        public long maxId(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT COALESCE(max(id), 0) FROM emails")) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }
+
+        @Override
+        public List<StoredEmail> fetchAfter(long after, int limit) throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                return fetchIds(connection, after, Long.MAX_VALUE, limit);
+            }
+        }
+
         List<StoredEmail> fetchAll() throws SQLException {
             try (Connection connection = openConnection()) {
                 ensureSchema(connection);
                 try (PreparedStatement statement = connection.prepareStatement(
-                        "SELECT address, encrypted_body, domain, created_at FROM emails ORDER BY created_at DESC")) {
+                        "SELECT id, address, encrypted_body, domain, created_at, blob_ref FROM emails ORDER BY created_at DESC")) {
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        return readEmails(resultSet);
+                    }
+                }
+            }
+        }
+
+        RecipientPage fetchByAddress(String address, PageCursor after, int limit) throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                // Served by idx_emails_address_created; one extra row tells whether another page exists
+                String sql = "SELECT id, address, encrypted_body, domain, created_at, blob_ref FROM emails WHERE address = ? "
+                        + (after != null ? "AND (created_at, id) < (?, ?) " : "")
+                        + "ORDER BY created_at DESC, id DESC LIMIT ?";
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    int index = 1;
+                    statement.setString(index++, address);
+                    if (after != null) {
+                        statement.setTimestamp(index++, Timestamp.from(after.createdAt()));
+                        statement.setLong(index++, after.id());
+                    }
+                    statement.setInt(index, limit + 1);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        List<StoredEmail> emails = readEmails(resultSet);
+                        if (emails.size() <= limit) {
+                            return new RecipientPage(List.copyOf(emails), null);
+                        }
+                        List<StoredEmail> page = List.copyOf(emails.subList(0, limit));
+                        return new RecipientPage(page, PageCursor.encode(page.get(limit - 1)));
+                    }
+                }
+            }
+        }
+
+        Map<String, Long> countByDomain() throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery("""
+                             SELECT domain, sum(total) AS total FROM (
+                                 SELECT domain, total FROM email_counts
+                                 UNION ALL
+                                 SELECT domain, delta FROM email_count_deltas
+                             ) counts
+                             GROUP BY domain HAVING sum(total) > 0 ORDER BY domain
+                             """)) {
+                    Map<String, Long> counts = new LinkedHashMap<>();
+                    while (resultSet.next()) {
+                        counts.put(resultSet.getString("domain"), resultSet.getLong("total"));
+                    }
+                    return Collections.unmodifiableMap(counts);
+                }
+            }
+        }
+
+        List<MinuteStats> fetchStats(Instant from, Instant to) throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                // The consumer creates the rollup table when it starts
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery("SELECT to_regclass('email_stats_minute') IS NOT NULL")) {
+                    if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                        return List.of();
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT domain, minute, emails, bytes, lag_ms_sum, lag_ms_max, lag_samples FROM email_stats_minute "
+                                + "WHERE minute >= ? AND minute < ? ORDER BY minute, domain")) {
+                    statement.setTimestamp(1, Timestamp.from(from));
+                    statement.setTimestamp(2, Timestamp.from(to));
                     try (ResultSet resultSet = statement.executeQuery()) {
-                        List<StoredEmail> emails = new ArrayList<>();
+                        List<MinuteStats> minutes = new ArrayList<>();
                         while (resultSet.next()) {
-                            String address = resultSet.getString("address");
-                            String encrypted = resultSet.getString("encrypted_body");
-                            String domain = resultSet.getString("domain");
-                            Timestamp timestamp = resultSet.getTimestamp("created_at");
-                            Instant instant = timestamp != null ? timestamp.toInstant() : Instant.EPOCH;
-                            emails.add(new StoredEmail(address, encrypted, domain, instant));
+                            long lagSum = resultSet.getLong("lag_ms_sum");
+                            long lagSamples = resultSet.getLong("lag_samples");
+                            minutes.add(new MinuteStats(
+                                    resultSet.getString("domain"),
+                                    resultSet.getTimestamp("minute").toInstant(),
+                                    resultSet.getLong("emails"),
+                                    resultSet.getLong("bytes"),
+                                    lagSamples > 0 ? lagSum / lagSamples : 0,
+                                    resultSet.getLong("lag_ms_max"),
+                                    lagSum,
+                                    lagSamples));
                         }
-                        return emails;
+                        return minutes;
+                    }
+                }
+            }
+        }
+
+        private static List<StoredEmail> readEmails(ResultSet resultSet) throws SQLException {
+            List<StoredEmail> emails = new ArrayList<>();
+            while (resultSet.next()) {
+                long id = resultSet.getLong("id");
+                String address = resultSet.getString("address");
+                String encrypted = resultSet.getString("encrypted_body");
+                String domain = resultSet.getString("domain");
+                Timestamp timestamp = resultSet.getTimestamp("created_at");
+                Instant instant = timestamp != null ? timestamp.toInstant() : Instant.EPOCH;
+                String blobRef = resultSet.getString("blob_ref");
+                emails.add(new StoredEmail(id, address, encrypted, domain, instant, blobRef));
+            }
+            return emails;
+        }
+
+        /**
+         * Truncates {@code emails}, returning how many rows it held (from the counter table),
+         * or -1 if the table lock was not granted within {@code lockTimeoutMillis}.
+         */
+        long truncate(long lockTimeoutMillis) throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                connection.setAutoCommit(false);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SET LOCAL lock_timeout = " + lockTimeoutMillis);
+                    statement.execute("LOCK TABLE emails IN ACCESS EXCLUSIVE MODE");
+                    long rows;
+                    try (ResultSet resultSet = statement.executeQuery(
+                            "SELECT (SELECT COALESCE(sum(total), 0) FROM email_counts)"
+                                    + " + (SELECT COALESCE(sum(delta), 0) FROM email_count_deltas)")) {
+                        resultSet.next();
+                        rows = resultSet.getLong(1);
                     }
+                    statement.execute("TRUNCATE emails");
+                    connection.commit();
+                    return rows;
+                } catch (SQLException ex) {
+                    connection.rollback();
+                    if (LOCK_NOT_AVAILABLE.equals(ex.getSQLState())) {
+                        return -1;
+                    }
+                    throw ex;
                 }
             }
         }
 
-        int clear() throws SQLException {
+        @Override
+        public long copyOut(String sql, OutputStream out) throws SQLException, IOException {
             try (Connection connection = openConnection()) {
                 ensureSchema(connection);
                 try (Statement statement = connection.createStatement()) {
-                    return statement.executeUpdate("DELETE FROM emails");
+                    statement.execute("SET TIME ZONE 'UTC'");
                 }
+                return connection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+            }
+        }
+
+        @Override
+        public long[] idRange(Instant from, Instant to) throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT min(id), max(id) FROM emails WHERE created_at >= ? AND created_at < ?")) {
+                    statement.setTimestamp(1, Timestamp.from(from));
+                    statement.setTimestamp(2, Timestamp.from(to));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        resultSet.next();
+                        long min = resultSet.getLong(1);
+                        return resultSet.wasNull() ? null : new long[] {min, resultSet.getLong(2)};
+                    }
+                }
+            }
+        }
+
+        /** Deletes rows with {@code low <= id < high} inside the time range, in its own transaction. */
+        int deleteChunk(long low, long high, Instant from, Instant to) throws SQLException {
+            try (Connection connection = openConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                         "DELETE FROM emails WHERE id >= ? AND id < ? AND created_at >= ? AND created_at < ?")) {
+                statement.setLong(1, low);
+                statement.setLong(2, high);
+                statement.setTimestamp(3, Timestamp.from(from));
+                statement.setTimestamp(4, Timestamp.from(to));
+                return statement.executeUpdate();
             }
         }
 
@@ -251,6 +877,11 @@ public class StorageService {
                         """);
                     statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_emails_created_at ON emails(created_at DESC)");
                     statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_emails_domain_created ON emails(domain, created_at DESC)");
+                    statement.executeUpdate("ALTER TABLE emails ADD COLUMN IF NOT EXISTS blob_ref TEXT");
+                    statement.executeUpdate("ALTER TABLE emails ADD COLUMN IF NOT EXISTS accepted_at TIMESTAMPTZ");
+                    statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_emails_address_created ON emails(address, created_at DESC, id DESC)");
+                    ensureCounters(connection);
+                    ensureInsertNotify(connection);
                     schemaReady = true;
                 } catch (SQLException ex) {
                     schemaReady = false;
@@ -259,5 +890,147 @@ public class StorageService {
                 }
             }
         }
+
+        /**
+         * Installs the statement-level trigger behind the live tail: every insert statement
+         * sends the id range of its rows on {@value StorageTail#CHANNEL}, which Postgres delivers
+         * when the transaction commits. A batch of single-row inserts sends adjacent ranges that
+         * the listener merges into one read.
+         */
+        private void ensureInsertNotify(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                try (ResultSet resultSet = statement.executeQuery(
+                        "SELECT 1 FROM pg_trigger WHERE tgname = 'emails_notify_insert' AND tgrelid = 'emails'::regclass")) {
+                    if (resultSet.next()) {
+                        return;
+                    }
+                }
+                statement.execute("""
+                    CREATE OR REPLACE FUNCTION emails_notify_insert() RETURNS trigger LANGUAGE plpgsql AS $$
+                    DECLARE
+                        low BIGINT;
+                        high BIGINT;
+                    BEGIN
+                        SELECT min(id), max(id) INTO low, high FROM new_rows;
+                        IF low IS NOT NULL THEN
+                            PERFORM pg_notify('%s', low || ':' || high);
+                        END IF;
+                        RETURN NULL;
+                    END $$
+                    """.formatted(StorageTail.CHANNEL));
+                statement.execute("CREATE TRIGGER emails_notify_insert AFTER INSERT ON emails "
+                        + "REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE FUNCTION emails_notify_insert()");
+                LOGGER.info("Installed insert notifications for " + bucket);
+            } catch (SQLException ex) {
+                // Another replica installed it concurrently
+                if (!DUPLICATE_OBJECT.equals(ex.getSQLState())) {
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Moves the deltas the triggers appended into {@code email_counts}, one row update per
+         * domain however many batches were stored since the last fold.
+         */
+        void foldCounts() throws SQLException {
+            try (Connection connection = openConnection()) {
+                ensureSchema(connection);
+                connection.setAutoCommit(false);
+                try (Statement statement = connection.createStatement()) {
+                    // Waits for a running truncate, which empties both tables, instead of
+                    // re-adding deltas it already discarded
+                    statement.execute("LOCK TABLE email_counts IN EXCLUSIVE MODE");
+                    statement.executeUpdate("""
+                        WITH moved AS (DELETE FROM email_count_deltas RETURNING domain, delta)
+                        INSERT INTO email_counts(domain, total)
+                        SELECT domain, sum(delta) FROM moved GROUP BY domain
+                        ON CONFLICT (domain) DO UPDATE SET total = email_counts.total + EXCLUDED.total
+                        """);
+                    connection.commit();
+                } catch (SQLException ex) {
+                    connection.rollback();
+                    throw ex;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+
+        /**
+         * Installs statement-level triggers that keep {@code email_counts} in step with
+         * {@code emails}. Using transition tables, each statement appends one delta row per
+         * domain to {@code email_count_deltas}, which takes no row lock, so concurrent batches
+         * for one domain do not serialize on its counter; {@link #foldCounts} moves the deltas
+         * into the counters later and readers add the ones still pending. The first install
+         * seeds the counters under a lock that blocks writers, so no insert is counted twice
+         * or missed; the functions are replaced on every start to upgrade older installs.
+         */
+        private void ensureCounters(Connection connection) throws SQLException {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("LOCK TABLE emails IN SHARE ROW EXCLUSIVE MODE");
+                statement.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS email_counts (
+                        domain TEXT PRIMARY KEY,
+                        total BIGINT NOT NULL
+                    )
+                    """);
+                statement.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS email_count_deltas (
+                        domain TEXT NOT NULL,
+                        delta BIGINT NOT NULL
+                    )
+                    """);
+                statement.execute("""
+                    CREATE OR REPLACE FUNCTION emails_count_insert() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        INSERT INTO email_count_deltas(domain, delta)
+                        SELECT domain, count(*) FROM new_rows GROUP BY domain;
+                        RETURN NULL;
+                    END $$
+                    """);
+                statement.execute("""
+                    CREATE OR REPLACE FUNCTION emails_count_delete() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        INSERT INTO email_count_deltas(domain, delta)
+                        SELECT domain, -count(*) FROM old_rows GROUP BY domain;
+                        RETURN NULL;
+                    END $$
+                    """);
+                statement.execute("""
+                    CREATE OR REPLACE FUNCTION emails_count_truncate() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        DELETE FROM email_counts;
+                        DELETE FROM email_count_deltas;
+                        RETURN NULL;
+                    END $$
+                    """);
+                boolean installed;
+                try (ResultSet resultSet = statement.executeQuery(
+                        "SELECT 1 FROM pg_trigger WHERE tgname = 'emails_count_insert' AND tgrelid = 'emails'::regclass")) {
+                    installed = resultSet.next();
+                }
+                if (!installed) {
+                    statement.execute("CREATE TRIGGER emails_count_insert AFTER INSERT ON emails "
+                            + "REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE FUNCTION emails_count_insert()");
+                    statement.execute("CREATE TRIGGER emails_count_delete AFTER DELETE ON emails "
+                            + "REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE FUNCTION emails_count_delete()");
+                    statement.execute("CREATE TRIGGER emails_count_truncate AFTER TRUNCATE ON emails "
+                            + "FOR EACH STATEMENT EXECUTE FUNCTION emails_count_truncate()");
+                    // Seed once; the lock keeps writers out until the triggers are live
+                    statement.executeUpdate("DELETE FROM email_counts");
+                    statement.executeUpdate("DELETE FROM email_count_deltas");
+                    statement.executeUpdate("INSERT INTO email_counts(domain, total) SELECT domain, count(*) FROM emails GROUP BY domain");
+                    LOGGER.info("Installed email counters for " + bucket);
+                }
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
     }
 }
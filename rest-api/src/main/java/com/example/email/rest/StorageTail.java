@@ -0,0 +1,399 @@
+package com.example.email.rest;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Live tail of newly stored emails. Each bucket database has a statement-level trigger that
+ * sends {@code NOTIFY emails_inserted, '<min id>:<max id>'} for every insert, delivered when
+ * the inserting transaction commits. One dedicated LISTEN connection per bucket turns
+ * notifications into a read of just those id ranges and fans the rows out to every
+ * subscriber, so watching the pipeline costs O(new rows) however large the tables are.
+ * <p>
+ * Ids come from a sequence when rows are inserted, but transactions commit in any order, so a
+ * row can become visible below ids already delivered. Positions are therefore low-watermarks:
+ * every row up to a bucket's position has been delivered, or its transaction ended without it.
+ * A subscriber resuming from a cursor first replays the rows after it at its own pace, while
+ * live rows are held back and then released without the replayed ones; rows above the
+ * position that were delivered before may be delivered again.
+ */
+final class StorageTail {
+
+    private static final Logger LOGGER = Logger.getLogger(StorageTail.class.getName());
+    static final String CHANNEL = "emails_inserted";
+    private static final int PAGE_SIZE = 500;
+    /**
+     * Ids recently read per bucket, so overlapping notification ranges and rows read again
+     * from the low-watermark are delivered once; also the most ids a gap can hold it back by.
+     */
+    private static final int RECENT_IDS = 65536;
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    /** Per-bucket database access, implemented by the storage service's clients. */
+    interface Source {
+        String bucket();
+
+        /** A connection of its own, with the schema and the notify trigger in place. */
+        Connection listenerConnection() throws SQLException;
+
+        /** Rows with {@code after < id <= upTo}, by id, at most {@code limit}. */
+        List<StorageService.StoredEmail> fetchIds(Connection connection, long after, long upTo, int limit) throws SQLException;
+
+        long maxId(Connection connection) throws SQLException;
+
+        /** Same as {@link #fetchIds}, on a pooled connection. */
+        List<StorageService.StoredEmail> fetchAfter(long after, int limit) throws SQLException;
+    }
+
+    private final Map<String, Listener> listeners = new LinkedHashMap<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final int bufferSize;
+    private final Duration heartbeat;
+
+    StorageTail(List<Source> sources, int bufferSize, Duration heartbeat) {
+        for (Source source : sources) {
+            listeners.put(source.bucket(), new Listener(source));
+        }
+        this.bufferSize = bufferSize;
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Emails stored from now on, or after {@code cursor} when given. A subscriber that falls
+     * more than the buffer size behind is failed and can resume from its last cursor.
+     */
+    Flux<StorageService.TailEvent> subscribe(String cursor) {
+        Map<String, Long> after = decode(cursor);
+        if (started.compareAndSet(false, true)) {
+            listeners.values().forEach(Listener::start);
+        }
+        return Flux.defer(() -> {
+            Subscriber subscriber = new Subscriber(after);
+            subscribers.add(subscriber);
+            Flux<StorageService.TailEvent> replay = Flux.fromIterable(after.keySet())
+                    .filter(listeners::containsKey)
+                    .concatMap(bucket -> replay(subscriber, listeners.get(bucket).source, after.get(bucket)));
+            Flux<StorageService.TailEvent> live = Flux
+                    .<StorageService.TailEvent>create(subscriber::attach, FluxSink.OverflowStrategy.BUFFER)
+                    .onBackpressureBuffer(bufferSize);
+            return replay.concatWith(live)
+                    .mergeWith(Flux.interval(heartbeat).map(tick -> new StorageService.TailEvent(subscriber.cursor(), null)))
+                    .doFinally(signal -> subscribers.remove(subscriber));
+        });
+    }
+
+    private Flux<StorageService.TailEvent> replay(Subscriber subscriber, Source source, long from) {
+        // One page per downstream request, so a long replay only reads as fast as the client
+        return Flux.<List<StorageService.StoredEmail>, long[]>generate(() -> new long[] {from, 0}, (state, sink) -> {
+                    if (state[1] != 0) {
+                        sink.complete();
+                        return state;
+                    }
+                    try {
+                        List<StorageService.StoredEmail> page = source.fetchAfter(state[0], PAGE_SIZE);
+                        if (page.size() < PAGE_SIZE) {
+                            state[1] = 1;
+                        }
+                        if (!page.isEmpty()) {
+                            state[0] = page.get(page.size() - 1).id;
+                            sink.next(page);
+                        } else {
+                            sink.complete();
+                        }
+                    } catch (SQLException ex) {
+                        sink.error(ex);
+                    }
+                    return state;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .concatMapIterable(page -> page)
+                .map(email -> subscriber.replayed(source.bucket(), email));
+    }
+
+    private void publish(Published batch) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.deliver(batch);
+        }
+    }
+
+    static String encode(Map<String, Long> positions) {
+        String value = positions.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(","));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Map<String, Long> decode(String cursor) {
+        Map<String, Long> positions = new LinkedHashMap<>();
+        if (cursor == null || cursor.isBlank()) {
+            return positions;
+        }
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            for (String part : value.split(",")) {
+                int separator = part.lastIndexOf('=');
+                positions.put(part.substring(0, separator), Long.parseLong(part.substring(separator + 1)));
+            }
+            return positions;
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /** Rows read together, and the bucket's low-watermark once they are delivered. */
+    private record Published(String bucket, List<StorageService.StoredEmail> emails, long lowWater) {
+    }
+
+    /**
+     * Delivery state of one subscriber. Live rows arriving before {@link #attach} (during the
+     * replay) are held, up to the buffer size.
+     */
+    private final class Subscriber {
+        private final Map<String, Long> positions = new LinkedHashMap<>();
+        /** Low-watermarks when subscribing: rows up to them were committed before the replay read. */
+        private final Map<String, Long> replayLimits = new LinkedHashMap<>();
+        private final Map<String, Set<Long>> replayedIds = new LinkedHashMap<>();
+        private List<Published> held = new ArrayList<>();
+        private int heldRows;
+        private FluxSink<StorageService.TailEvent> sink;
+
+        Subscriber(Map<String, Long> after) {
+            positions.putAll(after);
+            listeners.forEach((bucket, listener) -> {
+                long low = listener.lowWater;
+                replayLimits.put(bucket, low);
+                // Buckets missing from the cursor start at their current end
+                if (!positions.containsKey(bucket) && low >= 0) {
+                    positions.put(bucket, low);
+                }
+            });
+        }
+
+        synchronized String cursor() {
+            return encode(positions);
+        }
+
+        synchronized StorageService.TailEvent replayed(String bucket, StorageService.StoredEmail email) {
+            replayedIds.computeIfAbsent(bucket, key -> new HashSet<>()).add(email.id);
+            // Rows committed after the replay read arrive with the held ones, so they bound it
+            positions.merge(bucket, Math.min(email.id, replayLimits.getOrDefault(bucket, -1L)), Math::max);
+            return new StorageService.TailEvent(encode(positions), email);
+        }
+
+        synchronized void attach(FluxSink<StorageService.TailEvent> sink) {
+            if (heldRows > bufferSize) {
+                sink.error(new IllegalStateException("Subscriber fell more than " + bufferSize + " emails behind"));
+                return;
+            }
+            for (Published batch : held) {
+                emit(sink, batch, replayedIds.getOrDefault(batch.bucket(), Set.of()));
+            }
+            held = null;
+            replayedIds.clear();
+            this.sink = sink;
+        }
+
+        synchronized void deliver(Published batch) {
+            if (sink != null) {
+                emit(sink, batch, Set.of());
+            } else if (held != null && heldRows <= bufferSize) {
+                held.add(batch);
+                heldRows += batch.emails().size();
+            }
+        }
+
+        /** The batch's rows, the last one carrying the low-watermark the batch reached. */
+        private void emit(FluxSink<StorageService.TailEvent> sink, Published batch, Set<Long> skip) {
+            List<StorageService.StoredEmail> emails = batch.emails();
+            for (int index = 0; index < emails.size(); index++) {
+                if (index == emails.size() - 1) {
+                    positions.merge(batch.bucket(), batch.lowWater(), Math::max);
+                }
+                StorageService.StoredEmail email = emails.get(index);
+                if (!skip.contains(email.id)) {
+                    sink.next(new StorageService.TailEvent(encode(positions), email));
+                }
+            }
+            if (emails.isEmpty()) {
+                // A gap given up: the next heartbeat carries the position
+                positions.merge(batch.bucket(), batch.lowWater(), Math::max);
+            }
+        }
+    }
+
+    /**
+     * LISTEN loop of one bucket on a dedicated connection. After a reconnect the rows above
+     * the low-watermark are read again, so notifications lost meanwhile do not leave a gap.
+     * <p>
+     * An id missing below the highest one read belongs to a transaction still running, or
+     * to one that rolled back. Ids missing up to the highest one read when a gap is first seen
+     * hold the low-watermark until every transaction running then has ended; they are looked
+     * for once more and then given up.
+     */
+    private final class Listener implements Runnable {
+        private final Source source;
+        private final Set<Long> recent = new LinkedHashSet<>();
+        /** Highest id read so far, -1 until the first connection. */
+        private long highWater = -1;
+        /** Every row up to this id has been published or will not be; -1 until the first connection. */
+        private volatile long lowWater = -1;
+        /** Highest id read when the current gap was seen, or -1, and the next transaction id then. */
+        private long gapUpTo = -1;
+        private long gapHorizon;
+
+        Listener(Source source) {
+            this.source = source;
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "storage-tail-" + source.bucket());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try (Connection connection = source.listenerConnection()) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("LISTEN " + CHANNEL);
+                    }
+                    if (highWater < 0) {
+                        highWater = source.maxId(connection);
+                        lowWater = highWater;
+                    } else {
+                        read(connection, lowWater, Long.MAX_VALUE);
+                    }
+                    LOGGER.info(() -> "Tailing " + source.bucket() + " from id " + lowWater);
+                    PGConnection notifications = connection.unwrap(PGConnection.class);
+                    while (!Thread.currentThread().isInterrupted()) {
+                        PGNotification[] batch = notifications.getNotifications(1000);
+                        if (batch != null && batch.length > 0) {
+                            for (long[] range : ranges(batch)) {
+                                read(connection, range[0] - 1, range[1]);
+                            }
+                        }
+                        if (lowWater < highWater) {
+                            settleGap(connection);
+                        }
+                    }
+                } catch (SQLException ex) {
+                    LOGGER.warning("Tail of " + source.bucket() + " disconnected, retrying: " + ex.getMessage());
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void read(Connection connection, long after, long upTo) throws SQLException {
+            long position = after;
+            while (true) {
+                List<StorageService.StoredEmail> page = source.fetchIds(connection, position, upTo, PAGE_SIZE);
+                List<StorageService.StoredEmail> fresh = new ArrayList<>(page.size());
+                for (StorageService.StoredEmail email : page) {
+                    if (recent.add(email.id)) {
+                        fresh.add(email);
+                    }
+                    highWater = Math.max(highWater, email.id);
+                }
+                while (recent.size() > RECENT_IDS) {
+                    recent.remove(recent.iterator().next());
+                }
+                long low = raiseLowWater();
+                if (!fresh.isEmpty()) {
+                    publish(new Published(source.bucket(), fresh, low));
+                }
+                if (page.size() < PAGE_SIZE) {
+                    return;
+                }
+                position = page.get(page.size() - 1).id;
+            }
+        }
+
+        /** Moves the low-watermark over the ids read since; only this thread writes it. */
+        private long raiseLowWater() {
+            long low = Math.max(lowWater, highWater - RECENT_IDS);
+            while (low < highWater && recent.contains(low + 1)) {
+                low++;
+            }
+            lowWater = low;
+            return low;
+        }
+
+        private void settleGap(Connection connection) throws SQLException {
+            long xmin;
+            long xmax;
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(
+                         "SELECT pg_snapshot_xmin(s)::text::bigint, pg_snapshot_xmax(s)::text::bigint "
+                                 + "FROM pg_current_snapshot() s")) {
+                rs.next();
+                xmin = rs.getLong(1);
+                xmax = rs.getLong(2);
+            }
+            if (gapUpTo <= lowWater) {
+                gapUpTo = highWater;
+                gapHorizon = xmax;
+                return;
+            }
+            if (xmin < gapHorizon) {
+                return;
+            }
+            // Their transactions have ended: rows may only have missed their notification
+            read(connection, lowWater, gapUpTo);
+            if (lowWater < gapUpTo) {
+                lowWater = gapUpTo;
+                publish(new Published(source.bucket(), List.of(), raiseLowWater()));
+            }
+            gapUpTo = -1;
+        }
+
+        /** Notified id ranges, sorted and with overlapping or adjacent ones merged. */
+        private List<long[]> ranges(PGNotification[] batch) {
+            List<long[]> ranges = new ArrayList<>(batch.length);
+            for (PGNotification notification : batch) {
+                String[] bounds = notification.getParameter().split(":");
+                if (bounds.length == 2) {
+                    ranges.add(new long[] {Long.parseLong(bounds[0]), Long.parseLong(bounds[1])});
+                }
+            }
+            ranges.sort((left, right) -> Long.compare(left[0], right[0]));
+            List<long[]> merged = new ArrayList<>();
+            for (long[] range : ranges) {
+                long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (last != null && range[0] <= last[1] + 1) {
+                    last[1] = Math.max(last[1], range[1]);
+                } else {
+                    merged.add(range);
+                }
+            }
+            return merged;
+        }
+    }
+}